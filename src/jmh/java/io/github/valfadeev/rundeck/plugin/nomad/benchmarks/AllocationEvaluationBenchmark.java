@@ -0,0 +1,107 @@
+package io.github.valfadeev.rundeck.plugin.nomad.benchmarks;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.javasdk.Predicate;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.AllocationTracker;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAllocationPredicates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Checking an allocation list for completion and for the failure
+ * threshold, the way every blocking query response is checked: with the
+ * list predicates, and with the incremental tracker after the first
+ * response, when nothing or one allocation in a hundred has changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AllocationEvaluationBenchmark {
+
+    private static final long MAX_FAIL_PCT = 10;
+
+    @Param({"10", "1000", "100000"})
+    public int allocations;
+
+    private List<AllocationListStub> allocs;
+    private List<AllocationListStub> changing;
+    private Predicate<List<AllocationListStub>> finished;
+    private Predicate<List<AllocationListStub>> failedOver;
+    private AllocationTracker tracker;
+    private AllocationTracker changingTracker;
+    private long modifyIndex = 10;
+
+    @Setup
+    public void setUp() {
+        allocs = new ArrayList<>(allocations);
+        for (int i = 0; i < allocations; i++) {
+            String status = i % 20 == 0 ? "failed" : "complete";
+            allocs.add(alloc(i, status, modifyIndex));
+        }
+        // the last allocation is still running
+        allocs.set(allocations - 1, alloc(allocations - 1, "running", modifyIndex));
+        changing = new ArrayList<>(allocs);
+        finished = NomadAllocationPredicates.allAllocationsFinished();
+        failedOver = NomadAllocationPredicates.failedAllocationsOver(MAX_FAIL_PCT);
+        tracker = new AllocationTracker();
+        tracker.update(allocs);
+        changingTracker = new AllocationTracker();
+        changingTracker.update(changing);
+    }
+
+    private static AllocationListStub alloc(int i, String status, long modifyIndex) {
+        // an object of its own for every value, the way a parsed
+        // response has them, rather than shared constants
+        return new AllocationListStub()
+                .setId(String.format("%08d-0000-0000-0000-000000000000", i))
+                .setClientStatus(new String(status))
+                .setModifyIndex(new BigInteger(Long.toString(modifyIndex)));
+    }
+
+    @Benchmark
+    public boolean predicates() {
+        return finished.apply(allocs) || failedOver.apply(allocs);
+    }
+
+    @Benchmark
+    public boolean trackerUnchanged() {
+        tracker.update(allocs);
+        return tracker.allFinished() || tracker.failedOver(MAX_FAIL_PCT);
+    }
+
+    @Benchmark
+    public boolean predicatesChanged() {
+        change();
+        return finished.apply(changing) || failedOver.apply(changing);
+    }
+
+    @Benchmark
+    public boolean trackerChanged() {
+        change();
+        changingTracker.update(changing);
+        return changingTracker.allFinished() || changingTracker.failedOver(MAX_FAIL_PCT);
+    }
+
+    /**
+     * Turns the list into a response in which every hundredth allocation
+     * has moved on, as freshly parsed objects with a newer index.
+     */
+    private void change() {
+        modifyIndex++;
+        String status = modifyIndex % 2 == 0 ? "running" : "complete";
+        for (int i = (int) (modifyIndex % 100); i < allocations; i += 100) {
+            changing.set(i, alloc(i, status, modifyIndex));
+        }
+    }
+}
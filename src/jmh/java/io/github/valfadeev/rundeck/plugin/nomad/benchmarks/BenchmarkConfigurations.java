@@ -0,0 +1,87 @@
+package io.github.valfadeev.rundeck.plugin.nomad.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadConfigOptions;
+
+import static io.github.valfadeev.rundeck.plugin.nomad.driver.docker.DockerConfigOptions.*;
+
+/**
+ * Step configurations as Rundeck hands them to the plugin, with every
+ * property set, the way a typical Docker step is filled in.
+ */
+class BenchmarkConfigurations {
+
+    static Map<String, Object> nomad() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(NomadConfigOptions.NOMAD_URL, "http://localhost:4646");
+        config.put(NomadConfigOptions.NOMAD_DATACENTER, "dc1,dc2");
+        config.put(NomadConfigOptions.NOMAD_REGION, "global");
+        config.put(NomadConfigOptions.NOMAD_GROUP_COUNT, "3");
+        config.put(NomadConfigOptions.NOMAD_JOB_TYPE, "batch");
+        config.put(NomadConfigOptions.NOMAD_MAX_FAIL_PCT, "0");
+        config.put(NomadConfigOptions.NOMAD_ENV_VARS, "FOO=BAR\nBAZ=QUX\nLANG=C.UTF-8");
+        config.put(NomadConfigOptions.NOMAD_TASK_CPU, "500");
+        config.put(NomadConfigOptions.NOMAD_TASK_MEMORY, "512");
+        config.put(NomadConfigOptions.NOMAD_TASK_IOPS, "100");
+        config.put(NomadConfigOptions.NOMAD_NETWORK_BANDWIDTH, "10");
+        config.put(NomadConfigOptions.NOMAD_DYNAMIC_PORTS, "http,https");
+        config.put(NomadConfigOptions.NOMAD_RESERVED_PORTS, "amqp=5672\ndb=6379");
+        config.put(NomadConfigOptions.NOMAD_MAX_PARALLEL, "1");
+        config.put(NomadConfigOptions.NOMAD_HEALTH_CHECK, "");
+        config.put(NomadConfigOptions.NOMAD_MIN_HEALTHY_TIME, "");
+        config.put(NomadConfigOptions.NOMAD_HEALTHY_DEADLINE, "");
+        config.put(NomadConfigOptions.NOMAD_AUTO_REVERT, "");
+        config.put(NomadConfigOptions.NOMAD_CANARY, "");
+        config.put(NomadConfigOptions.NOMAD_STAGGER, "");
+        return config;
+    }
+
+    static Map<String, Object> docker() {
+        Map<String, Object> config = nomad();
+        config.put(DOCKER_IMAGE, "registry.example.com/team/app:1.2.3");
+        config.put(DOCKER_COMMAND, "/bin/run");
+        config.put(DOCKER_LOAD, "");
+        config.put(DOCKER_FORCE_PULL, "false");
+        config.put(DOCKER_ARGS, "--verbose,--config,/etc/app.conf");
+        config.put(DOCKER_LABELS, "team=platform\nservice=app\nenv=prod");
+        config.put(DOCKER_WORKDIR, "/srv");
+        config.put(DOCKER_SERVER_ADDRESS, "registry.example.com");
+        config.put(DOCKER_USERNAME, "rundeck");
+        config.put(DOCKER_PASSWORD, "secret");
+        config.put(DOCKER_EMAIL, "");
+        config.put(DOCKER_INTERACTIVE_MODE, "false");
+        config.put(DOCKER_TTY, "false");
+        config.put(DOCKER_AUTH_SOFT_FAIL, "false");
+        config.put(DOCKER_LOG_DRIVER, "syslog");
+        config.put(DOCKER_LOG_OPT, "tag=app\nsyslog-facility=local0");
+        config.put(DOCKER_NETWORK_MODE, "bridge");
+        config.put(DOCKER_NETWORK_ALIASES, "app,app-batch");
+        config.put(DOCKER_PORT_MAP, "http=8080\nhttps=8443");
+        config.put(DOCKER_HOSTNAME, "");
+        config.put(DOCKER_IPV4_ADDRESS, "");
+        config.put(DOCKER_IPV6_ADDRESS, "");
+        config.put(DOCKER_MAC_ADDRESS, "");
+        config.put(DOCKER_EXTRA_HOSTS, "db:10.0.0.5,cache:10.0.0.6");
+        config.put(DOCKER_DNS_SEARCH_DOMAINS, "example.com");
+        config.put(DOCKER_DNS_SERVERS, "10.0.0.2,10.0.0.3");
+        config.put(DOCKER_VOLUMES, "/data:/data\n/logs:/logs");
+        config.put(DOCKER_VOLUME_DRIVER, "");
+        config.put(DOCKER_SHM_SIZE, "67108864");
+        config.put(DOCKER_SECURITY_OPT, "no-new-privileges");
+        config.put(DOCKER_IPC_MODE, "");
+        config.put(DOCKER_PID_MODE, "");
+        config.put(DOCKER_UTS_MODE, "");
+        config.put(DOCKER_USERNS_MODE, "");
+        config.put(DOCKER_PRIVILEGED_MODE, "false");
+        return config;
+    }
+
+    static Map<String, Object> agentConfig() {
+        Map<String, Object> agentConfig = new HashMap<>();
+        agentConfig.put("Datacenter", "dc1");
+        agentConfig.put("Region", "global");
+        return agentConfig;
+    }
+}
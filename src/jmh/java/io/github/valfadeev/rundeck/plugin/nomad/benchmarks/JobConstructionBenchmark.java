@@ -0,0 +1,63 @@
+package io.github.valfadeev.rundeck.plugin.nomad.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.hashicorp.nomad.apimodel.Job;
+import io.github.valfadeev.rundeck.plugin.nomad.driver.docker.DockerTaskConfigProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobSkeleton;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobSkeletonCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the job a step registers, from scratch and from a cached
+ * skeleton, and the fingerprint the skeleton is looked up by.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JobConstructionBenchmark {
+
+    private Map<String, Object> configuration;
+    private Map<String, Object> agentConfig;
+    private Map<String, Object> taskConfig;
+    private NomadJobSkeleton skeleton;
+
+    @Setup
+    public void setUp() {
+        configuration = BenchmarkConfigurations.docker();
+        agentConfig = BenchmarkConfigurations.agentConfig();
+        taskConfig = new DockerTaskConfigProvider(configuration).getConfig(configuration);
+        skeleton = NomadJobProvider.getSkeleton(
+                configuration, agentConfig, taskConfig, "docker", "rundeck");
+    }
+
+    @Benchmark
+    public Map<String, Object> dockerTaskConfig() {
+        return new DockerTaskConfigProvider(configuration).getConfig(configuration);
+    }
+
+    @Benchmark
+    public Job getJob() {
+        return NomadJobProvider.getJob(
+                configuration, agentConfig, taskConfig, "docker", "job-1", "job-1", "rundeck");
+    }
+
+    @Benchmark
+    public String fingerprint() {
+        return NomadJobSkeletonCache.fingerprint(
+                configuration, taskConfig, agentConfig, "docker", "rundeck");
+    }
+
+    @Benchmark
+    public Job stampSkeleton() {
+        return skeleton.stamp("job-1", "job-1");
+    }
+}
@@ -0,0 +1,67 @@
+package io.github.valfadeev.rundeck.plugin.nomad.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of multi-line key=value properties, such as environment
+ * variables or labels, and of comma-separated lists, such as arguments,
+ * of growing size. Every tenth value is quoted and holds an escaped
+ * delimiter, so the slower path is part of the mix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseInputBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int lines;
+
+    private String input;
+    private String list;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append("KEY_").append(i).append('=').append("value-").append(i);
+        }
+        input = sb.toString();
+
+        sb.setLength(0);
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (i % 10 == 0) {
+                sb.append("\"-Dvalue=").append(i).append("\\,").append(i).append('"');
+            } else {
+                sb.append("--arg-").append(i);
+            }
+        }
+        list = sb.toString();
+    }
+
+    @Benchmark
+    public Map<String, String> kvToMap() {
+        return ParseInput.kvToMap(input);
+    }
+
+    @Benchmark
+    public String[] splitList() {
+        return ParseInput.splitList(list, ',');
+    }
+}
@@ -0,0 +1,35 @@
+package io.github.valfadeev.rundeck.plugin.nomad.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing and checking the step properties, which every step does once
+ * before it talks to Nomad.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StepConfigurationBenchmark {
+
+    private Map<String, Object> configuration;
+
+    @Setup
+    public void setUp() {
+        configuration = BenchmarkConfigurations.docker();
+    }
+
+    @Benchmark
+    public NomadStepConfiguration parse() {
+        return NomadStepConfiguration.parse(configuration);
+    }
+}
@@ -1,10 +1,17 @@
 package io.github.valfadeev.rundeck.plugin.nomad;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import com.dtolabs.rundeck.core.dispatcher.SharedOutputContext;
 import com.dtolabs.rundeck.core.execution.workflow.steps.FailureReason;
 import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
 import com.dtolabs.rundeck.core.plugins.Plugin;
@@ -15,58 +22,81 @@ import com.dtolabs.rundeck.plugins.descriptions.PluginDescription;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.dtolabs.rundeck.plugins.step.StepPlugin;
 import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Deployment;
 import com.hashicorp.nomad.apimodel.Evaluation;
 import com.hashicorp.nomad.apimodel.Job;
-import com.hashicorp.nomad.javasdk.AgentApi;
+import com.hashicorp.nomad.apimodel.JobDiff;
+import com.hashicorp.nomad.apimodel.JobDispatchResponse;
+import com.hashicorp.nomad.javasdk.DeploymentsApi;
 import com.hashicorp.nomad.javasdk.EvaluationsApi;
 import com.hashicorp.nomad.javasdk.JobsApi;
 import com.hashicorp.nomad.javasdk.NomadApiClient;
-import com.hashicorp.nomad.javasdk.NomadApiConfiguration;
 import com.hashicorp.nomad.javasdk.NomadException;
-import com.hashicorp.nomad.javasdk.QueryOptions;
-import com.hashicorp.nomad.javasdk.WaitStrategy;
 import io.github.valfadeev.rundeck.plugin.nomad.common.Driver;
+import io.github.valfadeev.rundeck.plugin.nomad.common.DriverProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.common.DriverRegistry;
 import io.github.valfadeev.rundeck.plugin.nomad.common.PropertyComposer;
-import io.github.valfadeev.rundeck.plugin.nomad.common.TaskConfigProvider;
-import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadConfigOptions;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.AllocationTracker;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.DeploymentTracker;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAdmissionControl;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAgentConfigCache;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAsyncBlockingQuery;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAsyncClient;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadBlockedEvals;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadBlockingQuery;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadClientRegistry;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadClusterWatcher;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadDispatchProvider;
 import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobRegistrations;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobSkeleton;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobSkeletonCache;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadJobSweeper;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadLogStreamer;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadNodeSnapshot;
 import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadPropertyComposer;
-import static io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAllocationPredicates.either;
-import static io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAllocationPredicates.failedAllocationsOver;
-import static io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAllocationPredicates.allAllocationsFinished;
-
-import static com.hashicorp.nomad.javasdk.NomadPredicates.responseValue;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepConfiguration;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepMetrics;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepMetrics.Phase;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepTimer;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadWatch;
 
 public abstract class NomadStepPlugin implements StepPlugin, Describable {
 
     private static final String TASK_GROUP_RUNDECK = "rundeck";
+    private static final String OUTPUT_GROUP = "nomad";
+
+    // seconds between progress messages while waiting for capacity
+    private static final long CAPACITY_PROGRESS_INTERVAL = 30;
 
     private final String driverName = this.getClass().getAnnotation(Driver.class).name();
     private final String serviceProviderName = this.getClass().getAnnotation(Plugin.class).name();
     private final String title = this.getClass().getAnnotation(PluginDescription.class).title();
     private final String description = this.getClass().getAnnotation(PluginDescription.class).description();
+    private final DriverProvider driver = DriverRegistry.get(driverName);
+
+    // descriptions only depend on the plugin class, build each one once
+    private static final ConcurrentMap<Class<?>, Description> DESCRIPTIONS =
+            new ConcurrentHashMap<>();
 
     public Description getDescription() {
-        try {
-            PropertyComposer driverPropertyComposer =
-                    (PropertyComposer) Class.forName(
-                            String.format("%s.driver.%s.%sPropertyComposer",
-                                    this.getClass().getPackage().getName(),
-                                    driverName.toLowerCase(),
-                                    driverName))
-                            .newInstance();
-            PropertyComposer nomadPropertyComposer = new NomadPropertyComposer();
-            return driverPropertyComposer
-                    .compose(nomadPropertyComposer)
-                    .getBuilder()
-                    .name(serviceProviderName)
-                    .title(title)
-                    .description(description)
-                    .build();
-        } catch (Exception e) {
-            System.out.println(String.format("could not load property composer class: %s", e.getMessage()));
-            return null;
+        return DESCRIPTIONS.computeIfAbsent(this.getClass(), c -> buildDescription());
+    }
+
+    private Description buildDescription() {
+        if (driver == null) {
+            throw new IllegalStateException(
+                    String.format("No properties found for driver %s", driverName));
         }
+        PropertyComposer driverPropertyComposer = driver.getPropertyComposer();
+        PropertyComposer nomadPropertyComposer = new NomadPropertyComposer();
+        return driverPropertyComposer
+                .compose(nomadPropertyComposer)
+                .getBuilder()
+                .name(serviceProviderName)
+                .title(title)
+                .description(description)
+                .build();
     }
 
     /**
@@ -74,13 +104,19 @@ public abstract class NomadStepPlugin implements StepPlugin, Describable {
      */
     static enum Reason implements FailureReason{
         AgentConfigReadFailure,
+        ClientConfigurationFailure,
         AllocMaxFailExceededFailure,
         AllocStatusFailure,
+        DeploymentFailure,
+        DeploymentStatusFailure,
         EvalBlockedFailure,
         EvalStatusPollFailure,
+        JobDispatchFailure,
         JobRegistrationFailure,
+        InvalidConfigurationFailure,
         InvalidJobTypeFailure,
-        PluginInternalFailure
+        PluginInternalFailure,
+        StepAbortedFailure
     }
 
     public void executeStep(final PluginStepContext context, final Map<String, Object> configuration) throws StepException {
@@ -93,143 +129,923 @@ public abstract class NomadStepPlugin implements StepPlugin, Describable {
         Map<String, String> rundeckJob = context.getDataContextObject().get("job");
         String rundeckJobId = String.format("%s-%s",rundeckJob.get("id"), ts);
         String rundeckJobName = String.format("%s-%s", rundeckJob.get("name"), ts);
+        String stepJobId = getStepJobId(rundeckJob.get("id"), context.getStepNumber());
+
+        NomadStepTimer timer = new NomadStepTimer();
+
+        try {
+            // everything is checked before the step talks to Nomad
+            NomadStepConfiguration config;
+            Map<String, Object> taskConfig;
+            try {
+                config = NomadStepConfiguration.parse(configuration);
+                taskConfig = getTaskConfig(configuration);
+            } catch (IllegalArgumentException e) {
+                throw new StepException(e.getMessage(), Reason.InvalidConfigurationFailure);
+            }
+            checkJobType(config);
+
+            if (!config.getMetricsFile().isEmpty()) {
+                NomadStepMetrics.startExport(config.getMetricsFile());
+            }
+
+            NomadClientRegistry.Lease lease;
+            try {
+                lease = NomadClientRegistry.acquire(configuration);
+            } catch (IOException e) {
+                throw new StepException(
+                        String.format("Error while setting up Nomad client: %s", e.getMessage()),
+                        Reason.ClientConfigurationFailure);
+            }
+            logger.log(4, String.format("Nomad client registry: %d hits, %d misses, %d evictions",
+                    NomadClientRegistry.getHitCount(),
+                    NomadClientRegistry.getMissCount(),
+                    NomadClientRegistry.getEvictionCount()));
+            NomadJobSweeper.start(config, rundeckJob.get("id"));
+
+            try {
+                runJob(config, taskConfig, lease, logger, timer,
+                        context.getFrameworkProject(),
+                        rundeckJob, rundeckJobId, rundeckJobName, stepJobId);
+            } finally {
+                lease.close();
+            }
+            NomadStepMetrics.recordSuccess();
+        } catch (StepException e) {
+            NomadStepMetrics.recordFailure(String.valueOf(e.getFailureReason()));
+            throw e;
+        } finally {
+            timer.recordTotal();
+            reportTimings(context, logger, timer);
+        }
+    }
+
+    /**
+     * Logs the phase timings of this execution and adds them to the
+     * output data of the step, as ${nomad.<phase>_ms}.
+     */
+    private void reportTimings(final PluginStepContext context,
+                               final PluginLogger logger,
+                               final NomadStepTimer timer) {
+
+        Map<String, Long> summary = timer.getSummary();
+        logger.log(3, String.format("Step timings: %s", summary.entrySet().stream()
+                .map(e -> String.format("%s=%dms", e.getKey(), e.getValue()))
+                .collect(Collectors.joining(", "))));
+
+        SharedOutputContext output = context.getExecutionContext().getOutputContext();
+        if (output != null) {
+            summary.forEach((phase, millis) ->
+                    output.addOutput(OUTPUT_GROUP, phase + "_ms", Long.toString(millis)));
+        }
+    }
+
+    /**
+     * Builds the task config of the driver. It only depends on the
+     * configuration, so building it also validates the driver properties.
+     */
+    private Map<String, Object> getTaskConfig(final Map<String, Object> configuration)
+            throws StepException {
+
+        if (driver == null) {
+            throw new StepException(
+                    String.format("No task configuration found for driver %s", driverName),
+                    Reason.PluginInternalFailure);
+        }
+        return driver.getTaskConfigProvider(configuration).getConfig(configuration);
+    }
+
+    private void checkJobType(final NomadStepConfiguration config) throws StepException {
+        String jobType = config.getJobType();
+        if (!jobType.equals(NomadStepConfiguration.JOB_TYPE_BATCH)
+                && !jobType.equals(NomadStepConfiguration.JOB_TYPE_SERVICE)) {
+            throw new StepException(String.format("Unknown job type: %s", jobType),
+                    Reason.InvalidJobTypeFailure);
+        }
+        if (config.isDispatch() && !jobType.equals(NomadStepConfiguration.JOB_TYPE_BATCH)) {
+            throw new StepException(
+                    String.format("Dispatch mode requires a batch job, got: %s", jobType),
+                    Reason.InvalidJobTypeFailure);
+        }
+        if (config.isStableId() && !jobType.equals(NomadStepConfiguration.JOB_TYPE_SERVICE)) {
+            throw new StepException(
+                    String.format("Stable job identity requires a service job, got: %s",
+                            jobType),
+                    Reason.InvalidJobTypeFailure);
+        }
+    }
+
+    /**
+     * Returns the agent configuration used to look up default values for
+     * datacenter and region, or an empty map if both are set explicitly.
+     */
+    private Map<String, Object> getAgentConfig(final NomadStepConfiguration config)
+            throws StepException {
+
+        if (!config.getDatacenters().isEmpty() && !config.getRegion().isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-        String nomadUrl = configuration
-                .get(NomadConfigOptions.NOMAD_URL)
-                .toString();
-        NomadApiConfiguration config =
-                new NomadApiConfiguration
-                        .Builder()
-                        .setAddress(nomadUrl)
-                        .build();
-        NomadApiClient apiClient = new NomadApiClient(config);
-
-        // obtain current agent configuration to look up some default values
-        Map<String, Object> agentConfig;
-        AgentApi agentApi = apiClient.getAgentApi();
         try {
-            agentConfig = agentApi
-                    .self()
-                    .getValue()
-                    .getConfig();
+            return NomadAgentConfigCache.get(
+                    config.getUrl(),
+                    TimeUnit.SECONDS.toMillis(config.getAgentConfigTtl()),
+                    TimeUnit.SECONDS.toMillis(config.getAgentConfigStaleTtl()),
+                    () -> {
+                        // take a lease of our own, the load may run in
+                        // the background after this step has finished
+                        try (NomadClientRegistry.Lease lease =
+                                     NomadClientRegistry.acquire(config.getConfiguration())) {
+                            return lease.getClient()
+                                    .getAgentApi()
+                                    .self()
+                                    .getValue()
+                                    .getConfig();
+                        }
+                    });
         }
         catch (NomadException | IOException e) {
             throw new StepException("Error while getting agent configuration",
                     Reason.AgentConfigReadFailure);
         }
+    }
+
+    private void runJob(final NomadStepConfiguration config,
+                        final Map<String, Object> taskConfig,
+                        final NomadClientRegistry.Lease lease,
+                        final PluginLogger logger,
+                        final NomadStepTimer timer,
+                        final String project,
+                        final Map<String, String> rundeckJob,
+                        final String rundeckJobId,
+                        final String rundeckJobName,
+                        final String stepJobId) throws StepException {
+
+        long phaseStart = NomadStepTimer.now();
+        Map<String, Object> agentConfig = getAgentConfig(config);
+        timer.record(Phase.AgentConfig, phaseStart);
+
+        holdBack(config, logger);
+
+        // the job counts against the in-flight limit until the step is done
+        NomadAdmissionControl.Ticket ticket = admit(config, logger, timer, project);
+        try {
+            submitJob(config, taskConfig, lease, logger, timer, agentConfig,
+                    rundeckJob, rundeckJobId, rundeckJobName, stepJobId);
+        }
+        finally {
+            ticket.close();
+        }
+    }
+
+    private void submitJob(final NomadStepConfiguration config,
+                           final Map<String, Object> taskConfig,
+                           final NomadClientRegistry.Lease lease,
+                           final PluginLogger logger,
+                           final NomadStepTimer timer,
+                           final Map<String, Object> agentConfig,
+                           final Map<String, String> rundeckJob,
+                           final String rundeckJobId,
+                           final String rundeckJobName,
+                           final String stepJobId) throws StepException {
+
+        boolean stableId = config.isStableId();
+        String cluster = config.getJobScope();
+
+        JobsApi jobsApi = lease.getClient().getJobsApi();
+        final String jobId;
+        final String evalId;
+        String fingerprint = null;
+
+        long phaseStart = NomadStepTimer.now();
+        if (config.isDispatch()) {
+            JobDispatchResponse dispatched = dispatchJob(
+                    config, taskConfig, agentConfig, jobsApi, logger, rundeckJob, stepJobId);
+            jobId = dispatched.getDispatchedJobId();
+            evalId = dispatched.getEvalId();
+        } else if (stableId) {
+            jobId = stepJobId;
+            fingerprint = fingerprint(config.getConfiguration(), taskConfig, agentConfig);
+            Job job = placeJob(config, logger,
+                    getSkeleton(fingerprint, config, taskConfig, agentConfig, logger)
+                            .stamp(jobId, rundeckJob.get("name")));
+            if (isUpToDate(cluster, jobsApi, logger, job, fingerprint)) {
+                timer.record(Phase.Registration, phaseStart);
+                logger.log(2, String.format("Job %s is up to date, "
+                        + "skipping registration", jobId));
+                return;
+            }
+            evalId = registerJob(jobsApi, logger, job);
+        } else {
+            jobId = rundeckJobId;
+            Job job = placeJob(config, logger,
+                    getSkeleton(fingerprint(config.getConfiguration(), taskConfig, agentConfig),
+                            config, taskConfig, agentConfig, logger)
+                            .stamp(rundeckJobId, rundeckJobName));
+            evalId = registerJob(jobsApi, logger, NomadJobSweeper.mark(job));
+        }
+        timer.record(Phase.Registration, phaseStart);
 
-        TaskConfigProvider taskConfigProvider = null;
         try {
-            taskConfigProvider =
-                    (TaskConfigProvider) Class.forName(
-                            String.format("%s.driver.%s.%sTaskConfigProvider",
-                                    this.getClass().getPackage().getName(),
-                                    driverName.toLowerCase(),
-                                    driverName))
-                    .getDeclaredConstructor(Map.class).newInstance(configuration);
-        } catch (Exception e) {
-            throw new StepException("Error while loading task configuration class",
-                    Reason.PluginInternalFailure);
+            awaitJob(config, lease, logger, timer, jobId, evalId);
+        } catch (StepException e) {
+            // a job with a stable id outlives the step, leave it running
+            if (!stableId
+                    && (e.getFailureReason() == Reason.AllocMaxFailExceededFailure
+                    || e.getFailureReason() == Reason.EvalBlockedFailure
+                    || e.getFailureReason() == Reason.StepAbortedFailure)) {
+                stopJob(config, jobsApi, logger, jobId);
+            }
+            throw e;
+        }
+        if (fingerprint != null) {
+            NomadJobRegistrations.put(cluster, jobId, fingerprint);
+        }
+
+        logger.log(2, String.format("Job %s completed", rundeckJobName));
+        logger.log(4, String.format("Nomad job %s completed", jobId));
+    }
+
+    /**
+     * Returns the id of the Nomad job a step keeps across runs, the
+     * service job with a stable id or the parameterized job. Every
+     * step of a Rundeck job builds a spec of its own, so the id tells
+     * them apart by the step number.
+     */
+    static String getStepJobId(final String rundeckJobId, final int stepNumber) {
+        return String.format("%s-step-%d", rundeckJobId, stepNumber);
+    }
+
+    private String fingerprint(final Map<String, Object> configuration,
+                               final Map<String, Object> taskConfig,
+                               final Map<String, Object> agentConfig) {
+        return NomadJobSkeletonCache.fingerprint(configuration, taskConfig,
+                agentConfig, driverName.toLowerCase(), TASK_GROUP_RUNDECK);
+    }
+
+    /**
+     * Tells if the job with a stable id already runs with the given spec:
+     * either it was registered from this spec and is not stopped, or
+     * planning it against the registered version shows no difference.
+     */
+    private boolean isUpToDate(final String cluster,
+                               final JobsApi jobsApi,
+                               final PluginLogger logger,
+                               final Job job,
+                               final String fingerprint) {
+
+        if (NomadJobRegistrations.isCurrent(cluster, job.getId(), fingerprint)) {
+            try {
+                Job registered = jobsApi.info(job.getId()).getValue();
+                if (!Boolean.TRUE.equals(registered.getStop())) {
+                    return true;
+                }
+            } catch (IOException | NomadException e) {
+                logger.log(3, String.format("Could not read job %s: %s",
+                        job.getId(), e.getMessage()));
+            }
+            NomadJobRegistrations.invalidate(cluster, job.getId());
+        }
+
+        try {
+            JobDiff diff = jobsApi.plan(job, true).getValue().getDiff();
+            if (diff != null && "None".equals(diff.getType())) {
+                NomadJobRegistrations.put(cluster, job.getId(), fingerprint);
+                return true;
+            }
+        } catch (IOException | NomadException e) {
+            // register anyway, Nomad will sort out what changed
+            logger.log(3, String.format("Could not plan job %s: %s",
+                    job.getId(), e.getMessage()));
         }
+        return false;
+    }
+
+    /**
+     * Returns the job built from the configuration. The job only depends
+     * on the configuration, so it is built once and the per-run id and
+     * name are stamped into it.
+     */
+    private NomadJobSkeleton getSkeleton(final String fingerprint,
+                                         final NomadStepConfiguration config,
+                                         final Map<String, Object> taskConfig,
+                                         final Map<String, Object> agentConfig,
+                                         final PluginLogger logger) {
+
+        String driverId = driverName.toLowerCase();
+        NomadJobSkeleton skeleton = NomadJobSkeletonCache.get(
+                fingerprint,
+                config.getJobCacheSize(),
+                () -> NomadJobProvider.getSkeleton(
+                        config,
+                        agentConfig,
+                        taskConfig,
+                        driverId,
+                        TASK_GROUP_RUNDECK));
+        logger.log(4, String.format("Nomad job cache: %d hits, %d misses",
+                NomadJobSkeletonCache.getHitCount(),
+                NomadJobSkeletonCache.getMissCount()));
+        return skeleton;
+    }
 
-        String jobType = configuration.get(NomadConfigOptions.NOMAD_JOB_TYPE).toString();
+    /**
+     * Narrows the datacenters of the job to those with room for its task
+     * group, if capacity-aware placement is on. The last node snapshot of
+     * the cluster is used as it is, a stale one is refreshed in the
+     * background. The job is left as it is until the node capacity has
+     * been read once.
+     */
+    private Job placeJob(final NomadStepConfiguration config,
+                         final PluginLogger logger,
+                         final Job job) {
 
-        Job job = NomadJobProvider.getJob(
-                configuration,
-                agentConfig,
-                taskConfigProvider.getConfig(configuration),
-                driverName.toLowerCase(),
-                rundeckJobId,
-                rundeckJobName,
-                TASK_GROUP_RUNDECK);
+        if (!config.isCapacityPlacement() || job.getDatacenters().size() < 2) {
+            return job;
+        }
+        NomadNodeSnapshot snapshot = NomadNodeSnapshot.forCluster(config.getUrl());
+        snapshot.refreshInBackground(config.getConfiguration(),
+                TimeUnit.SECONDS.toMillis(config.getNodeSnapshotTtl()));
+        if (!snapshot.isLoaded()) {
+            String error = snapshot.getLastError();
+            logger.log(3, String.format("Node capacity not read yet, keeping datacenters %s%s",
+                    job.getDatacenters(), error == null ? "" : ": " + error));
+            return job;
+        }
+        List<String> datacenters = snapshot.place(job.getDatacenters(),
+                config.getCpu(),
+                config.getMemory(),
+                config.getGroupCount());
+        logger.log(4, String.format("Placing job %s in datacenters %s",
+                job.getId(), datacenters));
+        return job.setDatacenters(datacenters);
+    }
 
-        JobsApi jobsApi = apiClient.getJobsApi();
-        String evalId;
-        logger.log(2, String.format("Registering job %s with Nomad", rundeckJobId));
+    private String registerJob(final JobsApi jobsApi,
+                               final PluginLogger logger,
+                               final Job job) throws StepException {
 
+        logger.log(2, String.format("Registering job %s with Nomad", job.getId()));
         try {
-            evalId = jobsApi.register(job).getValue();
+            return jobsApi.register(job).getValue();
         } catch (IOException|NomadException e) {
             throw new StepException(
-                    String.format("Error while registering job %s with Nomad", rundeckJobId),
+                    String.format("Error while registering job %s with Nomad", job.getId()),
                     Reason.JobRegistrationFailure);
         }
+    }
+
+    /**
+     * Dispatches the parameterized job of this step, registering it first
+     * if it is not known to be registered with the current spec.
+     */
+    private JobDispatchResponse dispatchJob(final NomadStepConfiguration config,
+                                            final Map<String, Object> taskConfig,
+                                            final Map<String, Object> agentConfig,
+                                            final JobsApi jobsApi,
+                                            final PluginLogger logger,
+                                            final Map<String, String> rundeckJob,
+                                            final String parentId)
+            throws StepException {
+
+        Map<String, Object> configuration = config.getConfiguration();
+        String cluster = config.getJobScope();
+
+        // leave out the per-run metadata values and payload, so
+        // that the spec only changes with the job definition
+        Map<String, Object> spec = NomadDispatchProvider.getSpecConfiguration(configuration);
+        String fingerprint = fingerprint(spec, taskConfig, agentConfig);
+        Map<String, String> meta = NomadDispatchProvider.getMeta(configuration, rundeckJob);
+        byte[] payload = NomadDispatchProvider.getPayload(configuration);
+
+        for (int attempt = 0; ; attempt++) {
+            if (!NomadJobRegistrations.isCurrent(cluster, parentId, fingerprint)) {
+                // dispatched jobs inherit the sweeper marker, the
+                // parameterized job itself is never swept
+                registerJob(jobsApi, logger, NomadJobSweeper.mark(
+                        getSkeleton(fingerprint, config, taskConfig, agentConfig, logger)
+                                .stampParameterized(
+                                parentId,
+                                rundeckJob.get("name"),
+                                NomadDispatchProvider.getMetaKeys(configuration))));
+                NomadJobRegistrations.put(cluster, parentId, fingerprint);
+            }
+
+            logger.log(2, String.format("Dispatching job %s", parentId));
+            try {
+                return jobsApi.dispatch(parentId, meta, payload).getValue();
+            } catch (NomadException e) {
+                if (attempt > 0) {
+                    throw new StepException(
+                            String.format("Error while dispatching job %s: %s",
+                                    parentId, e.getMessage()),
+                            Reason.JobDispatchFailure);
+                }
+                // the job may have been stopped or changed outside
+                // of Rundeck, register it again and retry once
+                NomadJobRegistrations.invalidate(cluster, parentId);
+            } catch (IOException e) {
+                throw new StepException(
+                        String.format("Error while dispatching job %s: %s",
+                                parentId, e.getMessage()),
+                        Reason.JobDispatchFailure);
+            }
+        }
+    }
+
+    private void awaitJob(final NomadStepConfiguration config,
+                          final NomadClientRegistry.Lease lease,
+                          final PluginLogger logger,
+                          final NomadStepTimer timer,
+                          final String jobId,
+                          final String evalId) throws StepException {
 
+        Map<String, Object> configuration = config.getConfiguration();
+        NomadApiClient apiClient = lease.getClient();
         EvaluationsApi evaluationsApi = apiClient.getEvaluationsApi();
+        NomadClusterWatcher watcher = getClusterWatcher(config, lease);
+        NomadAsyncClient asyncClient = watcher == null
+                ? getAsyncClient(config, lease)
+                : null;
+        NomadWatch<Evaluation> evalQuery;
+        if (watcher != null) {
+            evalQuery = watcher.evaluation(evalId);
+        } else if (asyncClient != null) {
+            evalQuery = NomadAsyncBlockingQuery.create(
+                    configuration,
+                    options -> asyncClient.evaluation(evalId, options));
+        } else {
+            evalQuery = NomadBlockingQuery.create(
+                    configuration,
+                    options -> evaluationsApi.info(evalId, options));
+        }
         Evaluation eval;
         logger.log(2, String.format("Waiting for evauation %s to complete...", evalId));
+        long phaseStart = NomadStepTimer.now();
         try {
-            eval = evaluationsApi
-                    .pollForCompletion(evalId, WaitStrategy.WAIT_INDEFINITELY) // timeout should be set in Rundeck
+            // timeout should be set in Rundeck
+            eval = evalQuery
+                    .waitUntil(e -> !"pending".equals(e.getStatus()))
                     .getValue();
+            timer.record(Phase.Evaluation, phaseStart);
         } catch (NomadException|IOException e) {
             throw new StepException(
                     String.format("Error while polling for evaluation status: %s", evalId),
                     Reason.EvalStatusPollFailure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StepException(
+                    String.format("Interrupted while waiting for evaluation %s", evalId),
+                    Reason.StepAbortedFailure);
         }
+        logger.log(3, String.format("Evaluation %s: %d Nomad requests",
+                evalId, evalQuery.getRequestCount()));
 
-        if (!eval.getBlockedEval().isEmpty()) {
-            eval.getFailedTgAllocs()
-                    .get(TASK_GROUP_RUNDECK)
-                    .getDimensionExhausted()
-                    .keySet()
-                    .forEach(
-                    k -> logger.log(0,
-                            String.format("Evaluation blocked due to %s", k)));
+        if (!"complete".equals(eval.getStatus())) {
             throw new StepException(
-                    String.format("Error while processing evaluation: %s", evalId),
-                    Reason.EvalBlockedFailure);
+                    String.format("Evaluation %s finished with status %s: %s",
+                            evalId, eval.getStatus(), eval.getStatusDescription()),
+                    Reason.EvalStatusPollFailure);
         }
 
-        if (jobType.equals("batch")) {
+        // allocations placed once the cluster has room belong to the
+        // blocked evaluation, they are followed by job from then on
+        boolean placedLater = false;
+        Evaluation placing = eval;
+        if (eval.getBlockedEval() != null && !eval.getBlockedEval().isEmpty()) {
+            if (!config.isWaitForCapacity()) {
+                logExhausted(logger, 0, eval);
+                throw new StepException(
+                        String.format("Error while processing evaluation: %s", evalId),
+                        Reason.EvalBlockedFailure);
+            }
+            logExhausted(logger, 2, eval);
+            placing = awaitCapacity(config, lease, logger, eval);
+            placedLater = true;
+        }
+
+        if (config.getJobType().equals(NomadStepConfiguration.JOB_TYPE_BATCH)) {
             logger.log(2, String.format("Evauation %s is complete, "
                     + "waiting for allocations", evalId));
             // if job type is "batch"
             // poll for allocation status; bail out if
             // the number of failed allocations exceeds
             // the threshold
-            Long maxFailPct = Long.parseLong(
-                    configuration
-                            .get(NomadConfigOptions.NOMAD_MAX_FAIL_PCT)
-                            .toString()
-            );
+            final long maxFailPct = config.getMaxFailPct();
 
-            List<AllocationListStub> allocs;
+            NomadWatch<List<AllocationListStub>> allocQuery;
+            if (placedLater) {
+                if (watcher != null) {
+                    allocQuery = watcher.jobAllocations(jobId, placing.getModifyIndex());
+                } else if (asyncClient != null) {
+                    allocQuery = NomadAsyncBlockingQuery.create(
+                            configuration,
+                            options -> asyncClient.jobAllocations(jobId, options));
+                } else {
+                    allocQuery = NomadBlockingQuery.create(
+                            configuration,
+                            options -> apiClient.getJobsApi().allocations(jobId, options));
+                }
+            } else if (watcher != null) {
+                allocQuery = watcher.evaluationAllocations(evalId, eval.getModifyIndex());
+            } else if (asyncClient != null) {
+                allocQuery = NomadAsyncBlockingQuery.create(
+                        configuration,
+                        options -> asyncClient.evaluationAllocations(evalId, options));
+            } else {
+                allocQuery = NomadBlockingQuery.create(
+                        configuration,
+                        options -> evaluationsApi.allocations(evalId, options));
+            }
+            AllocationTracker tracker = new AllocationTracker();
+            NomadLogStreamer logStreamer = null;
+            if (config.isStreamLogs()) {
+                logStreamer = NomadLogStreamer.create(config.getUrl(), apiClient, logger,
+                        config.getLogStreamsMax());
+            }
+            final NomadLogStreamer streamer = logStreamer;
+            final long allocStart = NomadStepTimer.now();
+            final long[] runStart = {allocStart};
             try {
-                allocs = evaluationsApi.allocations(
-                        evalId,
-                        QueryOptions.pollRepeatedlyUntil(
-                                responseValue(
-                                        either(allAllocationsFinished(),
-                                                failedAllocationsOver(maxFailPct)
-                                        )
-                                ),
-                                // timeout should be set in Rundeck
-                                WaitStrategy.WAIT_INDEFINITELY)
-                ).getValue();
+                // timeout should be set in Rundeck
+                allocQuery.waitUntil(allocs -> {
+                    tracker.update(allocs);
+                    if (streamer != null) {
+                        streamer.follow(allocs);
+                    }
+                    boolean done = tracker.allFinished() || tracker.failedOver(maxFailPct);
+                    if (!timer.isRecorded(Phase.Placement)
+                            && (done || tracker.getTotal() > 0
+                                    && tracker.getCount(AllocationTracker.STATUS_PENDING) == 0)) {
+                        // every allocation has been placed and started
+                        timer.record(Phase.Placement, allocStart);
+                        runStart[0] = NomadStepTimer.now();
+                    }
+                    return done;
+                });
+                timer.record(Phase.Run, runStart[0]);
+                if (streamer != null) {
+                    streamer.await(TimeUnit.SECONDS.toMillis(config.getLogDrainTimeout()));
+                }
             }
             catch (IOException | NomadException e) {
                 throw new StepException(
                         "Error while polling for allocation status",
                         Reason.AllocStatusFailure);
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StepException(
+                        "Interrupted while waiting for allocations",
+                        Reason.StepAbortedFailure);
+            }
+            finally {
+                if (streamer != null) {
+                    streamer.close();
+                }
+            }
+            logger.log(3, String.format("Allocations of evaluation %s: %d Nomad requests",
+                    evalId, allocQuery.getRequestCount()));
 
-            allocs.forEach(a -> logger.log(2,
+            tracker.getAllocations().forEach(a -> logger.log(2,
                     String.format("allocation %s on node %s: %s",
                             a.getId(),
                             a.getNodeId(),
                             a.getClientStatus())));
 
-            if (failedAllocationsOver(maxFailPct).apply(allocs)) {
+            if (tracker.failedOver(maxFailPct)) {
                 throw new StepException("Too many allocations failed",
                         Reason.AllocMaxFailExceededFailure);
             }
+        } else if (config.isWatchDeployment()) {
+            awaitDeployment(config, lease, logger, timer, jobId, eval);
+        }
 
-        } else if (!jobType.equals("service")) {
-            throw new StepException(String.format("Unknown job type: %s", jobType),
-                    Reason.InvalidJobTypeFailure);
+    }
+
+    /**
+     * Follows the deployment the evaluation started for the service job
+     * until it ends, promoting its canaries once they are healthy if
+     * asked to. A job without an update strategy, or one which did not
+     * change, has no deployment to follow.
+     */
+    private void awaitDeployment(final NomadStepConfiguration config,
+                                 final NomadClientRegistry.Lease lease,
+                                 final PluginLogger logger,
+                                 final NomadStepTimer timer,
+                                 final String jobId,
+                                 final Evaluation eval) throws StepException {
+
+        Map<String, Object> configuration = config.getConfiguration();
+        NomadApiClient apiClient = lease.getClient();
+        DeploymentsApi deploymentsApi = apiClient.getDeploymentsApi();
+        NomadAsyncClient asyncClient = getAsyncClient(config, lease);
+        long phaseStart = NomadStepTimer.now();
+
+        Deployment latest;
+        try {
+            latest = apiClient.getJobsApi().latestDeployment(jobId).getValue();
+        } catch (IOException|NomadException e) {
+            throw new StepException(
+                    String.format("Error while reading the deployment of job %s", jobId),
+                    Reason.DeploymentStatusFailure);
+        }
+        // the evaluation creates the deployment while placing the new
+        // version, an older one belongs to an earlier registration
+        if (latest == null || isOlder(latest.getJobModifyIndex(), eval.getJobModifyIndex())) {
+            logger.log(2, String.format("Job %s has no deployment to wait for", jobId));
+            return;
         }
 
-        logger.log(2, String.format("Job %s completed", rundeckJobName));
+        final String deploymentId = latest.getId();
+        DeploymentTracker tracker = new DeploymentTracker();
+        boolean[] awaitingPromotion = {false};
+        boolean promoted = false;
+        logger.log(2, String.format("Waiting for deployment %s to complete...", deploymentId));
+        try {
+            // timeout should be set in Rundeck
+            while (true) {
+                NomadWatch<Deployment> query;
+                if (asyncClient != null) {
+                    query = NomadAsyncBlockingQuery.create(
+                            configuration,
+                            options -> asyncClient.deployment(deploymentId, options));
+                } else {
+                    query = NomadBlockingQuery.create(
+                            configuration,
+                            options -> deploymentsApi.info(deploymentId, options));
+                }
+                boolean promote = config.isAutoPromote() && !promoted;
+                query.waitUntil(d -> {
+                    tracker.update(d).forEach(line -> logger.log(2,
+                            String.format("Deployment %s: %s", deploymentId, line)));
+                    if (!promote && !awaitingPromotion[0] && tracker.canPromote()) {
+                        awaitingPromotion[0] = true;
+                        logger.log(2, String.format("Canaries of deployment %s are healthy, "
+                                + "waiting for them to be promoted", deploymentId));
+                    }
+                    return tracker.isFinished() || promote && tracker.canPromote();
+                });
+                if (tracker.isFinished()) {
+                    break;
+                }
+                logger.log(2, String.format("Canaries of deployment %s are healthy, "
+                        + "promoting them", deploymentId));
+                deploymentsApi.promoteAll(deploymentId);
+                promoted = true;
+            }
+        } catch (IOException|NomadException e) {
+            throw new StepException(
+                    String.format("Error while polling for deployment status: %s", deploymentId),
+                    Reason.DeploymentStatusFailure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StepException(
+                    String.format("Interrupted while waiting for deployment %s", deploymentId),
+                    Reason.StepAbortedFailure);
+        }
+        timer.record(Phase.Deployment, phaseStart);
+
+        Deployment deployment = tracker.getDeployment();
+        if (!tracker.isSuccessful()) {
+            // the description tells whether Nomad rolled the job back
+            throw new StepException(
+                    String.format("Deployment %s %s: %s", deploymentId,
+                            deployment.getStatus(), deployment.getStatusDescription()),
+                    Reason.DeploymentFailure);
+        }
+        logger.log(2, String.format("Deployment %s is successful", deploymentId));
+    }
+
+    private static boolean isOlder(final BigInteger index, final BigInteger than) {
+        return index != null && than != null && index.compareTo(than) < 0;
+    }
+
+    /**
+     * Returns the non-blocking client if the asynchronous engine is
+     * enabled, or null to wait on the calling thread.
+     */
+    private NomadAsyncClient getAsyncClient(final NomadStepConfiguration config,
+                                            final NomadClientRegistry.Lease lease)
+            throws StepException {
+
+        if (!config.isAsyncEngine()) {
+            return null;
+        }
+        try {
+            return lease.getAsyncClient();
+        } catch (IOException e) {
+            throw new StepException(
+                    String.format("Error while setting up Nomad client: %s", e.getMessage()),
+                    Reason.ClientConfigurationFailure);
+        }
+    }
+
+    /**
+     * Returns the watcher shared by all steps on the cluster if it is
+     * enabled, or null to watch the evaluation of this step alone.
+     */
+    private NomadClusterWatcher getClusterWatcher(final NomadStepConfiguration config,
+                                                  final NomadClientRegistry.Lease lease)
+            throws StepException {
+
+        if (!config.isClusterWatcher()) {
+            return null;
+        }
+        try {
+            return lease.getClusterWatcher();
+        } catch (IOException e) {
+            throw new StepException(
+                    String.format("Error while setting up Nomad client: %s", e.getMessage()),
+                    Reason.ClientConfigurationFailure);
+        }
+    }
+
+    /**
+     * Holds the submission back while the blocked evaluations steps wait
+     * on have reached the limit, for at most the capacity timeout. The job
+     * is submitted anyway once the time is up.
+     */
+    private void holdBack(final NomadStepConfiguration config,
+                          final PluginLogger logger) throws StepException {
+
+        int max = config.getMaxBlockedEvals();
+        if (max <= 0 || NomadBlockedEvals.getCount(config.getUrl()) < max) {
+            return;
+        }
+        logger.log(2, String.format("%d evaluations are blocked on the cluster, "
+                + "holding back the job", NomadBlockedEvals.getCount(config.getUrl())));
+        try {
+            if (!NomadBlockedEvals.awaitRoom(config.getUrl(), max,
+                    TimeUnit.SECONDS.toMillis(config.getCapacityTimeout()))) {
+                logger.log(2, "Evaluations are still blocked, submitting the job anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StepException("Interrupted while waiting to submit the job",
+                    Reason.StepAbortedFailure);
+        }
+    }
+
+    /**
+     * Waits for the admission of the step to the cluster, queued under
+     * its project, with the limits of the current configuration.
+     */
+    private NomadAdmissionControl.Ticket admit(final NomadStepConfiguration config,
+                                               final PluginLogger logger,
+                                               final NomadStepTimer timer,
+                                               final String project) throws StepException {
+
+        NomadAdmissionControl control = NomadAdmissionControl.forCluster(config.getUrl());
+        control.setLimits(config.getAdmissionRate(), config.getAdmissionBurst(),
+                config.getMaxInFlightJobs());
+        int queued = control.getQueueDepth();
+        if (queued > 0) {
+            logger.log(3, String.format("%d steps queued for admission to the cluster",
+                    queued));
+        }
+        long phaseStart = NomadStepTimer.now();
+        try {
+            NomadAdmissionControl.Ticket ticket = control.admit(project);
+            timer.record(Phase.Admission, phaseStart);
+            return ticket;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StepException("Interrupted while waiting for admission to the cluster",
+                    Reason.StepAbortedFailure);
+        }
+    }
+
+    /**
+     * Waits until the blocked evaluation Nomad created for the given one
+     * is placed, for at most the capacity timeout. Progress is logged
+     * every {@link #CAPACITY_PROGRESS_INTERVAL} seconds.
+     *
+     * @return the evaluation which placed the rest of the job
+     */
+    private Evaluation awaitCapacity(final NomadStepConfiguration config,
+                               final NomadClientRegistry.Lease lease,
+                               final PluginLogger logger,
+                               final Evaluation eval) throws StepException {
+
+        Map<String, Object> configuration = config.getConfiguration();
+        EvaluationsApi evaluationsApi = lease.getClient().getEvaluationsApi();
+        NomadAsyncClient asyncClient = getAsyncClient(config, lease);
+        long timeout = TimeUnit.SECONDS.toMillis(config.getCapacityTimeout());
+        long maxWait = Math.max(1000, Math.min(timeout,
+                TimeUnit.SECONDS.toMillis(CAPACITY_PROGRESS_INTERVAL)));
+        long started = System.currentTimeMillis();
+        long deadline = started + timeout;
+
+        Evaluation placing = eval;
+        String blockedId = eval.getBlockedEval();
+        NomadBlockedEvals.Handle handle = NomadBlockedEvals.blocked(config.getUrl());
+        try {
+            while (blockedId != null && !blockedId.isEmpty()) {
+                final String id = blockedId;
+                logger.log(2, String.format("Evaluation %s is blocked, "
+                        + "waiting for capacity...", id));
+                NomadWatch<Evaluation> query = asyncClient != null
+                        ? NomadAsyncBlockingQuery.create(configuration, maxWait,
+                                options -> asyncClient.evaluation(id, options))
+                        : NomadBlockingQuery.create(configuration, maxWait,
+                                options -> evaluationsApi.info(id, options));
+                Evaluation blocked = query.waitUntil(e -> {
+                    long now = System.currentTimeMillis();
+                    if (!isBlocked(e) || now >= deadline) {
+                        return true;
+                    }
+                    logger.log(2, String.format("Still waiting for capacity after %ds",
+                            TimeUnit.MILLISECONDS.toSeconds(now - started)));
+                    logExhausted(logger, 3, e);
+                    return false;
+                }).getValue();
+
+                if (isBlocked(blocked)) {
+                    throw new StepException(
+                            String.format("Evaluation %s still blocked after %ds",
+                                    id, config.getCapacityTimeout()),
+                            Reason.EvalBlockedFailure);
+                }
+                if (!"complete".equals(blocked.getStatus())) {
+                    throw new StepException(
+                            String.format("Evaluation %s finished with status %s: %s",
+                                    id, blocked.getStatus(), blocked.getStatusDescription()),
+                            Reason.EvalBlockedFailure);
+                }
+                // an evaluation placing only part of the group blocks again
+                placing = blocked;
+                blockedId = blocked.getBlockedEval();
+            }
+        } catch (NomadException|IOException e) {
+            throw new StepException(
+                    String.format("Error while polling for evaluation status: %s", blockedId),
+                    Reason.EvalStatusPollFailure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StepException(
+                    String.format("Interrupted while waiting for evaluation %s", blockedId),
+                    Reason.StepAbortedFailure);
+        } finally {
+            handle.close();
+        }
+        logger.log(2, String.format("Capacity became available after %ds",
+                TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - started)));
+        return placing;
+    }
+
+    private static boolean isBlocked(final Evaluation eval) {
+        return eval == null
+                || "blocked".equals(eval.getStatus())
+                || "pending".equals(eval.getStatus());
+    }
+
+    /**
+     * Logs the resource dimensions the evaluation could not place its
+     * task groups for, if Nomad reported any.
+     */
+    private static void logExhausted(final PluginLogger logger,
+                                     final int level,
+                                     final Evaluation eval) {
+
+        if (eval == null || eval.getFailedTgAllocs() == null) {
+            return;
+        }
+        eval.getFailedTgAllocs().values().stream()
+                .filter(metric -> metric != null && metric.getDimensionExhausted() != null)
+                .flatMap(metric -> metric.getDimensionExhausted().keySet().stream())
+                .distinct()
+                .forEach(k -> logger.log(level,
+                        String.format("Evaluation blocked due to %s", k)));
+    }
+
+    /**
+     * Deregisters the job so that its remaining allocations are stopped
+     * right away, if the step is configured to do so.
+     */
+    private void stopJob(final NomadStepConfiguration config,
+                         final JobsApi jobsApi,
+                         final PluginLogger logger,
+                         final String rundeckJobId) {
+
+        if (!config.isStopOnFailure()) {
+            return;
+        }
+        boolean purge = config.isPurgeOnStop();
+
+        logger.log(2, String.format("Stopping job %s%s",
+                rundeckJobId, purge ? " and purging it" : ""));
+        // an aborted step leaves the thread interrupted, which would
+        // fail the request while it waits for a pooled connection
+        boolean interrupted = Thread.interrupted();
+        try {
+            jobsApi.deregister(rundeckJobId, purge);
+        } catch (IOException | NomadException e) {
+            logger.log(0, String.format("Error while stopping job %s: %s",
+                    rundeckJobId, e.getMessage()));
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
@@ -0,0 +1,22 @@
+package io.github.valfadeev.rundeck.plugin.nomad.common;
+
+import java.util.Map;
+
+/**
+ * Supplies the UI properties and the task configuration of a Nomad task driver.
+ *
+ * Implementations are discovered with {@link java.util.ServiceLoader}, so
+ * a driver is added by listing its provider in
+ * {@code META-INF/services/io.github.valfadeev.rundeck.plugin.nomad.common.DriverProvider}.
+ */
+public interface DriverProvider {
+
+    /**
+     * @return the driver name, as used in {@link Driver#name()}
+     */
+    String getName();
+
+    PropertyComposer getPropertyComposer();
+
+    TaskConfigProvider getTaskConfigProvider(Map<String, Object> configuration);
+}
@@ -0,0 +1,38 @@
+package io.github.valfadeev.rundeck.plugin.nomad.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Maps driver names to their {@link DriverProvider}.
+ *
+ * The providers are looked up once, when the class is initialized, with
+ * the class loader of the plugin.
+ */
+public class DriverRegistry {
+
+    private static final Map<String, DriverProvider> PROVIDERS =
+            load(DriverRegistry.class.getClassLoader());
+
+    static Map<String, DriverProvider> load(ClassLoader classLoader) {
+        Map<String, DriverProvider> providers = new LinkedHashMap<>();
+        for (DriverProvider provider : ServiceLoader.load(DriverProvider.class, classLoader)) {
+            // first one on the class path wins
+            providers.putIfAbsent(provider.getName(), provider);
+        }
+        return Collections.unmodifiableMap(providers);
+    }
+
+    /**
+     * @return the provider for the driver, or null if there is none
+     */
+    public static DriverProvider get(String driverName) {
+        return PROVIDERS.get(driverName);
+    }
+
+    public static Map<String, DriverProvider> getAll() {
+        return PROVIDERS;
+    }
+}
@@ -0,0 +1,23 @@
+package io.github.valfadeev.rundeck.plugin.nomad.driver.docker;
+
+import java.util.Map;
+
+import io.github.valfadeev.rundeck.plugin.nomad.common.DriverProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.common.PropertyComposer;
+import io.github.valfadeev.rundeck.plugin.nomad.common.SupportedDrivers;
+import io.github.valfadeev.rundeck.plugin.nomad.common.TaskConfigProvider;
+
+public class DockerDriverProvider implements DriverProvider {
+
+    public String getName() {
+        return SupportedDrivers.DOCKER;
+    }
+
+    public PropertyComposer getPropertyComposer() {
+        return new DockerPropertyComposer();
+    }
+
+    public TaskConfigProvider getTaskConfigProvider(Map<String, Object> configuration) {
+        return new DockerTaskConfigProvider(configuration);
+    }
+}
@@ -1,62 +1,76 @@
 package io.github.valfadeev.rundeck.plugin.nomad.driver.docker;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationReader;
 import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
 import io.github.valfadeev.rundeck.plugin.nomad.common.TaskConfigProvider;
 
 import static io.github.valfadeev.rundeck.plugin.nomad.driver.docker.DockerConfigOptions.*;
 
+/**
+ * Builds the task config of the Docker driver. Booleans, the shm size and
+ * the port map are checked as they are read, so a malformed value fails
+ * with an {@link IllegalArgumentException} naming the property.
+ */
 public class DockerTaskConfigProvider implements TaskConfigProvider {
 
-    private Map<String, Object> configuration;
-    
+    private final ConfigurationReader values;
+
     public DockerTaskConfigProvider(Map<String, Object> configuration) {
-        this.configuration = configuration;
+        this.values = new ConfigurationReader(configuration);
     }
 
     public Map<String, Object> getConfig(Map<String, Object> configuration) {
 
         Map<String, Object> taskConfig = new HashMap<>();
 
-        String dockerImage = this.configuration.get(DOCKER_IMAGE).toString();
-        String dockerCommand = this.configuration.get(DOCKER_COMMAND).toString();
-        String dockerLoad = this.configuration.get(DOCKER_LOAD).toString();
-        Boolean dockerForcePull = Boolean.parseBoolean(this.configuration.get(DOCKER_FORCE_PULL).toString());
-        String dockerArgString = this.configuration.get(DOCKER_ARGS).toString();
-        String dockerLabelString = this.configuration.get(DOCKER_LABELS).toString();
-        String dockerWorkDir = this.configuration.get(DOCKER_WORKDIR).toString();
-        String dockerServer = this.configuration.get(DOCKER_SERVER_ADDRESS).toString();
-        String dockerUsername = this.configuration.get(DOCKER_USERNAME).toString();
-        String dockerPassword = this.configuration.get(DOCKER_PASSWORD).toString();
-        String dockerEmail = this.configuration.get(DOCKER_EMAIL).toString();
-        Boolean dockerInteractiveMode = Boolean.parseBoolean(this.configuration.get(DOCKER_INTERACTIVE_MODE).toString());
-        Boolean dockerTty = Boolean.parseBoolean(this.configuration.get(DOCKER_TTY).toString());
-        Boolean dockerAuthSoftFail = Boolean.parseBoolean(this.configuration.get(DOCKER_AUTH_SOFT_FAIL).toString());
-        String dockerLogDriver = this.configuration.get(DOCKER_LOG_DRIVER).toString();
-        String dockerLogOpt = this.configuration.get(DOCKER_LOG_OPT).toString();
-        String dockerNetworkMode = this.configuration.get(DOCKER_NETWORK_MODE).toString();
-        String dockerNetworkAliasString = this.configuration.get(DOCKER_NETWORK_ALIASES).toString();
-        String dockerPortMapString = this.configuration.get(DOCKER_PORT_MAP).toString();
-        String dockerHostName = this.configuration.get(DOCKER_HOSTNAME).toString();
-        String dockerIpv4Address = this.configuration.get(DOCKER_IPV4_ADDRESS).toString();
-        String dockerIpv6Address = this.configuration.get(DOCKER_IPV6_ADDRESS).toString();
-        String dockerMacAddress = this.configuration.get(DOCKER_MAC_ADDRESS).toString();
-        String dockerExtraHostsString = this.configuration.get(DOCKER_EXTRA_HOSTS).toString();
-        String dockerDnsSearchDomainsString = this.configuration.get(DOCKER_DNS_SEARCH_DOMAINS).toString();
-        String dockerDnsServersString = this.configuration.get(DOCKER_DNS_SERVERS).toString();
-        String dockerVolumesString = this.configuration.get(DOCKER_VOLUMES).toString();
-        String dockerVolumeDriver = this.configuration.get(DOCKER_VOLUME_DRIVER).toString();
-        String dockerShmSize = this.configuration.get(DOCKER_SHM_SIZE).toString();
-        String dockerSecurityOptString = this.configuration.get(DOCKER_SECURITY_OPT).toString();
-        String dockerIpcMode = this.configuration.get(DOCKER_IPC_MODE).toString();
-        String dockerPidMode = this.configuration.get(DOCKER_PID_MODE).toString();
-        String dockerUtsMode = this.configuration.get(DOCKER_UTS_MODE).toString();
-        String dockerUsernsMode = this.configuration.get(DOCKER_USERNS_MODE).toString();
-        Boolean dockerPrivilegedMode = Boolean.parseBoolean(this.configuration.get(DOCKER_PRIVILEGED_MODE).toString());
+        String dockerImage = getString(DOCKER_IMAGE);
+        String dockerCommand = getString(DOCKER_COMMAND);
+        String dockerLoad = getString(DOCKER_LOAD);
+        Boolean dockerForcePull = values.getBoolean(DOCKER_FORCE_PULL, false);
+        String dockerArgString = getString(DOCKER_ARGS);
+        Map<String, String> dockerLabels = values.getMap(DOCKER_LABELS);
+        String dockerWorkDir = getString(DOCKER_WORKDIR);
+        String dockerServer = getString(DOCKER_SERVER_ADDRESS);
+        String dockerUsername = getString(DOCKER_USERNAME);
+        String dockerPassword = getString(DOCKER_PASSWORD);
+        String dockerEmail = getString(DOCKER_EMAIL);
+        Boolean dockerInteractiveMode = values.getBoolean(DOCKER_INTERACTIVE_MODE, false);
+        Boolean dockerTty = values.getBoolean(DOCKER_TTY, false);
+        Boolean dockerAuthSoftFail = values.getBoolean(DOCKER_AUTH_SOFT_FAIL, false);
+        String dockerLogDriver = getString(DOCKER_LOG_DRIVER);
+        Map<String, String> dockerLogOpt = values.getMap(DOCKER_LOG_OPT);
+        String dockerNetworkMode = getString(DOCKER_NETWORK_MODE);
+        String dockerNetworkAliasString = getString(DOCKER_NETWORK_ALIASES);
+        Map<String, Integer> dockerPortMap = new LinkedHashMap<>();
+        values.getMap(DOCKER_PORT_MAP).forEach((label, port) -> {
+            int value = values.parseLong(DOCKER_PORT_MAP, port.trim(), 1).intValue();
+            if (value > 65535) {
+                throw values.invalid(DOCKER_PORT_MAP, "ports from 1 to 65535");
+            }
+            dockerPortMap.put(label, value);
+        });
+        String dockerHostName = getString(DOCKER_HOSTNAME);
+        String dockerIpv4Address = getString(DOCKER_IPV4_ADDRESS);
+        String dockerIpv6Address = getString(DOCKER_IPV6_ADDRESS);
+        String dockerMacAddress = getString(DOCKER_MAC_ADDRESS);
+        String dockerExtraHostsString = getString(DOCKER_EXTRA_HOSTS);
+        String dockerDnsSearchDomainsString = getString(DOCKER_DNS_SEARCH_DOMAINS);
+        String dockerDnsServersString = getString(DOCKER_DNS_SERVERS);
+        String dockerVolumesString = getString(DOCKER_VOLUMES);
+        String dockerVolumeDriver = getString(DOCKER_VOLUME_DRIVER);
+        Long dockerShmSize = values.getLong(DOCKER_SHM_SIZE, null, 0);
+        String dockerSecurityOptString = getString(DOCKER_SECURITY_OPT);
+        String dockerIpcMode = getString(DOCKER_IPC_MODE);
+        String dockerPidMode = getString(DOCKER_PID_MODE);
+        String dockerUtsMode = getString(DOCKER_UTS_MODE);
+        String dockerUsernsMode = getString(DOCKER_USERNS_MODE);
+        Boolean dockerPrivilegedMode = values.getBoolean(DOCKER_PRIVILEGED_MODE, false);
 
         taskConfig.put("ipc_mode", dockerIpcMode);
         taskConfig.put("pid_mode", dockerPidMode);
@@ -84,13 +98,13 @@ public class DockerTaskConfigProvider implements TaskConfigProvider {
         }
 
         if (!dockerArgString.isEmpty()) {
-            String[] dockerArgs = dockerArgString.split(",");
+            String[] dockerArgs = ParseInput.splitList(dockerArgString, ',');
             taskConfig.put("args", dockerArgs);
         }
 
-        if (!dockerLabelString.isEmpty()) {
+        if (!dockerLabels.isEmpty()) {
             List<Map<String, String>> labelList = new ArrayList<>();
-            labelList.add(ParseInput.kvToMap(dockerLabelString));
+            labelList.add(dockerLabels);
             taskConfig.put("labels", labelList);
         }
 
@@ -107,39 +121,39 @@ public class DockerTaskConfigProvider implements TaskConfigProvider {
         }
 
         if (!dockerNetworkAliasString.isEmpty()) {
-            String[] dockerNetworkAliases = dockerNetworkAliasString.split(",");
+            String[] dockerNetworkAliases = ParseInput.splitList(dockerNetworkAliasString, ',');
             taskConfig.put("network_aliases", dockerNetworkAliases);
         }
 
         if (!dockerExtraHostsString.isEmpty()) {
-            String[] dockerExtraHosts = dockerExtraHostsString.split(",");
+            String[] dockerExtraHosts = ParseInput.splitList(dockerExtraHostsString, ',');
             taskConfig.put("extra_hosts", dockerExtraHosts);
         }
 
         if (!dockerDnsSearchDomainsString.isEmpty()) {
-            String[] dockerDnsSearchDomains = dockerDnsSearchDomainsString.split(",");
+            String[] dockerDnsSearchDomains = ParseInput.splitList(dockerDnsSearchDomainsString, ',');
             taskConfig.put("dns_search_domains", dockerDnsSearchDomains);
         }
 
         if (!dockerDnsServersString.isEmpty()) {
-            String[] dockerDnsServers = dockerDnsServersString.split(",");
+            String[] dockerDnsServers = ParseInput.splitList(dockerDnsServersString, ',');
             taskConfig.put("dns_servers", dockerDnsServers);
         }
 
         if (!dockerVolumesString.isEmpty()) {
-            taskConfig.put("volumes", dockerVolumesString.split("\n"));
+            taskConfig.put("volumes", ParseInput.splitList(dockerVolumesString, '\n'));
         }
 
         if (!dockerVolumeDriver.isEmpty()) {
             taskConfig.put("volume_driver", dockerVolumeDriver);
         }
 
-        if (!dockerShmSize.isEmpty()) {
-            taskConfig.put("shm_size", Integer.parseInt(dockerShmSize));
+        if (dockerShmSize != null) {
+            taskConfig.put("shm_size", dockerShmSize);
         }
 
         if (!dockerSecurityOptString.isEmpty()) {
-            taskConfig.put("security_opt", dockerSecurityOptString.split(","));
+            taskConfig.put("security_opt", ParseInput.splitList(dockerSecurityOptString, ','));
         }
 
         Map<String, String> dockerAuth = new HashMap<>();
@@ -165,7 +179,7 @@ public class DockerTaskConfigProvider implements TaskConfigProvider {
 
             if (!dockerLogOpt.isEmpty()) {
                 List<Map<String, String>> logOptList = new ArrayList<>();
-                logOptList.add(ParseInput.kvToMap(dockerLogOpt));
+                logOptList.add(dockerLogOpt);
                 logging.put("config", logOptList);
             }
 
@@ -174,13 +188,17 @@ public class DockerTaskConfigProvider implements TaskConfigProvider {
             taskConfig.put("logging", loggingArr);
         }
 
-        if (!dockerPortMapString.isEmpty()) {
-            List<Map<String, String>> portMapList = new ArrayList<>();
-            portMapList.add(ParseInput.kvToMap(dockerPortMapString));
+        if (!dockerPortMap.isEmpty()) {
+            List<Map<String, Integer>> portMapList = new ArrayList<>();
+            portMapList.add(dockerPortMap);
             taskConfig.put("port_map", portMapList);
         }
 
         return taskConfig;
 
     }
+
+    private String getString(String key) {
+        return values.getString(key);
+    }
 }
@@ -0,0 +1,23 @@
+package io.github.valfadeev.rundeck.plugin.nomad.driver.java;
+
+import java.util.Map;
+
+import io.github.valfadeev.rundeck.plugin.nomad.common.DriverProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.common.PropertyComposer;
+import io.github.valfadeev.rundeck.plugin.nomad.common.SupportedDrivers;
+import io.github.valfadeev.rundeck.plugin.nomad.common.TaskConfigProvider;
+
+public class JavaDriverProvider implements DriverProvider {
+
+    public String getName() {
+        return SupportedDrivers.JAVA;
+    }
+
+    public PropertyComposer getPropertyComposer() {
+        return new JavaPropertyComposer();
+    }
+
+    public TaskConfigProvider getTaskConfigProvider(Map<String, Object> configuration) {
+        return new JavaTaskConfigProvider(configuration);
+    }
+}
@@ -4,44 +4,52 @@ import java.util.HashMap;
 import java.util.Map;
 
 import io.github.valfadeev.rundeck.plugin.nomad.common.TaskConfigProvider;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationReader;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
 
 public class JavaTaskConfigProvider implements TaskConfigProvider{
 
-    private Map<String, Object> configuration;
+    private final ConfigurationReader values;
 
-    public JavaTaskConfigProvider(Map<String, Object> configuration) {this.configuration = configuration; }
+    public JavaTaskConfigProvider(Map<String, Object> configuration) {
+        this.values = new ConfigurationReader(configuration);
+    }
 
     @Override
     public Map<String, Object> getConfig(Map<String, Object> config) {
         Map<String, Object> taskConfig = new HashMap<>();
 
-        String javaClass = this.configuration.get(JavaConfigOptions.JAVA_CLASS).toString();
+        String javaClass = getString(JavaConfigOptions.JAVA_CLASS);
         if (!javaClass.isEmpty()) {
             taskConfig.put("class", javaClass);
         }
 
-        String classPath = this.configuration.get(JavaConfigOptions.JAVA_CLASS_PATH).toString();
+        String classPath = getString(JavaConfigOptions.JAVA_CLASS_PATH);
         if (!classPath.isEmpty()) {
             taskConfig.put("class_path", classPath);
         }
 
-        String jarPath = this.configuration.get(JavaConfigOptions.JAVA_JAR_PATH).toString();
+        String jarPath = getString(JavaConfigOptions.JAVA_JAR_PATH);
         if (!jarPath.isEmpty()) {
             taskConfig.put("jar_path", jarPath);
         }
 
-        String javaArgsString = this.configuration.get(JavaConfigOptions.JAVA_ARGS).toString();
+        String javaArgsString = getString(JavaConfigOptions.JAVA_ARGS);
         if (!javaArgsString.isEmpty()) {
-            String[] javaArgs = javaArgsString.split(",");
+            String[] javaArgs = ParseInput.splitList(javaArgsString, ',');
             taskConfig.put("args", javaArgs);
         }
 
-        String jvmOptionsString = this.configuration.get(JavaConfigOptions.JAVA_JVM_OPTIONS).toString();
+        String jvmOptionsString = getString(JavaConfigOptions.JAVA_JVM_OPTIONS);
         if (!jvmOptionsString.isEmpty()) {
-            String[] jvmOptions = jvmOptionsString.split(",");
-            taskConfig.put("args", jvmOptions);
+            String[] jvmOptions = ParseInput.splitList(jvmOptionsString, ',');
+            taskConfig.put("jvm_options", jvmOptions);
         }
 
         return taskConfig;
     }
+
+    private String getString(String key) {
+        return values.getString(key);
+    }
 }
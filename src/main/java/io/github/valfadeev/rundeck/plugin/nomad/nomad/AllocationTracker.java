@@ -0,0 +1,127 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+
+/**
+ * Keeps running counts of allocations per client status.
+ *
+ * Only allocations whose ModifyIndex moved past the highest index seen
+ * so far are looked up and applied. The others only need to be known:
+ * Nomad lists allocations in the same order every time, so an id at the
+ * same position as in the previous response is known without a lookup.
+ */
+public class AllocationTracker {
+
+    public static final String STATUS_PENDING = "pending";
+    public static final String STATUS_COMPLETE = "complete";
+    public static final String STATUS_FAILED = "failed";
+
+    private final Map<String, AllocationListStub> allocations = new LinkedHashMap<>();
+    private final Map<String, Integer> statusCounts = new HashMap<>();
+    private BigInteger highWater;
+    // the ids of the previous response by position, every one of them
+    // in allocations
+    private String[] ids = new String[0];
+
+    /**
+     * Applies the allocations which changed since the previous update.
+     *
+     * @return the number of allocations which were new or changed
+     */
+    public int update(List<AllocationListStub> allocs) {
+        BigInteger seen = highWater;
+        int size = allocs.size();
+        if (ids.length < size) {
+            ids = Arrays.copyOf(ids, size);
+        }
+        int changed = 0;
+        for (int i = 0; i < size; i++) {
+            AllocationListStub alloc = allocs.get(i);
+            String id = alloc.getId();
+            BigInteger index = alloc.getModifyIndex();
+            boolean skip = seen != null && index != null && index.compareTo(seen) <= 0
+                    // every change up to the highest index seen was in an
+                    // earlier response and has been applied already, unless
+                    // the allocation is one an earlier, stale read left out
+                    && (id.equals(ids[i]) || allocations.containsKey(id));
+            ids[i] = id;
+            if (skip) {
+                continue;
+            }
+            if (apply(alloc)) {
+                changed++;
+            }
+            if (index != null && (highWater == null || index.compareTo(highWater) > 0)) {
+                highWater = index;
+            }
+        }
+        return changed;
+    }
+
+    public int getTotal() {
+        return allocations.size();
+    }
+
+    public int getCount(String clientStatus) {
+        return statusCounts.getOrDefault(clientStatus, 0);
+    }
+
+    public boolean allFinished() {
+        return getCount(STATUS_COMPLETE) + getCount(STATUS_FAILED) == getTotal();
+    }
+
+    public boolean failedOver(long thresholdPct) {
+        int total = getTotal();
+        if (total == 0) {
+            return false;
+        }
+        return (long) getCount(STATUS_FAILED) * 100 / total > thresholdPct;
+    }
+
+    public Collection<AllocationListStub> getAllocations() {
+        return Collections.unmodifiableCollection(allocations.values());
+    }
+
+    private boolean apply(AllocationListStub alloc) {
+        AllocationListStub previous = allocations.get(alloc.getId());
+        if (previous == null) {
+            allocations.put(alloc.getId(), alloc);
+            adjust(alloc.getClientStatus(), 1);
+            return true;
+        }
+        if (!isNewer(alloc, previous)) {
+            return false;
+        }
+        allocations.put(alloc.getId(), alloc);
+        if (!String.valueOf(alloc.getClientStatus())
+                .equals(String.valueOf(previous.getClientStatus()))) {
+            adjust(previous.getClientStatus(), -1);
+            adjust(alloc.getClientStatus(), 1);
+        }
+        return true;
+    }
+
+    private void adjust(String clientStatus, int delta) {
+        statusCounts.merge(String.valueOf(clientStatus), delta, Integer::sum);
+    }
+
+    private static boolean isNewer(AllocationListStub alloc, AllocationListStub previous) {
+        BigInteger index = alloc.getModifyIndex();
+        BigInteger previousIndex = previous.getModifyIndex();
+        if (index == null || previousIndex == null) {
+            // no index to go by, fall back to comparing the status
+            return !String.valueOf(alloc.getClientStatus())
+                    .equals(String.valueOf(previous.getClientStatus()));
+        }
+        return index.compareTo(previousIndex) > 0;
+    }
+}
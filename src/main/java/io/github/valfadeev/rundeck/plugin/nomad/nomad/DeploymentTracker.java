@@ -0,0 +1,105 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.hashicorp.nomad.apimodel.Deployment;
+import com.hashicorp.nomad.apimodel.DeploymentState;
+
+/**
+ * Follows the rollout of a service job through the updates of its
+ * deployment, and reports the progress of each task group once per
+ * change.
+ */
+public class DeploymentTracker {
+
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_PAUSED = "paused";
+    public static final String STATUS_SUCCESSFUL = "successful";
+
+    private Deployment deployment;
+    private final Map<String, String> reported = new HashMap<>();
+
+    /**
+     * Applies the latest state of the deployment.
+     *
+     * @return a line for every task group whose counts changed since the
+     *         previous update, in group order
+     */
+    public List<String> update(Deployment deployment) {
+        this.deployment = deployment;
+        List<String> changed = new ArrayList<>();
+        getTaskGroups().forEach((group, state) -> {
+            String progress = describe(state);
+            if (!progress.equals(reported.put(group, progress))) {
+                changed.add(String.format("%s: %s", group, progress));
+            }
+        });
+        return changed;
+    }
+
+    public Deployment getDeployment() {
+        return deployment;
+    }
+
+    /**
+     * @return whether the deployment has ended, successfully or not; a
+     *         paused deployment has not
+     */
+    public boolean isFinished() {
+        return deployment != null
+                && !STATUS_RUNNING.equals(deployment.getStatus())
+                && !STATUS_PAUSED.equals(deployment.getStatus());
+    }
+
+    public boolean isSuccessful() {
+        return deployment != null && STATUS_SUCCESSFUL.equals(deployment.getStatus());
+    }
+
+    /**
+     * @return whether the deployment only waits for its canaries to be
+     *         promoted: every task group with canaries has placed them
+     *         all, they are all healthy, and one of them is not promoted
+     */
+    public boolean canPromote() {
+        if (deployment == null || !STATUS_RUNNING.equals(deployment.getStatus())) {
+            return false;
+        }
+        boolean unpromoted = false;
+        for (DeploymentState state : getTaskGroups().values()) {
+            if (state.getDesiredCanaries() == 0 || state.getPromoted()) {
+                continue;
+            }
+            int placed = state.getPlacedCanaries() == null ? 0 : state.getPlacedCanaries().size();
+            if (placed < state.getDesiredCanaries()
+                    || state.getHealthyAllocs() < state.getDesiredCanaries()) {
+                return false;
+            }
+            unpromoted = true;
+        }
+        return unpromoted;
+    }
+
+    private Map<String, DeploymentState> getTaskGroups() {
+        if (deployment == null || deployment.getTaskGroups() == null) {
+            return Collections.emptyMap();
+        }
+        return new TreeMap<>(deployment.getTaskGroups());
+    }
+
+    private static String describe(DeploymentState state) {
+        String progress = String.format("%d/%d placed, %d healthy, %d unhealthy",
+                state.getPlacedAllocs(), state.getDesiredTotal(),
+                state.getHealthyAllocs(), state.getUnhealthyAllocs());
+        if (state.getDesiredCanaries() > 0) {
+            int placed = state.getPlacedCanaries() == null ? 0 : state.getPlacedCanaries().size();
+            progress += String.format(", %d/%d canaries%s", placed, state.getDesiredCanaries(),
+                    state.getPromoted() ? " promoted" : "");
+        }
+        return progress;
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.hashicorp.nomad.apimodel.StreamFrame;
+
+/**
+ * Turns the frames of a task log stream into lines.
+ *
+ * The offset reached in every log file is remembered, so that frames
+ * which are sent again after the stream has been reopened are skipped.
+ * A line is passed on once it is complete, or once it reaches the
+ * maximum line length, which bounds the memory held per stream.
+ */
+class LogFollower {
+
+    private final Consumer<String> sink;
+    private final int maxLineLength;
+    private final Map<String, Long> offsets = new HashMap<>();
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    LogFollower(Consumer<String> sink, int maxLineLength) {
+        this.sink = sink;
+        this.maxLineLength = maxLineLength;
+    }
+
+    void accept(StreamFrame frame) {
+        String file = String.valueOf(frame.getFile());
+        if (frame.getFileEvent() != null && !frame.getFileEvent().isEmpty()) {
+            // the file was truncated or deleted, it starts over
+            offsets.remove(file);
+            return;
+        }
+        byte[] data = frame.getData();
+        if (data == null || data.length == 0) {
+            // heartbeat
+            return;
+        }
+
+        // the frame offset is where the data ends in the file
+        long end = frame.getOffset();
+        long start = end - data.length;
+        long seen = offsets.getOrDefault(file, 0L);
+        int skip = (int) Math.max(0, Math.min(data.length, seen - start));
+        for (int i = skip; i < data.length; i++) {
+            if (data[i] == '\n') {
+                emit();
+            } else {
+                line.write(data[i]);
+                if (line.size() >= maxLineLength) {
+                    emit();
+                }
+            }
+        }
+        offsets.put(file, Math.max(seen, end));
+    }
+
+    void flush() {
+        if (line.size() > 0) {
+            emit();
+        }
+    }
+
+    private void emit() {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        if (text.endsWith("\r")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        sink.accept(text);
+    }
+}
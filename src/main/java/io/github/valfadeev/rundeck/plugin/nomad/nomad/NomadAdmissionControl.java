@@ -0,0 +1,237 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-cluster admission of steps to Nomad, so that a schedule firing many
+ * steps at once feeds the scheduler at a steady pace.
+ *
+ * A step is admitted when the cluster has a registration token and an
+ * in-flight slot to spare. Tokens refill at the configured rate up to the
+ * burst size; a slot is held until the step's job has finished. Steps
+ * which have to wait queue per Rundeck project, and the projects take
+ * turns, so that one project firing hundreds of steps does not starve
+ * the others.
+ */
+public class NomadAdmissionControl {
+
+    public static final int DEFAULT_BURST = 10;
+
+    private static final ConcurrentMap<String, NomadAdmissionControl> clusters =
+            new ConcurrentHashMap<>();
+
+    // guarded by this
+    private double rate = 0;
+    private int burst = DEFAULT_BURST;
+    private int maxInFlight = 0;
+    private double tokens = DEFAULT_BURST;
+    private long refilledAt = System.nanoTime();
+    private int inFlight = 0;
+    private int waiting = 0;
+    private final Map<String, ArrayDeque<Waiter>> queues = new HashMap<>();
+    // projects with waiting steps, in the order they take turns
+    private final ArrayDeque<String> turns = new ArrayDeque<>();
+
+    public static NomadAdmissionControl forCluster(String cluster) {
+        return clusters.computeIfAbsent(cluster, k -> new NomadAdmissionControl());
+    }
+
+    /**
+     * @return the number of steps waiting to be admitted, by cluster
+     */
+    public static Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        clusters.forEach((cluster, control) -> depths.put(cluster, control.getQueueDepth()));
+        return Collections.unmodifiableMap(depths);
+    }
+
+    /**
+     * @return the number of admitted steps whose jobs have not finished,
+     *         by cluster
+     */
+    public static Map<String, Integer> getInFlightCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        clusters.forEach((cluster, control) -> counts.put(cluster, control.getInFlight()));
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Applies the limits of the latest configuration; 0 turns a limit off.
+     *
+     * @param rate registrations per second
+     * @param burst registrations let through at once after a quiet period
+     * @param maxInFlight jobs admitted and not yet finished
+     */
+    public synchronized void setLimits(double rate, int burst, int maxInFlight) {
+        refill(System.nanoTime());
+        this.rate = rate;
+        this.burst = Math.max(burst, 1);
+        this.maxInFlight = maxInFlight;
+        this.tokens = Math.min(tokens, this.burst);
+        dispatch();
+    }
+
+    /**
+     * Waits until the step may submit its job. The returned ticket holds
+     * an in-flight slot until it is closed.
+     *
+     * @param project the Rundeck project the step runs in, which it
+     *                queues under
+     */
+    public Ticket admit(String project) throws InterruptedException {
+        String key = project == null ? "" : project;
+        synchronized (this) {
+            if (waiting == 0 && canGrant(System.nanoTime())) {
+                grant();
+                return new Ticket(this);
+            }
+
+            Waiter waiter = new Waiter();
+            ArrayDeque<Waiter> queue = queues.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (queue.isEmpty()) {
+                turns.addLast(key);
+            }
+            queue.addLast(waiter);
+            waiting++;
+            try {
+                while (!waiter.granted) {
+                    dispatch();
+                    if (!waiter.granted) {
+                        long nanos = getTokenDelay();
+                        if (nanos > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                        } else {
+                            wait();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    // admitted just now, hand the slot on
+                    release();
+                } else {
+                    remove(key, waiter);
+                }
+                throw e;
+            }
+            return new Ticket(this);
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return waiting;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Admits waiting steps while there are tokens and slots, one project
+     * at a time.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        while (!turns.isEmpty() && canGrant(System.nanoTime())) {
+            String project = turns.pollFirst();
+            ArrayDeque<Waiter> queue = queues.get(project);
+            Waiter waiter = queue.pollFirst();
+            if (queue.isEmpty()) {
+                queues.remove(project);
+            } else {
+                turns.addLast(project);
+            }
+            waiting--;
+            grant();
+            waiter.granted = true;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    private boolean canGrant(long now) {
+        refill(now);
+        return (maxInFlight <= 0 || inFlight < maxInFlight)
+                && (rate <= 0 || tokens >= 1);
+    }
+
+    private void grant() {
+        inFlight++;
+        if (rate > 0) {
+            tokens -= 1;
+        }
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + rate * (now - refilledAt) / TimeUnit.SECONDS.toNanos(1));
+        }
+        refilledAt = now;
+    }
+
+    /**
+     * @return nanoseconds until the next token, or 0 if waiting for a
+     *         token is not what holds the queue up
+     */
+    private long getTokenDelay() {
+        if (rate <= 0 || tokens >= 1 || maxInFlight > 0 && inFlight >= maxInFlight) {
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    private void remove(String project, Waiter waiter) {
+        ArrayDeque<Waiter> queue = queues.get(project);
+        if (queue != null && queue.remove(waiter)) {
+            waiting--;
+            if (queue.isEmpty()) {
+                queues.remove(project);
+                turns.remove(project);
+            }
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        dispatch();
+        // waiters sleeping on a token delay recheck the slots as well
+        notifyAll();
+    }
+
+    private static class Waiter {
+        private boolean granted = false;
+    }
+
+    /**
+     * An admitted step's in-flight slot, given back on close.
+     */
+    public static class Ticket implements AutoCloseable {
+
+        private final NomadAdmissionControl control;
+        private boolean closed = false;
+
+        private Ticket(NomadAdmissionControl control) {
+            this.control = control;
+        }
+
+        @Override
+        public void close() {
+            synchronized (control) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                control.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.hashicorp.nomad.javasdk.NomadException;
+
+/**
+ * Per-cluster cache of the agent configuration returned by /v1/agent/self.
+ *
+ * An entry younger than the TTL is served as is. An entry older than the
+ * TTL but still within the stale window is served immediately while a
+ * single background refresh is started. Older entries are reloaded on the
+ * calling thread, with concurrent callers for the same cluster waiting for
+ * that one load.
+ */
+public class NomadAgentConfigCache {
+
+    public static final long DEFAULT_TTL = 60;
+    public static final long DEFAULT_STALE_TTL = 300;
+
+    @FunctionalInterface
+    public interface Loader {
+        Map<String, Object> load() throws IOException, NomadException;
+    }
+
+    private static final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    private static final ExecutorService refresher =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "nomad-agent-config-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+
+    public static Map<String, Object> get(String cluster,
+                                          long ttlMillis,
+                                          long staleMillis,
+                                          Loader loader)
+            throws IOException, NomadException {
+
+        Slot slot = slots.computeIfAbsent(cluster, k -> new Slot());
+
+        Entry entry = slot.entry;
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            long age = now - entry.loadedAt;
+            if (age < ttlMillis) {
+                return entry.config;
+            }
+            if (age < ttlMillis + staleMillis) {
+                refreshInBackground(slot, loader);
+                return entry.config;
+            }
+        }
+
+        synchronized (slot) {
+            // another caller may have reloaded the entry while we waited
+            entry = slot.entry;
+            if (entry != null
+                    && System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+                return entry.config;
+            }
+            entry = new Entry(loader.load());
+            slot.entry = entry;
+            return entry.config;
+        }
+    }
+
+    public static void invalidate(String cluster) {
+        slots.remove(cluster);
+    }
+
+    public static void invalidateAll() {
+        slots.clear();
+    }
+
+    private static void refreshInBackground(Slot slot, Loader loader) {
+        if (!slot.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.submit(() -> {
+            try {
+                Entry entry = new Entry(loader.load());
+                synchronized (slot) {
+                    slot.entry = entry;
+                }
+            } catch (Exception e) {
+                // keep serving the stale entry, it is reloaded
+                // synchronously once it leaves the stale window
+            } finally {
+                slot.refreshing.set(false);
+            }
+        });
+    }
+
+    private static class Slot {
+        private volatile Entry entry;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    }
+
+    private static class Entry {
+        private final Map<String, Object> config;
+        private final long loadedAt = System.currentTimeMillis();
+
+        Entry(Map<String, Object> config) {
+            this.config = Collections.unmodifiableMap(new HashMap<>(config));
+        }
+    }
+}
@@ -31,14 +31,16 @@ public abstract class NomadAllocationPredicates {
     }
 
     public static Predicate<List<AllocationListStub>> allAllocationsFinished() {
-        return allocs -> allocs.stream().allMatch(a -> allocationFinishedRunning().apply(a));
+        final Predicate<AllocationListStub> finished = allocationFinishedRunning();
+        return allocs -> allocs.stream().allMatch(finished::apply);
     }
 
     public static Predicate<List<AllocationListStub>> failedAllocationsOver(Long threshold) {
+        final Predicate<AllocationListStub> failedAlloc = allocationHasFailed();
         return allocs -> {
             long failed = allocs
                     .stream()
-                    .filter(a -> allocationHasFailed().apply(a))
+                    .filter(failedAlloc::apply)
                     .count();
             long total = allocs.size();
             long failPct = (long) ((float) failed / total * 100);
@@ -0,0 +1,192 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.Predicate;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import com.hashicorp.nomad.javasdk.WaitStrategy;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+
+/**
+ * Non-blocking counterpart of {@link NomadBlockingQuery}.
+ *
+ * Every response is handled on the {@link NomadStepEngine} scheduler,
+ * which also issues the next request, so no thread is held while a
+ * request is outstanding. {@link #waitUntil(Predicate)} checks the
+ * condition on the waiting step's own thread; the condition given to
+ * {@link #waitUntilAsync(Predicate)} runs on the scheduler and must be
+ * quick.
+ */
+public class NomadAsyncBlockingQuery<T> implements NomadWatch<T> {
+
+    @FunctionalInterface
+    public interface Query<T> {
+        CompletableFuture<ServerQueryResponse<T>> execute(QueryOptions<T> options);
+    }
+
+    private final Query<T> query;
+    private final WaitStrategy longPoll;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxRetries;
+
+    private volatile BigInteger index;
+    private volatile CompletableFuture<ServerQueryResponse<T>> inFlight;
+    private volatile ServerQueryResponse<T> lastResponse;
+    private final AtomicLong requests = new AtomicLong();
+
+    public NomadAsyncBlockingQuery(Query<T> query,
+                                   long waitMillis,
+                                   long backoffMillis,
+                                   long maxBackoffMillis,
+                                   int maxRetries) {
+        this.query = query;
+        this.longPoll = NomadBlockingQuery.fixedWait(waitMillis);
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxRetries = maxRetries;
+    }
+
+    public static <T> NomadAsyncBlockingQuery<T> create(Map<String, Object> configuration,
+                                                        Query<T> query) {
+        return create(configuration, Long.MAX_VALUE, query);
+    }
+
+    /**
+     * Like {@link #create(Map, Query)}, with the long-poll window capped,
+     * so that the condition is checked at least that often.
+     */
+    public static <T> NomadAsyncBlockingQuery<T> create(Map<String, Object> configuration,
+                                                        long maxWaitMillis,
+                                                        Query<T> query) {
+        long waitMillis = TimeUnit.SECONDS.toMillis(ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_BLOCKING_QUERY_WAIT,
+                NomadBlockingQuery.DEFAULT_WAIT));
+        return new NomadAsyncBlockingQuery<>(query,
+                Math.min(maxWaitMillis, waitMillis),
+                ConfigurationValues.getLong(configuration,
+                        NomadConfigOptions.NOMAD_RETRY_BACKOFF,
+                        NomadBlockingQuery.DEFAULT_RETRY_BACKOFF),
+                ConfigurationValues.getLong(configuration,
+                        NomadConfigOptions.NOMAD_RETRY_MAX_BACKOFF,
+                        NomadBlockingQuery.DEFAULT_RETRY_MAX_BACKOFF),
+                ConfigurationValues.getInt(configuration,
+                        NomadConfigOptions.NOMAD_MAX_RETRIES,
+                        NomadBlockingQuery.DEFAULT_MAX_RETRIES));
+    }
+
+    /**
+     * Waits for responses until the watched value satisfies the
+     * condition, which is checked on the calling thread rather than on
+     * the shared scheduler.
+     */
+    @Override
+    public ServerQueryResponse<T> waitUntil(Predicate<? super T> condition)
+            throws IOException, NomadException, InterruptedException {
+        while (true) {
+            ServerQueryResponse<T> response = NomadStepEngine.await(waitUntilAsync(value -> true));
+            if (condition.apply(response.getValue())) {
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Issues blocking queries until the watched value satisfies the
+     * condition. Cancelling the returned future aborts the request in
+     * flight and stops issuing new ones.
+     */
+    public CompletableFuture<ServerQueryResponse<T>> waitUntilAsync(Predicate<? super T> condition) {
+        CompletableFuture<ServerQueryResponse<T>> result = new CompletableFuture<>();
+        result.whenComplete((response, error) -> {
+            CompletableFuture<ServerQueryResponse<T>> request = inFlight;
+            if (result.isCancelled() && request != null) {
+                request.cancel(true);
+            }
+        });
+        NomadStepEngine.getScheduler().execute(() -> issue(condition, result, 0));
+        return result;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public BigInteger getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the latest response, which is also the one the condition
+     * is being checked against while it runs.
+     */
+    public ServerQueryResponse<T> getLastResponse() {
+        return lastResponse;
+    }
+
+    private void issue(Predicate<? super T> condition,
+                       CompletableFuture<ServerQueryResponse<T>> result,
+                       int attempt) {
+        if (result.isDone()) {
+            return;
+        }
+        QueryOptions<T> options = new QueryOptions<T>()
+                .setIndex(index)
+                .setWaitStrategy(longPoll);
+        requests.incrementAndGet();
+
+        CompletableFuture<ServerQueryResponse<T>> request;
+        try {
+            request = query.execute(options);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        inFlight = request;
+        if (result.isCancelled()) {
+            request.cancel(true);
+            return;
+        }
+
+        request.whenCompleteAsync((response, error) -> {
+            if (result.isDone()) {
+                return;
+            }
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                if (attempt >= maxRetries) {
+                    result.completeExceptionally(cause);
+                } else {
+                    NomadStepEngine.getScheduler().schedule(
+                            () -> issue(condition, result, attempt + 1),
+                            NomadBlockingQuery.backoff(backoffMillis, maxBackoffMillis, attempt),
+                            TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            try {
+                index = NomadBlockingQuery.nextIndex(index, response.getIndex());
+                lastResponse = response;
+                if (condition.apply(response.getValue())) {
+                    result.complete(response);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            issue(condition, result, 0);
+        }, NomadStepEngine.getScheduler());
+    }
+}
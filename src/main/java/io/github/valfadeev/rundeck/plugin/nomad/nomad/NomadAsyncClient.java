@@ -0,0 +1,207 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Deployment;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import com.hashicorp.nomad.javasdk.WaitStrategyExhaustedException;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Non-blocking client for the Nomad queries the step waits on.
+ *
+ * Requests are multiplexed over a few I/O reactor threads, so an
+ * outstanding blocking query does not hold a thread while the server
+ * keeps it open. Each query goes to the endpoint the router currently
+ * ranks first; a query which fails, or which is answered with a 5xx
+ * status, takes its endpoint out of rotation, so that the retry goes
+ * elsewhere.
+ */
+public class NomadAsyncClient implements Closeable {
+
+    private static final String X_NOMAD_TOKEN = "X-Nomad-Token";
+    private static final ResponseContentEncoding CONTENT_DECODER = new ResponseContentEncoding();
+
+    @FunctionalInterface
+    public interface Parser<T> {
+        T parse(String json) throws IOException;
+    }
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final NomadEndpointRouter router;
+    private final String authToken;
+    private final String namespace;
+
+    public NomadAsyncClient(CloseableHttpAsyncClient httpClient, String address, String authToken) {
+        this(httpClient,
+                new NomadEndpointRouter(Collections.singletonList(address),
+                        NomadEndpointRouter.DEFAULT_PROBE_INTERVAL),
+                authToken);
+    }
+
+    public NomadAsyncClient(CloseableHttpAsyncClient httpClient,
+                            NomadEndpointRouter router,
+                            String authToken) {
+        this(httpClient, router, authToken, null);
+    }
+
+    /**
+     * @param namespace the namespace every query is scoped to, or null
+     *                  for the default one
+     */
+    public NomadAsyncClient(CloseableHttpAsyncClient httpClient,
+                            NomadEndpointRouter router,
+                            String authToken,
+                            String namespace) {
+        this.httpClient = httpClient;
+        this.router = router;
+        this.authToken = authToken;
+        this.namespace = namespace;
+    }
+
+    public CompletableFuture<ServerQueryResponse<Evaluation>> evaluation(
+            String evalId, QueryOptions<Evaluation> options) {
+        return query("/v1/evaluation/" + evalId, options, Evaluation::fromJson);
+    }
+
+    public CompletableFuture<ServerQueryResponse<Deployment>> deployment(
+            String deploymentId, QueryOptions<Deployment> options) {
+        return query("/v1/deployment/" + deploymentId, options, Deployment::fromJson);
+    }
+
+    public CompletableFuture<ServerQueryResponse<List<AllocationListStub>>> evaluationAllocations(
+            String evalId, QueryOptions<List<AllocationListStub>> options) {
+        return query("/v1/evaluation/" + evalId + "/allocations", options,
+                AllocationListStub::fromJsonArray);
+    }
+
+    public CompletableFuture<ServerQueryResponse<List<AllocationListStub>>> jobAllocations(
+            String jobId, QueryOptions<List<AllocationListStub>> options) {
+        return query("/v1/job/" + jobId + "/allocations", options,
+                AllocationListStub::fromJsonArray);
+    }
+
+    public CompletableFuture<ServerQueryResponse<List<Evaluation>>> evaluations(
+            QueryOptions<List<Evaluation>> options) {
+        return query("/v1/evaluations", options, Evaluation::fromJsonArray);
+    }
+
+    public CompletableFuture<ServerQueryResponse<List<AllocationListStub>>> allocations(
+            QueryOptions<List<AllocationListStub>> options) {
+        return query("/v1/allocations", options, AllocationListStub::fromJsonArray);
+    }
+
+    /**
+     * Issues a GET request, completing the returned future with the
+     * parsed response. Cancelling the future aborts the request.
+     */
+    public <T> CompletableFuture<ServerQueryResponse<T>> query(String path,
+                                                               QueryOptions<T> options,
+                                                               Parser<T> parser) {
+        CompletableFuture<ServerQueryResponse<T>> result = new CompletableFuture<>();
+        NomadEndpointRouter.Endpoint endpoint = router.readOrder().get(0);
+        HttpGet request;
+        try {
+            request = new HttpGet(buildUri(endpoint.getAddress(), path, options).build());
+        } catch (URISyntaxException e) {
+            result.completeExceptionally(new IOException(e));
+            return result;
+        } catch (WaitStrategyExhaustedException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        if (authToken != null) {
+            request.setHeader(X_NOMAD_TOKEN, authToken);
+        }
+
+        long started = System.nanoTime();
+        Future<HttpResponse> pending = httpClient.execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                if (response.getStatusLine().getStatusCode() >= 500) {
+                    // the server answered but is in trouble
+                    router.markFailed(endpoint);
+                } else {
+                    if (options.getIndex() == null) {
+                        endpoint.recordSuccess(System.nanoTime() - started);
+                    }
+                    endpoint.markUp();
+                }
+                try {
+                    // the async client only buffers the body after its
+                    // response interceptors ran, so decode it here
+                    CONTENT_DECODER.process(response, HttpClientContext.create());
+                    String body = EntityUtils.toString(response.getEntity());
+                    int status = response.getStatusLine().getStatusCode();
+                    if (status != 200) {
+                        throw new HttpResponseException(status,
+                                String.format("%s returned %d: %s", path, status, body));
+                    }
+                    result.complete(new ServerQueryResponse<>(response, body, parser.parse(body)));
+                } catch (IOException | HttpException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                router.markFailed(endpoint);
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                pending.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    private URIBuilder buildUri(String address, String path, QueryOptions<?> options)
+            throws URISyntaxException, WaitStrategyExhaustedException {
+        URIBuilder uri = new URIBuilder((address.endsWith("/")
+                ? address.substring(0, address.length() - 1)
+                : address) + path);
+        if (options.getIndex() != null) {
+            uri.addParameter("index", options.getIndex().toString());
+        }
+        if (options.getWaitStrategy() != null) {
+            uri.addParameter("wait", options.getWaitStrategy().getWait());
+        }
+        if (options.getRegion() != null) {
+            uri.addParameter("region", options.getRegion());
+        }
+        if (namespace != null) {
+            uri.addParameter("namespace", namespace);
+        }
+        return uri;
+    }
+}
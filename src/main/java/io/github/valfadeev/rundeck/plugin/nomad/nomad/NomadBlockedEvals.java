@@ -0,0 +1,91 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-cluster count of the blocked evaluations steps are waiting on.
+ *
+ * A cluster with many blocked evaluations has no room for more work, and
+ * every new job would only add another one. Steps hold back their
+ * submission while the count is at the limit, which spreads a burst of
+ * steps over the time the cluster needs to work through it.
+ */
+public class NomadBlockedEvals {
+
+    private static final ConcurrentMap<String, Counter> clusters = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a blocked evaluation until the returned handle is closed.
+     */
+    public static Handle blocked(String cluster) {
+        Counter counter = counter(cluster);
+        synchronized (counter) {
+            counter.count++;
+        }
+        return new Handle(counter);
+    }
+
+    public static int getCount(String cluster) {
+        Counter counter = counter(cluster);
+        synchronized (counter) {
+            return counter.count;
+        }
+    }
+
+    /**
+     * Waits until fewer than {@code max} evaluations are blocked on the
+     * cluster, for at most the given time.
+     *
+     * @return whether the count went below the limit in time; always true
+     *         for a limit of 0
+     */
+    public static boolean awaitRoom(String cluster, int max, long timeoutMillis)
+            throws InterruptedException {
+        if (max <= 0) {
+            return true;
+        }
+        Counter counter = counter(cluster);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (counter) {
+            long remaining;
+            while (counter.count >= max) {
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                counter.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private static Counter counter(String cluster) {
+        return clusters.computeIfAbsent(cluster, k -> new Counter());
+    }
+
+    public static class Handle implements AutoCloseable {
+
+        private final Counter counter;
+        private boolean closed = false;
+
+        private Handle(Counter counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public void close() {
+            synchronized (counter) {
+                if (!closed) {
+                    closed = true;
+                    counter.count--;
+                    counter.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static class Counter {
+        private int count = 0;
+    }
+}
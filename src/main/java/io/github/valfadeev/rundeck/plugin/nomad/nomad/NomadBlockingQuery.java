@@ -0,0 +1,183 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.Predicate;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import com.hashicorp.nomad.javasdk.WaitStrategy;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+
+/**
+ * Watches a single Nomad object with blocking queries.
+ *
+ * Every request carries the last seen X-Nomad-Index, so the server holds
+ * it until the object changes or the long-poll window runs out, which
+ * keeps one request outstanding per watched object. Failed requests are
+ * retried after an exponential backoff with full jitter.
+ */
+public class NomadBlockingQuery<T> implements NomadWatch<T> {
+
+    public static final long DEFAULT_WAIT = 300;
+    public static final long DEFAULT_RETRY_BACKOFF = 500;
+    public static final long DEFAULT_RETRY_MAX_BACKOFF = 30000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    @FunctionalInterface
+    public interface Query<T> {
+        ServerQueryResponse<T> execute(QueryOptions<T> options)
+                throws IOException, NomadException;
+    }
+
+    private final Query<T> query;
+    private final WaitStrategy longPoll;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final int maxRetries;
+
+    private BigInteger index;
+    private long requests = 0;
+
+    public NomadBlockingQuery(Query<T> query,
+                              long waitMillis,
+                              long backoffMillis,
+                              long maxBackoffMillis,
+                              int maxRetries) {
+        this.query = query;
+        this.longPoll = fixedWait(waitMillis);
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxRetries = maxRetries;
+    }
+
+    public static <T> NomadBlockingQuery<T> create(Map<String, Object> configuration,
+                                                   Query<T> query) {
+        return create(configuration, Long.MAX_VALUE, query);
+    }
+
+    /**
+     * Like {@link #create(Map, Query)}, with the long-poll window capped,
+     * so that the condition is checked at least that often.
+     */
+    public static <T> NomadBlockingQuery<T> create(Map<String, Object> configuration,
+                                                   long maxWaitMillis,
+                                                   Query<T> query) {
+        long waitMillis = TimeUnit.SECONDS.toMillis(ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_BLOCKING_QUERY_WAIT,
+                DEFAULT_WAIT));
+        return new NomadBlockingQuery<>(query,
+                Math.min(maxWaitMillis, waitMillis),
+                ConfigurationValues.getLong(configuration,
+                        NomadConfigOptions.NOMAD_RETRY_BACKOFF,
+                        DEFAULT_RETRY_BACKOFF),
+                ConfigurationValues.getLong(configuration,
+                        NomadConfigOptions.NOMAD_RETRY_MAX_BACKOFF,
+                        DEFAULT_RETRY_MAX_BACKOFF),
+                ConfigurationValues.getInt(configuration,
+                        NomadConfigOptions.NOMAD_MAX_RETRIES,
+                        DEFAULT_MAX_RETRIES));
+    }
+
+    /**
+     * Issues blocking queries until the watched value satisfies the condition.
+     */
+    @Override
+    public ServerQueryResponse<T> waitUntil(Predicate<? super T> condition)
+            throws IOException, NomadException, InterruptedException {
+        while (true) {
+            ServerQueryResponse<T> response = next();
+            if (condition.apply(response.getValue())) {
+                return response;
+            }
+        }
+    }
+
+    /**
+     * Issues one blocking query at the last seen index, retrying on failure.
+     */
+    public ServerQueryResponse<T> next()
+            throws IOException, NomadException, InterruptedException {
+        int attempt = 0;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            QueryOptions<T> options = new QueryOptions<T>()
+                    .setIndex(index)
+                    .setWaitStrategy(longPoll);
+            requests++;
+            try {
+                ServerQueryResponse<T> response = query.execute(options);
+                advanceIndex(response.getIndex());
+                return response;
+            } catch (IOException | NomadException e) {
+                if (Thread.interrupted()) {
+                    // the request failed because the step was aborted
+                    throw new InterruptedException();
+                }
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                Thread.sleep(backoff(attempt++));
+            }
+        }
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests;
+    }
+
+    public BigInteger getIndex() {
+        return index;
+    }
+
+    private void advanceIndex(BigInteger responseIndex) {
+        index = nextIndex(index, responseIndex);
+    }
+
+    long backoff(int attempt) {
+        return backoff(backoffMillis, maxBackoffMillis, attempt);
+    }
+
+    /**
+     * Returns the index to block on after a response with the given index.
+     */
+    static BigInteger nextIndex(BigInteger index, BigInteger responseIndex) {
+        if (responseIndex == null) {
+            return index;
+        }
+        if (index != null && responseIndex.compareTo(index) < 0) {
+            // the index went backwards, e.g. after a snapshot restore:
+            // start over rather than block on an index that won't come
+            return null;
+        } else if (responseIndex.signum() <= 0) {
+            // an index of 0 never blocks
+            return BigInteger.ONE;
+        }
+        return responseIndex;
+    }
+
+    /**
+     * Exponential backoff with full jitter.
+     */
+    static long backoff(long backoffMillis, long maxBackoffMillis, int attempt) {
+        long ceiling = Math.min(maxBackoffMillis,
+                backoffMillis << Math.min(attempt, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    static WaitStrategy fixedWait(final long waitMillis) {
+        return new WaitStrategy() {
+            @Override
+            public String getWait() {
+                return String.format("%dms", waitMillis);
+            }
+        };
+    }
+}
@@ -0,0 +1,454 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadApiConfiguration;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Process-wide registry of Nomad API clients, one per cluster address,
+ * credential set, namespace and transport settings, so that consecutive
+ * steps reuse keep-alive connections instead of opening (and leaking) a
+ * new connection pool on every run.
+ *
+ * Clients are handed out as leases; a client which has no outstanding
+ * leases for longer than its idle timeout is closed, along with its
+ * async client and watcher, by a background sweeper. The sweeper only
+ * runs while there are clients, and its daemon thread exits once they
+ * are all closed, so nothing holds on to the plugin after its last run.
+ *
+ * A Nomad URL may list several servers or agents of the same cluster;
+ * their client then routes each request through a
+ * {@link NomadEndpointRouter}, which also probes them in the background.
+ */
+public class NomadClientRegistry {
+
+    public static final long DEFAULT_CLIENT_IDLE_TIMEOUT = 600;
+
+    private static final long SWEEP_INTERVAL_SECONDS = 30;
+    private static final String X_NOMAD_TOKEN = "X-Nomad-Token";
+
+    private static final ConcurrentMap<Key, Entry> clients = new ConcurrentHashMap<>();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final ScheduledThreadPoolExecutor sweeper =
+            new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "nomad-client-registry-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // guarded by NomadClientRegistry.class
+    private static ScheduledFuture<?> sweep;
+
+    static {
+        sweeper.setRemoveOnCancelPolicy(true);
+        sweeper.setKeepAliveTime(SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        sweeper.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a lease on the shared client for the cluster described by
+     * the given step configuration, creating the client on first use.
+     * The lease must be closed once the step no longer needs the client.
+     */
+    public static Lease acquire(Map<String, Object> configuration) throws IOException {
+        Key key = Key.fromConfiguration(configuration);
+        long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(
+                ConfigurationValues.getLong(configuration,
+                        NomadConfigOptions.NOMAD_CLIENT_IDLE_TIMEOUT,
+                        DEFAULT_CLIENT_IDLE_TIMEOUT));
+
+        while (true) {
+            AtomicBoolean created = new AtomicBoolean(false);
+            Entry entry;
+            try {
+                entry = clients.computeIfAbsent(key, k -> {
+                    created.set(true);
+                    NomadEndpointRouter router = NomadEndpointRouter.forConfiguration(configuration);
+                    return new Entry(k, configuration, router,
+                            newClient(k, configuration, router), idleTimeoutMillis);
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            if (entry.retain()) {
+                if (created.get()) {
+                    startSweeping();
+                    misses.incrementAndGet();
+                } else {
+                    hits.incrementAndGet();
+                }
+                return new Lease(entry);
+            }
+            // lost a race with the sweeper, the entry is closed already
+            clients.remove(key, entry);
+        }
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public static int size() {
+        return clients.size();
+    }
+
+    /**
+     * Closes every client which has been idle for longer than its timeout.
+     */
+    public static void evictIdle() {
+        long now = System.currentTimeMillis();
+        clients.forEach((key, entry) -> {
+            if (entry.markClosedIfIdle(now)) {
+                clients.remove(key, entry);
+                evictions.incrementAndGet();
+                entry.closeQuietly();
+            }
+        });
+        stopSweepingIfEmpty();
+    }
+
+    /**
+     * Closes all clients regardless of outstanding leases.
+     */
+    public static void closeAll() {
+        clients.forEach((key, entry) -> {
+            if (entry.markClosed()) {
+                clients.remove(key, entry);
+                entry.closeQuietly();
+            }
+        });
+        stopSweepingIfEmpty();
+    }
+
+    private static synchronized void startSweeping() {
+        if (sweep == null) {
+            sweep = sweeper.scheduleWithFixedDelay(NomadClientRegistry::evictIdle,
+                    SWEEP_INTERVAL_SECONDS,
+                    SWEEP_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Cancels the sweep once no client is left, letting its thread time
+     * out. A client created meanwhile has started the sweep already, or
+     * starts it after this.
+     */
+    private static synchronized void stopSweepingIfEmpty() {
+        if (sweep != null && clients.isEmpty()) {
+            sweep.cancel(false);
+            sweep = null;
+        }
+    }
+
+    private static NomadApiClient newClient(Key key,
+                                            Map<String, Object> configuration,
+                                            NomadEndpointRouter router) {
+        // with several addresses the SDK builds requests for the first,
+        // and the routing client sends them wherever the router says
+        NomadApiConfiguration.Builder builder = new NomadApiConfiguration
+                .Builder()
+                .setAddress(router.getEndpoints().get(0).getAddress());
+        if (key.authToken != null) {
+            builder.setAuthToken(key.authToken);
+        }
+        if (key.namespace != null) {
+            builder.setNamespace(key.namespace);
+        }
+        try {
+            CloseableHttpClient httpClient = NomadHttpClientProvider.getHttpClient(configuration);
+            if (router.size() > 1) {
+                router.startProbing(statusProbe(httpClient, key.authToken),
+                        NomadEndpointRouter.getProbeInterval(configuration));
+                httpClient = new NomadRoutingHttpClient(httpClient, router);
+            }
+            return new NomadApiClient(builder.build(), httpClient);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Checks that an endpoint knows the cluster leader, and so can serve
+     * consistent reads and forward writes.
+     */
+    private static NomadEndpointRouter.Probe statusProbe(CloseableHttpClient httpClient,
+                                                         String authToken) {
+        return address -> {
+            HttpGet request = new HttpGet((address.endsWith("/")
+                    ? address.substring(0, address.length() - 1)
+                    : address) + "/v1/status/leader");
+            if (authToken != null) {
+                request.setHeader(X_NOMAD_TOKEN, authToken);
+            }
+            try (CloseableHttpResponse response = httpClient.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                EntityUtils.consume(response.getEntity());
+                if (status != 200) {
+                    throw new IOException(String.format("%s returned %d", request.getURI(), status));
+                }
+            }
+        };
+    }
+
+    public static class Lease implements Closeable {
+
+        private final Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public NomadApiClient getClient() {
+            return entry.client;
+        }
+
+        /**
+         * Returns the non-blocking client for the same cluster, which is
+         * created on first use.
+         */
+        public NomadAsyncClient getAsyncClient() throws IOException {
+            return entry.asyncClient();
+        }
+
+        /**
+         * Returns the watcher shared by all steps running against the
+         * same cluster, which is created on first use.
+         */
+        public NomadClusterWatcher getClusterWatcher() throws IOException {
+            return entry.clusterWatcher();
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                entry.release();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final Key key;
+        private final Map<String, Object> configuration;
+        private final NomadEndpointRouter router;
+        private final NomadApiClient client;
+        private final long idleTimeoutMillis;
+
+        private NomadAsyncClient asyncClient;
+        private NomadClusterWatcher clusterWatcher;
+        private int leases = 0;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean closed = false;
+
+        Entry(Key key,
+              Map<String, Object> configuration,
+              NomadEndpointRouter router,
+              NomadApiClient client,
+              long idleTimeoutMillis) {
+            this.key = key;
+            this.configuration = configuration;
+            this.router = router;
+            this.client = client;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        synchronized NomadAsyncClient asyncClient() throws IOException {
+            if (asyncClient == null) {
+                asyncClient = new NomadAsyncClient(
+                        NomadHttpClientProvider.getAsyncHttpClient(configuration),
+                        router,
+                        key.authToken,
+                        key.namespace);
+            }
+            return asyncClient;
+        }
+
+        synchronized NomadClusterWatcher clusterWatcher() throws IOException {
+            if (clusterWatcher == null) {
+                clusterWatcher = NomadClusterWatcher.create(configuration, asyncClient());
+            }
+            return clusterWatcher;
+        }
+
+        synchronized boolean retain() {
+            if (closed) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized boolean markClosedIfIdle(long now) {
+            if (closed || leases > 0 || now - lastUsed < idleTimeoutMillis) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+
+        synchronized boolean markClosed() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+
+        void closeQuietly() {
+            NomadAsyncClient async;
+            NomadClusterWatcher watcher;
+            synchronized (this) {
+                async = asyncClient;
+                watcher = clusterWatcher;
+            }
+            if (watcher != null) {
+                watcher.close();
+            }
+            router.close();
+            closeQuietly(client);
+            if (async != null) {
+                closeQuietly(async);
+            }
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing sensible to do, the connections are gone either way
+            }
+        }
+    }
+
+    static class Key {
+
+        // settings a client, its async sibling and its watcher are built
+        // with; a change to any of them gets a new client, and the old
+        // one is evicted once its last lease is closed
+        private static final List<String> TRANSPORT_OPTIONS = Arrays.asList(
+                NomadConfigOptions.NOMAD_TLS_SERVER_NAME,
+                NomadConfigOptions.NOMAD_TLS_SESSION_TIMEOUT,
+                NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS,
+                NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS_PER_ROUTE,
+                NomadConfigOptions.NOMAD_CLIENT_CONNECTION_IDLE_TIMEOUT,
+                NomadConfigOptions.NOMAD_CLIENT_IDLE_TIMEOUT,
+                NomadConfigOptions.NOMAD_CLIENT_CONNECT_TIMEOUT,
+                NomadConfigOptions.NOMAD_CLIENT_READ_TIMEOUT,
+                NomadConfigOptions.NOMAD_CLIENT_TCP_KEEPALIVE,
+                NomadConfigOptions.NOMAD_CLIENT_COMPRESSION,
+                NomadConfigOptions.NOMAD_ENDPOINT_PROBE_INTERVAL,
+                NomadConfigOptions.NOMAD_BLOCKING_QUERY_WAIT,
+                NomadConfigOptions.NOMAD_RETRY_BACKOFF,
+                NomadConfigOptions.NOMAD_RETRY_MAX_BACKOFF,
+                NomadConfigOptions.NOMAD_MAX_RETRIES);
+
+        private final String address;
+        private final String authToken;
+        private final String namespace;
+        private final String tlsCaFile;
+        private final String tlsCertFile;
+        private final String tlsKeyFile;
+        private final List<String> transport;
+
+        Key(String address,
+            String authToken,
+            String namespace,
+            String tlsCaFile,
+            String tlsCertFile,
+            String tlsKeyFile,
+            List<String> transport) {
+            this.address = address;
+            this.authToken = authToken;
+            this.namespace = namespace;
+            this.tlsCaFile = tlsCaFile;
+            this.tlsCertFile = tlsCertFile;
+            this.tlsKeyFile = tlsKeyFile;
+            this.transport = transport;
+        }
+
+        static Key fromConfiguration(Map<String, Object> configuration) {
+            List<String> transport = new ArrayList<>(TRANSPORT_OPTIONS.size());
+            for (String option : TRANSPORT_OPTIONS) {
+                String value = ConfigurationValues.getString(configuration, option, null);
+                transport.add(value == null ? null : value.trim());
+            }
+            String namespace = ConfigurationValues.getString(configuration,
+                    NomadConfigOptions.NOMAD_NAMESPACE, "").trim();
+            return new Key(
+                    configuration.get(NomadConfigOptions.NOMAD_URL).toString(),
+                    ConfigurationValues.getString(configuration,
+                            NomadConfigOptions.NOMAD_ACL_TOKEN, null),
+                    namespace.isEmpty() ? null : namespace,
+                    ConfigurationValues.getString(configuration,
+                            NomadConfigOptions.NOMAD_TLS_CA_FILE, null),
+                    ConfigurationValues.getString(configuration,
+                            NomadConfigOptions.NOMAD_TLS_CERT_FILE, null),
+                    ConfigurationValues.getString(configuration,
+                            NomadConfigOptions.NOMAD_TLS_KEY_FILE, null),
+                    transport);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key other = (Key) o;
+            return address.equals(other.address)
+                    && Objects.equals(authToken, other.authToken)
+                    && Objects.equals(namespace, other.namespace)
+                    && Objects.equals(tlsCaFile, other.tlsCaFile)
+                    && Objects.equals(tlsCertFile, other.tlsCertFile)
+                    && Objects.equals(tlsKeyFile, other.tlsKeyFile)
+                    && transport.equals(other.transport);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, authToken, namespace, tlsCaFile, tlsCertFile, tlsKeyFile, transport);
+        }
+    }
+}
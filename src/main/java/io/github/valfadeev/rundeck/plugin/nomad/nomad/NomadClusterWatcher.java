@@ -0,0 +1,339 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.Predicate;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+
+/**
+ * Watches all evaluations and allocations of a cluster on behalf of the
+ * steps running against it.
+ *
+ * One blocking query per list is kept outstanding, whatever the number
+ * of steps in flight, and every response is handed to the subscribed
+ * steps, which pick out their evaluation or allocations by id and check
+ * their condition on their own threads. A subscription is dropped as
+ * soon as its condition holds or its step stops waiting, and the queries
+ * pause once nobody is subscribed, keeping the last seen index for when
+ * they resume. A new subscription is checked against the last response
+ * right away, unless that response is older than the index the step
+ * waits for.
+ *
+ * Nomad cannot filter these lists by job, so the watcher sees the whole
+ * namespace its client is scoped to; a dedicated namespace keeps the
+ * lists down to the jobs of the plugin.
+ *
+ * Closing the watcher stops both queries and fails the steps still
+ * waiting on it.
+ */
+public class NomadClusterWatcher implements Closeable {
+
+    private final Feed<Evaluation> evaluations;
+    private final Feed<AllocationListStub> allocations;
+
+    NomadClusterWatcher(NomadAsyncBlockingQuery<List<Evaluation>> evaluations,
+                        NomadAsyncBlockingQuery<List<AllocationListStub>> allocations) {
+        this.evaluations = new Feed<>(evaluations);
+        this.allocations = new Feed<>(allocations);
+    }
+
+    public static NomadClusterWatcher create(Map<String, Object> configuration,
+                                             NomadAsyncClient client) {
+        return new NomadClusterWatcher(
+                NomadAsyncBlockingQuery.create(configuration, client::evaluations),
+                NomadAsyncBlockingQuery.create(configuration, client::allocations));
+    }
+
+    /**
+     * Watches the evaluation with the given id. The condition is only
+     * checked once the evaluation shows up in the list.
+     */
+    public NomadWatch<Evaluation> evaluation(final String evalId) {
+        return evaluations.watch(null, evals -> evals.stream()
+                .filter(e -> evalId.equals(e.getId()))
+                .findFirst()
+                .orElse(null));
+    }
+
+    /**
+     * Watches the allocations created by the evaluation with the given id.
+     *
+     * @param minIndex the ModifyIndex of the completed evaluation; a
+     *                 list older than that may lack its allocations, and
+     *                 is not checked
+     */
+    public NomadWatch<List<AllocationListStub>> evaluationAllocations(final String evalId,
+                                                                      BigInteger minIndex) {
+        return allocations.watch(minIndex, allocs -> allocs.stream()
+                .filter(a -> evalId.equals(a.getEvalId()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Watches all allocations of the job with the given id.
+     *
+     * @param minIndex the ModifyIndex of the evaluation which placed
+     *                 them, as for {@link #evaluationAllocations}
+     */
+    public NomadWatch<List<AllocationListStub>> jobAllocations(final String jobId,
+                                                               BigInteger minIndex) {
+        return allocations.watch(minIndex, allocs -> allocs.stream()
+                .filter(a -> jobId.equals(a.getJobId()))
+                .collect(Collectors.toList()));
+    }
+
+    public int getSubscriptionCount() {
+        return evaluations.size() + allocations.size();
+    }
+
+    /**
+     * Returns the number of list queries issued so far, shared by all
+     * subscribed steps.
+     */
+    public long getRequestCount() {
+        return evaluations.query.getRequestCount() + allocations.query.getRequestCount();
+    }
+
+    /**
+     * Aborts the queries in flight and fails every subscription, as its
+     * client is about to be closed.
+     */
+    @Override
+    public void close() {
+        evaluations.close();
+        allocations.close();
+    }
+
+    /**
+     * One watched list and the steps subscribed to it.
+     */
+    private static class Feed<E> {
+
+        private final NomadAsyncBlockingQuery<List<E>> query;
+
+        // guarded by this
+        private final List<Subscription<E>> subscriptions = new ArrayList<>();
+        private ServerQueryResponse<List<E>> last;
+        private CompletableFuture<ServerQueryResponse<List<E>>> running;
+        private boolean closed = false;
+
+        Feed(NomadAsyncBlockingQuery<List<E>> query) {
+            this.query = query;
+        }
+
+        <T> NomadWatch<T> watch(final BigInteger minIndex, final Function<List<E>, T> select) {
+            return new NomadWatch<T>() {
+                @Override
+                public ServerQueryResponse<T> waitUntil(Predicate<? super T> condition)
+                        throws IOException, NomadException, InterruptedException {
+                    Subscription<E> subscription = subscribe(minIndex);
+                    try {
+                        // the step checks its condition on its own thread
+                        while (true) {
+                            ServerQueryResponse<List<E>> response = subscription.take();
+                            T value = select.apply(response.getValue());
+                            if (value != null && condition.apply(value)) {
+                                return new ServerQueryResponse<>(response.getHttpResponse(),
+                                        response.getRawEntity(), value);
+                            }
+                        }
+                    } finally {
+                        remove(subscription);
+                    }
+                }
+
+                @Override
+                public long getRequestCount() {
+                    return query.getRequestCount();
+                }
+            };
+        }
+
+        private Subscription<E> subscribe(BigInteger minIndex) {
+            Subscription<E> subscription = new Subscription<>(minIndex);
+            ServerQueryResponse<List<E>> snapshot;
+            CompletableFuture<ServerQueryResponse<List<E>>> started = null;
+            synchronized (this) {
+                if (closed) {
+                    subscription.fail(closedError());
+                    return subscription;
+                }
+                subscriptions.add(subscription);
+                snapshot = last;
+                if (running == null) {
+                    started = query.waitUntilAsync(this::dispatch);
+                    running = started;
+                }
+            }
+            if (snapshot != null) {
+                // the object may not change again, so check the list
+                // as of the last response right away, unless it is older
+                // than what the step waits for
+                subscription.offer(snapshot);
+            }
+            if (started != null) {
+                final CompletableFuture<ServerQueryResponse<List<E>>> query = started;
+                query.whenComplete((response, error) -> {
+                    if (error != null && !query.isCancelled()) {
+                        fail(query, error);
+                    }
+                });
+            }
+            return subscription;
+        }
+
+        synchronized int size() {
+            return subscriptions.size();
+        }
+
+        /**
+         * Hands a response to every subscription. Runs on the engine
+         * scheduler, and only passes the response on.
+         */
+        private boolean dispatch(List<E> items) {
+            // the predicate only sees the value, so rebuild the response
+            // for the subscriptions from the one the query recorded last
+            ServerQueryResponse<List<E>> response;
+            List<Subscription<E>> current;
+            synchronized (this) {
+                response = query.getLastResponse();
+                last = response;
+                current = new ArrayList<>(subscriptions);
+            }
+            for (Subscription<E> subscription : current) {
+                subscription.offer(response);
+            }
+            return false;
+        }
+
+        /**
+         * Drops a subscription, and pauses the query once none is left,
+         * aborting the request in flight.
+         */
+        private void remove(Subscription<E> subscription) {
+            CompletableFuture<ServerQueryResponse<List<E>>> stopped = null;
+            synchronized (this) {
+                subscriptions.remove(subscription);
+                if (subscriptions.isEmpty() && running != null) {
+                    stopped = running;
+                    running = null;
+                }
+            }
+            if (stopped != null) {
+                stopped.cancel(true);
+            }
+        }
+
+        private void fail(CompletableFuture<ServerQueryResponse<List<E>>> query, Throwable error) {
+            List<Subscription<E>> current;
+            synchronized (this) {
+                if (running != query) {
+                    return;
+                }
+                current = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+                running = null;
+            }
+            current.forEach(s -> s.fail(error));
+        }
+
+        private void close() {
+            List<Subscription<E>> current;
+            CompletableFuture<ServerQueryResponse<List<E>>> stopped;
+            synchronized (this) {
+                closed = true;
+                current = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+                stopped = running;
+                running = null;
+            }
+            if (stopped != null) {
+                stopped.cancel(true);
+            }
+            IOException error = closedError();
+            current.forEach(s -> s.fail(error));
+        }
+
+        private static IOException closedError() {
+            return new IOException("Nomad cluster watcher closed");
+        }
+    }
+
+    /**
+     * The responses for one waiting step. Only the latest response not
+     * yet taken is kept, as each one holds the whole list.
+     */
+    private static class Subscription<E> {
+
+        private final BigInteger minIndex;
+
+        // guarded by this
+        private CompletableFuture<ServerQueryResponse<List<E>>> pending;
+        private Throwable error;
+
+        Subscription(BigInteger minIndex) {
+            this.minIndex = minIndex;
+        }
+
+        synchronized void offer(ServerQueryResponse<List<E>> response) {
+            if (error != null || isOlder(response)) {
+                return;
+            }
+            if (pending == null || pending.isDone()) {
+                pending = new CompletableFuture<>();
+            }
+            pending.complete(response);
+        }
+
+        synchronized void fail(Throwable error) {
+            this.error = error;
+            if (pending == null || pending.isDone()) {
+                pending = new CompletableFuture<>();
+            }
+            pending.completeExceptionally(error);
+        }
+
+        private boolean isOlder(ServerQueryResponse<List<E>> response) {
+            if (minIndex == null) {
+                return false;
+            }
+            BigInteger index = response.getIndex();
+            return index == null || index.compareTo(minIndex) < 0;
+        }
+
+        /**
+         * Waits for a response the step has not seen yet.
+         */
+        ServerQueryResponse<List<E>> take()
+                throws IOException, NomadException, InterruptedException {
+            CompletableFuture<ServerQueryResponse<List<E>>> next;
+            synchronized (this) {
+                if (pending == null) {
+                    pending = new CompletableFuture<>();
+                    if (error != null) {
+                        pending.completeExceptionally(error);
+                    }
+                }
+                next = pending;
+            }
+            ServerQueryResponse<List<E>> response = NomadStepEngine.await(next);
+            synchronized (this) {
+                if (pending == next) {
+                    pending = null;
+                }
+            }
+            return response;
+        }
+    }
+}
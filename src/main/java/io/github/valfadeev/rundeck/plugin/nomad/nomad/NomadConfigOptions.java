@@ -4,9 +4,25 @@ public class NomadConfigOptions {
     public static final String NOMAD_URL = "nomad_url";
     public static final String NOMAD_DATACENTER = "nomad_datacenter";
     public static final String NOMAD_REGION = "nomad_region";
+    public static final String NOMAD_NAMESPACE = "nomad_namespace";
     public static final String NOMAD_GROUP_COUNT = "nomad_group_count";
     public static final String NOMAD_JOB_TYPE = "nomad_job_type";
     public static final String NOMAD_MAX_FAIL_PCT = "nomad_max_fail_pct";
+    public static final String NOMAD_STOP_ON_FAILURE = "nomad_stop_on_failure";
+    public static final String NOMAD_PURGE_ON_STOP = "nomad_purge_on_stop";
+    public static final String NOMAD_WAIT_FOR_CAPACITY = "nomad_wait_for_capacity";
+    public static final String NOMAD_CAPACITY_TIMEOUT = "nomad_capacity_timeout";
+    public static final String NOMAD_MAX_BLOCKED_EVALS = "nomad_max_blocked_evals";
+    public static final String NOMAD_ADMISSION_RATE = "nomad_admission_rate";
+    public static final String NOMAD_ADMISSION_BURST = "nomad_admission_burst";
+    public static final String NOMAD_MAX_INFLIGHT_JOBS = "nomad_max_inflight_jobs";
+    public static final String NOMAD_DISPATCH = "nomad_dispatch";
+    public static final String NOMAD_DISPATCH_META = "nomad_dispatch_meta";
+    public static final String NOMAD_DISPATCH_PAYLOAD = "nomad_dispatch_payload";
+    public static final String NOMAD_STABLE_ID = "nomad_stable_id";
+    public static final String NOMAD_STREAM_LOGS = "nomad_stream_logs";
+    public static final String NOMAD_LOG_STREAMS_MAX = "nomad_log_streams_max";
+    public static final String NOMAD_LOG_DRAIN_TIMEOUT = "nomad_log_drain_timeout";
     public static final String NOMAD_ENV_VARS = "nomad_env_vars";
     public static final String NOMAD_DYNAMIC_PORTS = "nomad_dynamic_ports";
     public static final String NOMAD_RESERVED_PORTS = "nomad_reserved_ports";
@@ -21,5 +37,38 @@ public class NomadConfigOptions {
     public static final String NOMAD_AUTO_REVERT = "nomad_auto_revert";
     public static final String NOMAD_CANARY = "nomad_canary";
     public static final String NOMAD_STAGGER = "nomad_stagger";
+    public static final String NOMAD_WATCH_DEPLOYMENT = "nomad_watch_deployment";
+    public static final String NOMAD_AUTO_PROMOTE = "nomad_auto_promote";
+    public static final String NOMAD_ACL_TOKEN = "nomad_acl_token";
+    public static final String NOMAD_TLS_CA_FILE = "nomad_tls_ca_file";
+    public static final String NOMAD_TLS_CERT_FILE = "nomad_tls_cert_file";
+    public static final String NOMAD_TLS_KEY_FILE = "nomad_tls_key_file";
+    public static final String NOMAD_TLS_SERVER_NAME = "nomad_tls_server_name";
+    public static final String NOMAD_CLIENT_MAX_CONNECTIONS = "nomad_client_max_connections";
+    public static final String NOMAD_CLIENT_MAX_CONNECTIONS_PER_ROUTE = "nomad_client_max_connections_per_route";
+    public static final String NOMAD_CLIENT_CONNECTION_IDLE_TIMEOUT = "nomad_client_connection_idle_timeout";
+    public static final String NOMAD_CLIENT_IDLE_TIMEOUT = "nomad_client_idle_timeout";
+    public static final String NOMAD_CLIENT_CONNECT_TIMEOUT = "nomad_client_connect_timeout";
+    public static final String NOMAD_CLIENT_READ_TIMEOUT = "nomad_client_read_timeout";
+    public static final String NOMAD_CLIENT_TCP_KEEPALIVE = "nomad_client_tcp_keepalive";
+    public static final String NOMAD_CLIENT_COMPRESSION = "nomad_client_compression";
+    public static final String NOMAD_TLS_SESSION_TIMEOUT = "nomad_tls_session_timeout";
+    public static final String NOMAD_ENDPOINT_PROBE_INTERVAL = "nomad_endpoint_probe_interval";
+    public static final String NOMAD_AGENT_CONFIG_TTL = "nomad_agent_config_ttl";
+    public static final String NOMAD_AGENT_CONFIG_STALE_TTL = "nomad_agent_config_stale_ttl";
+    public static final String NOMAD_BLOCKING_QUERY_WAIT = "nomad_blocking_query_wait";
+    public static final String NOMAD_RETRY_BACKOFF = "nomad_retry_backoff";
+    public static final String NOMAD_RETRY_MAX_BACKOFF = "nomad_retry_max_backoff";
+    public static final String NOMAD_MAX_RETRIES = "nomad_max_retries";
+    public static final String NOMAD_ASYNC_ENGINE = "nomad_async_engine";
+    public static final String NOMAD_CLUSTER_WATCHER = "nomad_cluster_watcher";
+    public static final String NOMAD_JOB_CACHE_SIZE = "nomad_job_cache_size";
+    public static final String NOMAD_CAPACITY_PLACEMENT = "nomad_capacity_placement";
+    public static final String NOMAD_NODE_SNAPSHOT_TTL = "nomad_node_snapshot_ttl";
+    public static final String NOMAD_SWEEP_JOBS = "nomad_sweep_jobs";
+    public static final String NOMAD_SWEEP_RETENTION = "nomad_sweep_retention";
+    public static final String NOMAD_SWEEP_INTERVAL = "nomad_sweep_interval";
+    public static final String NOMAD_SWEEP_BATCH_SIZE = "nomad_sweep_batch_size";
+    public static final String NOMAD_METRICS_FILE = "nomad_metrics_file";
 
 }
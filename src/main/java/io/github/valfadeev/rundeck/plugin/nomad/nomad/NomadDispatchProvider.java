@@ -0,0 +1,79 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
+
+/**
+ * Per-run metadata and payload for dispatching a parameterized job.
+ */
+public class NomadDispatchProvider {
+
+    public static final String META_EXECUTION_ID = "rundeck_execution_id";
+    public static final String META_JOB_ID = "rundeck_job_id";
+    public static final String META_USER = "rundeck_user";
+
+    public static Map<String, String> getMeta(Map<String, Object> configuration,
+                                              Map<String, String> rundeckJob) {
+        Map<String, String> meta = getUserMeta(configuration);
+        putIfPresent(meta, META_EXECUTION_ID, rundeckJob.get("execid"));
+        putIfPresent(meta, META_JOB_ID, rundeckJob.get("id"));
+        putIfPresent(meta, META_USER, rundeckJob.get("username"));
+        return meta;
+    }
+
+    /**
+     * @return the sorted metadata keys the parameterized job accepts
+     */
+    public static List<String> getMetaKeys(Map<String, Object> configuration) {
+        TreeSet<String> keys = new TreeSet<>(getUserMeta(configuration).keySet());
+        keys.add(META_EXECUTION_ID);
+        keys.add(META_JOB_ID);
+        keys.add(META_USER);
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * @return the payload, or null if there is none
+     */
+    public static byte[] getPayload(Map<String, Object> configuration) {
+        String payload = ConfigurationValues.getString(configuration,
+                NomadConfigOptions.NOMAD_DISPATCH_PAYLOAD, "");
+        return payload.isEmpty() ? null : payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the configuration without the values which change from run
+     * to run: the payload is dropped and the metadata is reduced to its
+     * keys, which are part of the parameterized job.
+     */
+    public static Map<String, Object> getSpecConfiguration(Map<String, Object> configuration) {
+        Map<String, Object> spec = new HashMap<>(configuration);
+        spec.remove(NomadConfigOptions.NOMAD_DISPATCH_PAYLOAD);
+        spec.put(NomadConfigOptions.NOMAD_DISPATCH_META,
+                String.join(",", getMetaKeys(configuration)));
+        return spec;
+    }
+
+    private static Map<String, String> getUserMeta(Map<String, Object> configuration) {
+        String metaString = ConfigurationValues.getString(configuration,
+                NomadConfigOptions.NOMAD_DISPATCH_META, "");
+        Map<String, String> meta = new HashMap<>();
+        if (!metaString.isEmpty()) {
+            meta.putAll(ParseInput.kvToMap(metaString));
+        }
+        return meta;
+    }
+
+    private static void putIfPresent(Map<String, String> meta, String key, String value) {
+        if (value != null) {
+            meta.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
+
+/**
+ * Chooses which of the Nomad servers or agents given for a cluster serves
+ * a request.
+ *
+ * Every endpoint keeps an exponentially weighted moving average of its
+ * response latency. Reads go to the healthy endpoint with the lowest
+ * average; writes go to the first healthy endpoint in configured order,
+ * which forwards them to the leader like any other server would, so that
+ * they do not hop between servers as latencies change. An endpoint which
+ * fails a request is skipped until a probe succeeds or its cool-down has
+ * passed. If every endpoint is down they are all tried anyway, in order.
+ */
+public class NomadEndpointRouter implements Closeable {
+
+    public static final long DEFAULT_PROBE_INTERVAL = 10;
+
+    // weight of a new sample in the latency average
+    static final double LATENCY_WEIGHT = 0.3;
+
+    private static final ScheduledExecutorService prober =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "nomad-endpoint-prober");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Checks whether the endpoint at the given address can serve
+     * requests, failing if it cannot.
+     */
+    @FunctionalInterface
+    public interface Probe {
+        void check(String address) throws IOException;
+    }
+
+    private final List<Endpoint> endpoints;
+    private final long coolDownNanos;
+
+    private ScheduledFuture<?> probing;
+
+    /**
+     * @param coolDown seconds for which a failed endpoint is skipped when
+     *                 no probe brings it back earlier
+     */
+    public NomadEndpointRouter(List<String> addresses, long coolDown) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("at least one Nomad address is required");
+        }
+        List<Endpoint> list = new ArrayList<>();
+        for (String address : addresses) {
+            list.add(new Endpoint(address));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.coolDownNanos = TimeUnit.SECONDS.toNanos(Math.max(coolDown, 1));
+    }
+
+    /**
+     * @return a router for the comma-separated addresses of the Nomad URL,
+     *         whose failed endpoints are skipped for one probe interval
+     */
+    public static NomadEndpointRouter forConfiguration(Map<String, Object> configuration) {
+        List<String> addresses = new ArrayList<>();
+        for (String address : ParseInput.splitList(
+                configuration.get(NomadConfigOptions.NOMAD_URL).toString(), ',')) {
+            addresses.add(address.trim());
+        }
+        return new NomadEndpointRouter(addresses, getProbeInterval(configuration));
+    }
+
+    public static long getProbeInterval(Map<String, Object> configuration) {
+        return ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_ENDPOINT_PROBE_INTERVAL,
+                DEFAULT_PROBE_INTERVAL);
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * @return the endpoints to try for a read, fastest healthy one first
+     */
+    public List<Endpoint> readOrder() {
+        return order(true);
+    }
+
+    /**
+     * @return the endpoints to try for a write, healthy ones first and
+     *         each group in configured order
+     */
+    public List<Endpoint> writeOrder() {
+        return order(false);
+    }
+
+    private List<Endpoint> order(boolean byLatency) {
+        long now = System.nanoTime();
+        // sort a snapshot, the endpoints change while requests complete
+        List<Ranked> ranked = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            ranked.add(new Ranked(endpoint, endpoint.isHealthy(now),
+                    byLatency ? endpoint.getLatency() : 0));
+        }
+        // a stable sort, so that endpoints without samples keep their order
+        ranked.sort(Comparator
+                .comparing((Ranked r) -> !r.healthy)
+                .thenComparingDouble(r -> r.latency));
+        List<Endpoint> order = new ArrayList<>(ranked.size());
+        for (Ranked r : ranked) {
+            order.add(r.endpoint);
+        }
+        return order;
+    }
+
+    /**
+     * Probes every endpoint at the given interval in the background, which
+     * brings failed endpoints back early and keeps the latency of the
+     * endpoints reads do not go to up to date. Does nothing for a single
+     * endpoint or an interval of zero.
+     */
+    public synchronized void startProbing(Probe probe, long intervalSeconds) {
+        if (probing != null || endpoints.size() < 2 || intervalSeconds <= 0) {
+            return;
+        }
+        probing = prober.scheduleWithFixedDelay(() -> probeAll(probe),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void probeAll(Probe probe) {
+        for (Endpoint endpoint : endpoints) {
+            long started = System.nanoTime();
+            try {
+                probe.check(endpoint.address);
+                endpoint.recordSuccess(System.nanoTime() - started);
+                endpoint.markUp();
+            } catch (IOException | RuntimeException e) {
+                markFailed(endpoint);
+            }
+        }
+    }
+
+    /**
+     * Takes the endpoint out of rotation for the cool-down period.
+     */
+    public void markFailed(Endpoint endpoint) {
+        endpoint.markDown(System.nanoTime() + coolDownNanos);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (probing != null) {
+            probing.cancel(false);
+            probing = null;
+        }
+    }
+
+    private static class Ranked {
+
+        private final Endpoint endpoint;
+        private final boolean healthy;
+        private final double latency;
+
+        private Ranked(Endpoint endpoint, boolean healthy, double latency) {
+            this.endpoint = endpoint;
+            this.healthy = healthy;
+            this.latency = latency;
+        }
+    }
+
+    public static class Endpoint {
+
+        private final String address;
+
+        private double latencyNanos = 0;
+        private boolean sampled = false;
+        private long downUntil = 0;
+        private boolean down = false;
+
+        private Endpoint(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the average latency in nanoseconds, 0 until the first
+         *         sample so that new endpoints are tried early
+         */
+        public synchronized double getLatency() {
+            return latencyNanos;
+        }
+
+        public boolean isHealthy() {
+            return isHealthy(System.nanoTime());
+        }
+
+        synchronized boolean isHealthy(long now) {
+            return !down || now - downUntil >= 0;
+        }
+
+        /**
+         * Adds a latency sample; only requests the server answers right
+         * away should be recorded, not blocking queries or streams.
+         */
+        public synchronized void recordSuccess(long nanos) {
+            if (sampled) {
+                latencyNanos += LATENCY_WEIGHT * (nanos - latencyNanos);
+            } else {
+                latencyNanos = nanos;
+                sampled = true;
+            }
+        }
+
+        synchronized void markUp() {
+            down = false;
+        }
+
+        synchronized void markDown(long until) {
+            down = true;
+            downUntil = until;
+        }
+
+        @Override
+        public String toString() {
+            return address;
+        }
+    }
+}
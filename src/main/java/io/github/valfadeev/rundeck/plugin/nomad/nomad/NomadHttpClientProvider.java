@@ -0,0 +1,385 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
+
+public class NomadHttpClientProvider {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 100;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    public static final long DEFAULT_CONNECTION_IDLE_TIMEOUT = 30;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10;
+    public static final long DEFAULT_READ_TIMEOUT = 0;
+    public static final long DEFAULT_TLS_SESSION_TIMEOUT = 86400;
+
+    private static final int ASYNC_IO_THREADS = 2;
+    private static final char[] KEY_PASSWORD = new char[0];
+
+    // shared by every client built for the same TLS material, so that
+    // re-created and async clients resume the sessions of earlier ones
+    private static final ConcurrentMap<List<Object>, TlsContext> sslContexts =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Builds a pooled HTTP client for talking to the Nomad agent
+     * given in the configuration, honouring the TLS settings if the
+     * agent URL uses the https scheme.
+     */
+    public static CloseableHttpClient getHttpClient(Map<String, Object> configuration)
+            throws IOException {
+
+        RegistryBuilder<ConnectionSocketFactory> socketFactories = RegistryBuilder
+                .<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory());
+
+        if (isHttps(configuration)) {
+            socketFactories.register("https",
+                    new SSLConnectionSocketFactory(
+                            getSslContext(configuration),
+                            getHostnameVerifier(configuration)));
+        }
+        Registry<ConnectionSocketFactory> registry = socketFactories.build();
+
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(ConfigurationValues.getInt(
+                configuration,
+                NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS,
+                DEFAULT_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute(ConfigurationValues.getInt(
+                configuration,
+                NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS_PER_ROUTE,
+                DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoKeepAlive(isTcpKeepAlive(configuration))
+                .setTcpNoDelay(true)
+                .setSoTimeout(getReadTimeout(configuration))
+                .build());
+
+        long idleTimeout = ConfigurationValues.getLong(
+                configuration,
+                NomadConfigOptions.NOMAD_CLIENT_CONNECTION_IDLE_TIMEOUT,
+                DEFAULT_CONNECTION_IDLE_TIMEOUT);
+
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(getRequestConfig(configuration))
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.SECONDS);
+        if (!isCompression(configuration)) {
+            builder.disableContentCompression();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds a started non-blocking HTTP client for the Nomad agent given
+     * in the configuration, with the same TLS settings and connection
+     * limits as {@link #getHttpClient(Map)}.
+     */
+    public static CloseableHttpAsyncClient getAsyncHttpClient(Map<String, Object> configuration)
+            throws IOException {
+
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setMaxConnTotal(ConfigurationValues.getInt(
+                        configuration,
+                        NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS,
+                        DEFAULT_MAX_CONNECTIONS))
+                .setMaxConnPerRoute(ConfigurationValues.getInt(
+                        configuration,
+                        NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS_PER_ROUTE,
+                        DEFAULT_MAX_CONNECTIONS_PER_ROUTE))
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(ASYNC_IO_THREADS)
+                        .setSoKeepAlive(isTcpKeepAlive(configuration))
+                        .setTcpNoDelay(true)
+                        .setConnectTimeout(getConnectTimeout(configuration))
+                        .setSoTimeout(getReadTimeout(configuration))
+                        .build())
+                .setDefaultRequestConfig(getRequestConfig(configuration))
+                .setThreadFactory(r -> {
+                    Thread t = new Thread(r, "nomad-async-io");
+                    t.setDaemon(true);
+                    return t;
+                });
+        if (isCompression(configuration)) {
+            // unlike the blocking client, the async one does not ask for
+            // compressed responses by default; NomadAsyncClient decodes them
+            builder.addInterceptorLast(new RequestAcceptEncoding());
+        }
+
+        if (isHttps(configuration)) {
+            builder.setSSLContext(getSslContext(configuration))
+                    .setSSLHostnameVerifier(getHostnameVerifier(configuration));
+        }
+
+        CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        return client;
+    }
+
+    static HostnameVerifier getHostnameVerifier(Map<String, Object> configuration) {
+        return new NomadHostnameVerifier(ConfigurationValues.getString(configuration,
+                NomadConfigOptions.NOMAD_TLS_SERVER_NAME, null));
+    }
+
+    /**
+     * @return whether any of the Nomad URLs uses the https scheme
+     */
+    private static boolean isHttps(Map<String, Object> configuration) {
+        for (String address : ParseInput.splitList(
+                configuration.get(NomadConfigOptions.NOMAD_URL).toString(), ',')) {
+            if (address.trim().startsWith("https")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the socket read timeout in milliseconds, 0 for none; a
+     *         configured timeout is raised to outlast the longest
+     *         blocking query, which Nomad may hold for the requested wait
+     *         plus up to a sixteenth of it
+     */
+    static int getReadTimeout(Map<String, Object> configuration) {
+        long timeout = ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_CLIENT_READ_TIMEOUT,
+                DEFAULT_READ_TIMEOUT);
+        if (timeout <= 0) {
+            return 0;
+        }
+        long wait = ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_BLOCKING_QUERY_WAIT,
+                NomadBlockingQuery.DEFAULT_WAIT);
+        return toMillis(Math.max(timeout, wait + wait / 16 + 1));
+    }
+
+    static int getConnectTimeout(Map<String, Object> configuration) {
+        return toMillis(ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_CLIENT_CONNECT_TIMEOUT,
+                DEFAULT_CONNECT_TIMEOUT));
+    }
+
+    private static int toMillis(long seconds) {
+        return (int) Math.min(TimeUnit.SECONDS.toMillis(Math.max(seconds, 0)), Integer.MAX_VALUE);
+    }
+
+    private static RequestConfig getRequestConfig(Map<String, Object> configuration) {
+        return RequestConfig.custom()
+                .setConnectTimeout(getConnectTimeout(configuration))
+                .setSocketTimeout(getReadTimeout(configuration))
+                .setContentCompressionEnabled(isCompression(configuration))
+                .build();
+    }
+
+    private static boolean isTcpKeepAlive(Map<String, Object> configuration) {
+        return ConfigurationValues.getBoolean(configuration,
+                NomadConfigOptions.NOMAD_CLIENT_TCP_KEEPALIVE, true);
+    }
+
+    private static boolean isCompression(Map<String, Object> configuration) {
+        return ConfigurationValues.getBoolean(configuration,
+                NomadConfigOptions.NOMAD_CLIENT_COMPRESSION, true);
+    }
+
+    /**
+     * @return the TLS context for the configured CA, certificate and key,
+     *         built once per set of files and rebuilt when one of them
+     *         changes on disk
+     */
+    static SSLContext getSslContext(Map<String, Object> configuration)
+            throws IOException {
+
+        String caFile = ConfigurationValues.getString(configuration,
+                NomadConfigOptions.NOMAD_TLS_CA_FILE, null);
+        String certFile = ConfigurationValues.getString(configuration,
+                NomadConfigOptions.NOMAD_TLS_CERT_FILE, null);
+        String keyFile = ConfigurationValues.getString(configuration,
+                NomadConfigOptions.NOMAD_TLS_KEY_FILE, null);
+        long sessionTimeout = ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_TLS_SESSION_TIMEOUT,
+                DEFAULT_TLS_SESSION_TIMEOUT);
+
+        List<Object> key = Arrays.asList(caFile, certFile, keyFile, sessionTimeout);
+        List<Long> modified = Arrays.asList(
+                lastModified(caFile), lastModified(certFile), lastModified(keyFile));
+        TlsContext cached = sslContexts.get(key);
+        if (cached != null && cached.modified.equals(modified)) {
+            return cached.context;
+        }
+        SSLContext context = buildSslContext(caFile, certFile, keyFile);
+        context.getClientSessionContext().setSessionTimeout(
+                (int) Math.min(Math.max(sessionTimeout, 0), Integer.MAX_VALUE));
+        sslContexts.put(key, new TlsContext(modified, context));
+        return context;
+    }
+
+    private static long lastModified(String path) {
+        return path == null ? 0 : new File(path).lastModified();
+    }
+
+    private static SSLContext buildSslContext(String caFile, String certFile, String keyFile)
+            throws IOException {
+        try {
+            SSLContextBuilder builder = SSLContexts.custom();
+            if (caFile != null) {
+                KeyStore trustStore = emptyKeyStore();
+                int i = 0;
+                for (Certificate cert : readCertificates(caFile)) {
+                    trustStore.setCertificateEntry(String.format("ca-%d", i++), cert);
+                }
+                builder.loadTrustMaterial(trustStore, null);
+            }
+            if (certFile != null && keyFile != null) {
+                KeyStore keyStore = emptyKeyStore();
+                keyStore.setKeyEntry("client",
+                        readPrivateKey(keyFile),
+                        KEY_PASSWORD,
+                        readCertificates(certFile).toArray(new Certificate[0]));
+                builder.loadKeyMaterial(keyStore, KEY_PASSWORD);
+            }
+            return builder.build();
+        } catch (GeneralSecurityException e) {
+            throw new IOException(
+                    String.format("could not set up TLS context: %s", e.getMessage()), e);
+        }
+    }
+
+    private static KeyStore emptyKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        return keyStore;
+    }
+
+    private static Collection<? extends Certificate> readCertificates(String path)
+            throws GeneralSecurityException, IOException {
+        try (InputStream in = new FileInputStream(path)) {
+            return CertificateFactory.getInstance("X.509").generateCertificates(in);
+        }
+    }
+
+    private static PrivateKey readPrivateKey(String path) throws IOException {
+        try (Reader reader = new FileReader(path);
+             PEMParser parser = new PEMParser(reader)) {
+            Object pem = parser.readObject();
+            JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+            if (pem instanceof PEMKeyPair) {
+                return converter.getKeyPair((PEMKeyPair) pem).getPrivate();
+            } else if (pem instanceof PrivateKeyInfo) {
+                return converter.getPrivateKey((PrivateKeyInfo) pem);
+            }
+            throw new IOException(String.format("no private key found in %s", path));
+        }
+    }
+
+    private static class TlsContext {
+
+        private final List<Long> modified;
+        private final SSLContext context;
+
+        private TlsContext(List<Long> modified, SSLContext context) {
+            this.modified = modified;
+            this.context = context;
+        }
+    }
+
+    /**
+     * Nomad agents present certificates for "server.<region>.nomad" or
+     * "client.<region>.nomad" rather than for their network address. When
+     * a server name is configured, a certificate for exactly that name is
+     * accepted in addition to the regular hostname match.
+     */
+    static class NomadHostnameVerifier implements HostnameVerifier {
+
+        private final String serverName;
+        private final HostnameVerifier defaultVerifier = new DefaultHostnameVerifier();
+
+        NomadHostnameVerifier(String serverName) {
+            this.serverName = serverName == null ? null : serverName.trim();
+        }
+
+        @Override
+        public boolean verify(String host, SSLSession session) {
+            if (defaultVerifier.verify(host, session)) {
+                return true;
+            }
+            if (serverName == null || serverName.isEmpty()) {
+                return false;
+            }
+            try {
+                Certificate[] peerCertificates = session.getPeerCertificates();
+                if (peerCertificates.length == 0
+                        || !(peerCertificates[0] instanceof X509Certificate)) {
+                    return false;
+                }
+                return matches((X509Certificate) peerCertificates[0]);
+            } catch (SSLPeerUnverifiedException | CertificateParsingException e) {
+                return false;
+            }
+        }
+
+        boolean matches(X509Certificate certificate) throws CertificateParsingException {
+            Collection<List<?>> altNames = certificate.getSubjectAlternativeNames();
+            if (altNames == null) {
+                return false;
+            }
+            for (List<?> altName : altNames) {
+                // type 2 is dNSName
+                if (Integer.valueOf(2).equals(altName.get(0))
+                        && serverName.equalsIgnoreCase(altName.get(1).toString())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
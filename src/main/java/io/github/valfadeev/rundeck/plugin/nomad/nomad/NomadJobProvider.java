@@ -1,14 +1,11 @@
 package io.github.valfadeev.rundeck.plugin.nomad.nomad;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import com.hashicorp.nomad.apimodel.Job;
 import com.hashicorp.nomad.apimodel.Resources;
-import com.hashicorp.nomad.apimodel.Task;
-import com.hashicorp.nomad.apimodel.TaskGroup;
 import com.hashicorp.nomad.apimodel.UpdateStrategy;
 
 public class NomadJobProvider {
@@ -21,53 +18,51 @@ public class NomadJobProvider {
                              String name,
                              String taskGroupName) {
 
-        Map<String, String> env = NomadTaskEnvProvider.getEnv(configuration);
-        Resources resources = NomadTaskResourcesProvider.getResources(configuration);
+        return getSkeleton(configuration, agentConfig, taskConfig, driver, taskGroupName)
+                .stamp(id, name);
+    }
 
-        Task task = new Task()
-                .setConfig(taskConfig)
-                .setResources(resources)
-                .setEnv(env)
-                .setName(name)
-                .setDriver(driver);
+    public static NomadJobSkeleton getSkeleton(Map<String, Object> configuration,
+                                               Map<String, Object> agentConfig,
+                                               Map<String, Object> taskConfig,
+                                               String driver,
+                                               String taskGroupName) {
+
+        return getSkeleton(NomadStepConfiguration.parse(configuration),
+                agentConfig, taskConfig, driver, taskGroupName);
+    }
 
-        int groupCount = Integer.parseInt(configuration
-                .get(NomadConfigOptions.NOMAD_GROUP_COUNT)
-                .toString());
-        TaskGroup group = new TaskGroup()
-                .setName(taskGroupName)
-                .setCount(groupCount)
-                .addTasks(task);
+    public static NomadJobSkeleton getSkeleton(NomadStepConfiguration configuration,
+                                               Map<String, Object> agentConfig,
+                                               Map<String, Object> taskConfig,
+                                               String driver,
+                                               String taskGroupName) {
 
-        String datacenter = configuration
-                .get(NomadConfigOptions.NOMAD_DATACENTER)
-                .toString();
-        List<String> datacenters = new ArrayList<>();
-        if (datacenter.isEmpty()) {
+        Map<String, String> env = NomadTaskEnvProvider.getEnv(configuration);
+        Resources resources = NomadTaskResourcesProvider.getResources(configuration);
+
+        List<String> datacenters = new ArrayList<>(configuration.getDatacenters());
+        if (datacenters.isEmpty()) {
             datacenters.add(agentConfig.get("Datacenter").toString());
-        } else {
-            String[] dcs = datacenter.split(",");
-            datacenters.addAll(Arrays.asList(dcs));
         }
 
-        String region = configuration
-                .get(NomadConfigOptions.NOMAD_REGION)
-                .toString();
+        String region = configuration.getRegion();
         if (region.isEmpty()) {
             region = agentConfig.get("Region").toString();
         }
 
-        String jobType = configuration.get(NomadConfigOptions.NOMAD_JOB_TYPE).toString();
-
         UpdateStrategy update = NomadUpdateStrategyProvider.getUpdate(configuration);
 
-        return new Job()
-                .setId(id)
-                .setName(name)
-                .setType(jobType)
-                .setDatacenters(datacenters)
-                .setRegion(region)
-                .addTaskGroups(group)
-                .setUpdate(update);
+        return new NomadJobSkeleton(
+                taskConfig,
+                env,
+                resources,
+                driver,
+                taskGroupName,
+                configuration.getGroupCount(),
+                datacenters,
+                region,
+                configuration.getJobType(),
+                update);
     }
 }
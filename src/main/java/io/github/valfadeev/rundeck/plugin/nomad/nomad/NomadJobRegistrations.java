@@ -0,0 +1,33 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the fingerprint of the spec last registered for a job with a
+ * stable id, so that the job is only registered again when it changes.
+ */
+public class NomadJobRegistrations {
+
+    private static final ConcurrentMap<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    public static boolean isCurrent(String cluster, String jobId, String fingerprint) {
+        return fingerprint.equals(fingerprints.get(key(cluster, jobId)));
+    }
+
+    public static void put(String cluster, String jobId, String fingerprint) {
+        fingerprints.put(key(cluster, jobId), fingerprint);
+    }
+
+    public static void invalidate(String cluster, String jobId) {
+        fingerprints.remove(key(cluster, jobId));
+    }
+
+    public static void invalidateAll() {
+        fingerprints.clear();
+    }
+
+    private static String key(String cluster, String jobId) {
+        return cluster + "\n" + jobId;
+    }
+}
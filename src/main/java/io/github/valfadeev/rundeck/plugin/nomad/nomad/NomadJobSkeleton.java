@@ -0,0 +1,193 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hashicorp.nomad.apimodel.DispatchPayloadConfig;
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.NetworkResource;
+import com.hashicorp.nomad.apimodel.ParameterizedJobConfig;
+import com.hashicorp.nomad.apimodel.Port;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.TaskGroup;
+import com.hashicorp.nomad.apimodel.UpdateStrategy;
+
+/**
+ * The parts of a Nomad job which only depend on the step configuration.
+ *
+ * A skeleton is shared between executions and never modified once built.
+ * It keeps copies of what it is built from, and
+ * {@link #stamp(String, String)} hands every job copies of its own, down
+ * to the nested maps, lists and arrays of the task config, so a job may
+ * be changed before it is registered without touching the skeleton or
+ * other jobs.
+ */
+public class NomadJobSkeleton {
+
+    public static final String DISPATCH_PAYLOAD_FILE = "rundeck-payload";
+
+    private final Map<String, Object> taskConfig;
+    private final Map<String, String> env;
+    private final Resources resources;
+    private final String driver;
+    private final String taskGroupName;
+    private final int groupCount;
+    private final List<String> datacenters;
+    private final String region;
+    private final String jobType;
+    private final UpdateStrategy update;
+
+    NomadJobSkeleton(Map<String, Object> taskConfig,
+                     Map<String, String> env,
+                     Resources resources,
+                     String driver,
+                     String taskGroupName,
+                     int groupCount,
+                     List<String> datacenters,
+                     String region,
+                     String jobType,
+                     UpdateStrategy update) {
+        this.taskConfig = copyMap(taskConfig);
+        this.env = Collections.unmodifiableMap(new LinkedHashMap<>(env));
+        this.resources = copy(resources);
+        this.driver = driver;
+        this.taskGroupName = taskGroupName;
+        this.groupCount = groupCount;
+        this.datacenters = Collections.unmodifiableList(new ArrayList<>(datacenters));
+        this.region = region;
+        this.jobType = jobType;
+        this.update = copy(update);
+    }
+
+    /**
+     * Builds the job for one execution.
+     */
+    public Job stamp(String id, String name) {
+        Task task = new Task()
+                .setConfig(copyMap(taskConfig))
+                .setResources(copy(resources))
+                .setEnv(new LinkedHashMap<>(env))
+                .setName(name)
+                .setDriver(driver);
+
+        TaskGroup group = new TaskGroup()
+                .setName(taskGroupName)
+                .setCount(groupCount)
+                .addTasks(task);
+
+        return new Job()
+                .setId(id)
+                .setName(name)
+                .setType(jobType)
+                .setDatacenters(new ArrayList<>(datacenters))
+                .setRegion(region)
+                .addTaskGroups(group)
+                .setUpdate(copy(update));
+    }
+
+    /**
+     * Builds the parameterized job which executions are dispatched from.
+     * The payload, if any, is written to {@value #DISPATCH_PAYLOAD_FILE}
+     * in the task's local directory.
+     */
+    public Job stampParameterized(String id, String name, List<String> metaKeys) {
+        Job job = stamp(id, name)
+                .setParameterizedJob(new ParameterizedJobConfig()
+                        .setPayload("optional")
+                        .setMetaOptional(new ArrayList<>(metaKeys)));
+        job.getTaskGroups().get(0).getTasks().get(0)
+                .setDispatchPayload(new DispatchPayloadConfig()
+                        .setFile(DISPATCH_PAYLOAD_FILE));
+        return job;
+    }
+
+    public String getJobType() {
+        return jobType;
+    }
+
+    private static Map<String, Object> copyMap(Map<String, ?> map) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        map.forEach((key, value) -> copy.put(key, copyValue(value)));
+        return copy;
+    }
+
+    /**
+     * Copies the maps, lists and arrays of a task config value; the
+     * values they hold, strings, numbers and booleans, are immutable.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            return copyMap((Map<String, ?>) value);
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                copy.add(copyValue(item));
+            }
+            return copy;
+        }
+        if (value instanceof Object[]) {
+            Object[] copy = ((Object[]) value).clone();
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = copyValue(copy[i]);
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private static Resources copy(Resources resources) {
+        if (resources == null) {
+            return null;
+        }
+        List<NetworkResource> networks = null;
+        if (resources.getNetworks() != null) {
+            networks = new ArrayList<>();
+            for (NetworkResource network : resources.getNetworks()) {
+                networks.add(new NetworkResource()
+                        .setDevice(network.getDevice())
+                        .setCidr(network.getCidr())
+                        .setIp(network.getIp())
+                        .setMBits(network.getMBits())
+                        .setReservedPorts(copy(network.getReservedPorts()))
+                        .setDynamicPorts(copy(network.getDynamicPorts())));
+            }
+        }
+        return new Resources()
+                .setCpu(resources.getCpu())
+                .setMemoryMb(resources.getMemoryMb())
+                .setDiskMb(resources.getDiskMb())
+                .setIops(resources.getIops())
+                .setNetworks(networks);
+    }
+
+    private static List<Port> copy(List<Port> ports) {
+        if (ports == null) {
+            return null;
+        }
+        List<Port> copy = new ArrayList<>();
+        for (Port port : ports) {
+            copy.add(new Port().setLabel(port.getLabel()).setValue(port.getValue()));
+        }
+        return copy;
+    }
+
+    private static UpdateStrategy copy(UpdateStrategy update) {
+        if (update == null) {
+            return null;
+        }
+        return new UpdateStrategy()
+                .setStagger(update.getStagger())
+                .setMaxParallel(update.getMaxParallel())
+                .setHealthCheck(update.getHealthCheck())
+                .setMinHealthyTime(update.getMinHealthyTime())
+                .setHealthyDeadline(update.getHealthyDeadline())
+                .setAutoRevert(update.getAutoRevert())
+                .setCanary(update.getCanary());
+    }
+}
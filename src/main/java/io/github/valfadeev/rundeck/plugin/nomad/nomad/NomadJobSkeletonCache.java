@@ -0,0 +1,184 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of job skeletons, keyed by a fingerprint of
+ * everything a skeleton is built from.
+ *
+ * The fingerprint only covers the properties which end up in the job
+ * spec, and the task config built from the driver properties, so that
+ * settings such as the ACL token, timeouts or log streaming do not make
+ * a job with a stable id look changed. It is a SHA-256 digest, so the
+ * values (which may include secrets) are not kept as cache keys.
+ */
+public class NomadJobSkeletonCache {
+
+    public static final int DEFAULT_SIZE = 256;
+
+    // the step properties the job spec is built from, besides the
+    // driver properties which reach it through the task config
+    static final List<String> JOB_SPEC_KEYS = Arrays.asList(
+            NomadConfigOptions.NOMAD_DATACENTER,
+            NomadConfigOptions.NOMAD_REGION,
+            NomadConfigOptions.NOMAD_GROUP_COUNT,
+            NomadConfigOptions.NOMAD_JOB_TYPE,
+            NomadConfigOptions.NOMAD_ENV_VARS,
+            NomadConfigOptions.NOMAD_TASK_CPU,
+            NomadConfigOptions.NOMAD_TASK_MEMORY,
+            NomadConfigOptions.NOMAD_TASK_IOPS,
+            NomadConfigOptions.NOMAD_NETWORK_BANDWIDTH,
+            NomadConfigOptions.NOMAD_DYNAMIC_PORTS,
+            NomadConfigOptions.NOMAD_RESERVED_PORTS,
+            NomadConfigOptions.NOMAD_MAX_PARALLEL,
+            NomadConfigOptions.NOMAD_HEALTH_CHECK,
+            NomadConfigOptions.NOMAD_MIN_HEALTHY_TIME,
+            NomadConfigOptions.NOMAD_HEALTHY_DEADLINE,
+            NomadConfigOptions.NOMAD_AUTO_REVERT,
+            NomadConfigOptions.NOMAD_CANARY,
+            NomadConfigOptions.NOMAD_STAGGER,
+            // whether the job is parameterized, and its meta keys
+            NomadConfigOptions.NOMAD_DISPATCH,
+            NomadConfigOptions.NOMAD_DISPATCH_META);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Map<String, NomadJobSkeleton> skeletons =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static int capacity = DEFAULT_SIZE;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the cached skeleton for the fingerprint, building and
+     * caching it on a miss. A capacity of 0 disables caching.
+     */
+    public static NomadJobSkeleton get(String fingerprint,
+                                       int maxSize,
+                                       Supplier<NomadJobSkeleton> builder) {
+        synchronized (skeletons) {
+            capacity = maxSize;
+            NomadJobSkeleton skeleton = skeletons.get(fingerprint);
+            if (skeleton != null) {
+                hits.incrementAndGet();
+                return skeleton;
+            }
+        }
+        misses.incrementAndGet();
+
+        // built outside the lock, two concurrent misses
+        // for the same fingerprint build the same skeleton
+        NomadJobSkeleton skeleton = builder.get();
+        synchronized (skeletons) {
+            skeletons.put(fingerprint, skeleton);
+            trim();
+        }
+        return skeleton;
+    }
+
+    public static String fingerprint(Map<String, Object> configuration,
+                                     Map<String, Object> taskConfig,
+                                     Map<String, Object> agentConfig,
+                                     String driver,
+                                     String taskGroupName) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, driver);
+        update(digest, taskGroupName);
+        update(digest, agentConfig.get("Datacenter"));
+        update(digest, agentConfig.get("Region"));
+        for (String key : JOB_SPEC_KEYS) {
+            update(digest, key);
+            update(digest, configuration.get(key));
+        }
+        updateValue(digest, taskConfig);
+
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    public static int size() {
+        synchronized (skeletons) {
+            return skeletons.size();
+        }
+    }
+
+    public static void invalidateAll() {
+        synchronized (skeletons) {
+            skeletons.clear();
+        }
+    }
+
+    private static void trim() {
+        while (skeletons.size() > Math.max(capacity, 0)) {
+            String eldest = skeletons.keySet().iterator().next();
+            skeletons.remove(eldest);
+        }
+    }
+
+    /**
+     * Hashes a task config value by content: maps in key order, lists
+     * and arrays item by item.
+     */
+    private static void updateValue(MessageDigest digest, Object value) {
+        if (value instanceof Map) {
+            update(digest, "{");
+            for (Map.Entry<?, ?> e : new TreeMap<>((Map<?, ?>) value).entrySet()) {
+                update(digest, e.getKey());
+                updateValue(digest, e.getValue());
+            }
+            update(digest, "}");
+        } else if (value instanceof List || value instanceof Object[]) {
+            update(digest, "[");
+            for (Object item : value instanceof List
+                    ? (List<?>) value
+                    : Arrays.asList((Object[]) value)) {
+                updateValue(digest, item);
+            }
+            update(digest, "]");
+        } else {
+            update(digest, value);
+        }
+    }
+
+    private static void update(MessageDigest digest, Object value) {
+        // length-prefixed so that adjacent values cannot run into each other,
+        // with a length of -1 for null
+        byte[] bytes = value == null
+                ? new byte[0]
+                : value.toString().getBytes(StandardCharsets.UTF_8);
+        int length = value == null ? -1 : bytes.length;
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+        digest.update(bytes);
+    }
+}
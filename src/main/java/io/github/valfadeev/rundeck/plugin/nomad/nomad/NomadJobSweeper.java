@@ -0,0 +1,352 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobListStub;
+import com.hashicorp.nomad.javasdk.JobsApi;
+import com.hashicorp.nomad.javasdk.NomadException;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationValues;
+
+/**
+ * Deregisters and purges the finished jobs this plugin registered once
+ * per execution, so they do not pile up in the Nomad state store.
+ *
+ * Such jobs carry the {@value #META_MARKER} meta key. Jobs of any other
+ * origin, and jobs with a stable id, are never touched. A sweeper only
+ * lists the jobs whose ids start with the id of a Rundeck job it has run
+ * a step for, in the namespace of the steps, with the credentials of the
+ * latest step. Jobs are aged from the first pass which saw them dead at
+ * their current modify index, as the job list has no finish time; a job
+ * which runs again starts over. Each pass lists at most a batch worth of
+ * prefixes, taking turns, and issues at most a batch worth of lookups and
+ * purges, spaced out and oldest first, so the load on the servers stays
+ * bounded however many jobs are waiting to be swept. Each pass schedules
+ * the next one with the interval of the latest step. A failed pass is
+ * counted, and the counts are exported with the step metrics.
+ */
+public class NomadJobSweeper {
+
+    public static final String META_MARKER = "rundeck_nomad_step";
+    public static final String META_MARKER_VALUE = "ephemeral";
+
+    public static final long DEFAULT_RETENTION = 86400;
+    public static final long DEFAULT_INTERVAL = 300;
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    static final long REQUEST_SPACING_MILLIS = 100;
+
+    private static final int MAX_REMEMBERED_FOREIGN_JOBS = 10000;
+    private static final int MAX_REMEMBERED_DEAD_JOBS = 10000;
+    private static final int MAX_PREFIXES = 1000;
+    private static final String STATUS_DEAD = "dead";
+
+    /**
+     * The part of the jobs API the sweeper uses.
+     */
+    interface Cluster {
+        List<JobListStub> list(String prefix) throws IOException, NomadException;
+
+        Job info(String jobId) throws IOException, NomadException;
+
+        void purge(String jobId) throws IOException, NomadException;
+    }
+
+    // by job scope, so that a new token or client setting takes over
+    // the running sweeper instead of starting another one
+    private static final ConcurrentMap<String, NomadJobSweeper> sweepers =
+            new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "nomad-job-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private volatile long retentionMillis;
+    private volatile int batchSize;
+    private volatile long intervalSeconds = DEFAULT_INTERVAL;
+    private final long spacingMillis;
+
+    // the configuration of the latest step, whose credentials every pass
+    // leases a client with
+    private volatile Map<String, Object> configuration;
+
+    // guarded by this
+    // Rundeck job ids, in the order they take turns to be listed
+    private final Set<String> prefixes = new LinkedHashSet<>();
+    // jobs found without the marker, by id and create index, so they
+    // are not looked up again on every pass
+    private final Set<String> foreign = new LinkedHashSet<>();
+    // when the dead jobs were first seen dead, by id and modify index
+    private final Map<String, Long> deadSince = new LinkedHashMap<>();
+
+    private final AtomicLong swept = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    NomadJobSweeper(long retentionMillis, int batchSize, long spacingMillis) {
+        this.retentionMillis = retentionMillis;
+        this.batchSize = batchSize;
+        this.spacingMillis = spacingMillis;
+    }
+
+    /**
+     * Marks a job as registered for a single execution, which makes it
+     * eligible for sweeping once it is dead. Jobs dispatched from a
+     * marked parameterized job inherit the marker.
+     */
+    public static Job mark(Job job) {
+        return job.addMeta(META_MARKER, META_MARKER_VALUE);
+    }
+
+    public static boolean isMarked(Job job) {
+        return job.getMeta() != null
+                && META_MARKER_VALUE.equals(job.getMeta().get(META_MARKER));
+    }
+
+    /**
+     * Starts sweeping the jobs of the given Rundeck job in the job scope
+     * of the step, if sweeping is enabled. The sweeper of the scope is
+     * started with its first step; later steps add their Rundeck job and
+     * hand it their configuration, which the following passes use.
+     *
+     * @param rundeckJobId the id of the Rundeck job, which the ids of the
+     *                     Nomad jobs it registers start with
+     */
+    public static void start(final NomadStepConfiguration config, final String rundeckJobId) {
+        Map<String, Object> configuration = config.getConfiguration();
+        if (!ConfigurationValues.getBoolean(configuration,
+                NomadConfigOptions.NOMAD_SWEEP_JOBS, false)) {
+            return;
+        }
+        NomadJobSweeper sweeper = sweepers.computeIfAbsent(config.getJobScope(), key -> {
+            NomadJobSweeper created = new NomadJobSweeper(
+                    TimeUnit.SECONDS.toMillis(DEFAULT_RETENTION),
+                    DEFAULT_BATCH_SIZE,
+                    REQUEST_SPACING_MILLIS);
+            created.configure(configuration);
+            created.scheduleNext();
+            return created;
+        });
+        sweeper.configure(configuration);
+        sweeper.addPrefix(rundeckJobId);
+    }
+
+    /**
+     * Applies the settings and credentials of the latest step.
+     */
+    void configure(Map<String, Object> configuration) {
+        this.retentionMillis = TimeUnit.SECONDS.toMillis(ConfigurationValues.getLong(
+                configuration,
+                NomadConfigOptions.NOMAD_SWEEP_RETENTION,
+                DEFAULT_RETENTION));
+        this.batchSize = ConfigurationValues.getInt(configuration,
+                NomadConfigOptions.NOMAD_SWEEP_BATCH_SIZE,
+                DEFAULT_BATCH_SIZE);
+        this.intervalSeconds = Math.max(1, ConfigurationValues.getLong(configuration,
+                NomadConfigOptions.NOMAD_SWEEP_INTERVAL,
+                DEFAULT_INTERVAL));
+        this.configuration = configuration;
+    }
+
+    synchronized void addPrefix(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return;
+        }
+        prefixes.add(prefix);
+        if (prefixes.size() > MAX_PREFIXES) {
+            Iterator<String> next = prefixes.iterator();
+            next.next();
+            next.remove();
+        }
+    }
+
+    private void scheduleNext() {
+        scheduler.schedule(this::run, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void run() {
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(configuration)) {
+            sweep(cluster(lease.getClient().getJobsApi()), System.currentTimeMillis());
+        } catch (IOException | NomadException | RuntimeException e) {
+            // try again on the next pass
+            failures.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Runs one pass, returning the number of jobs purged.
+     */
+    int sweep(Cluster cluster, long now)
+            throws IOException, NomadException, InterruptedException {
+        long cutoff = now - retentionMillis;
+        List<JobListStub> candidates = new ArrayList<>();
+        Map<JobListStub, Long> ages = new IdentityHashMap<>();
+        for (String prefix : nextPrefixes()) {
+            for (JobListStub stub : cluster.list(prefix)) {
+                if (!STATUS_DEAD.equals(stub.getStatus())
+                        || stub.getPeriodic()
+                        || stub.getParameterizedJob()
+                        || isForeign(stub)) {
+                    continue;
+                }
+                long since = seenDead(stub, now);
+                if (since <= cutoff) {
+                    candidates.add(stub);
+                    ages.put(stub, since);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingLong(ages::get));
+
+        int requests = 0;
+        int purged = 0;
+        for (JobListStub stub : candidates) {
+            if (requests >= batchSize) {
+                break;
+            }
+            pause(requests++);
+            Job job = cluster.info(stub.getId());
+            if (!isMarked(job)) {
+                rememberForeign(stub);
+                continue;
+            }
+            if (requests >= batchSize) {
+                break;
+            }
+            pause(requests++);
+            cluster.purge(stub.getId());
+            forgetDead(stub);
+            swept.incrementAndGet();
+            purged++;
+        }
+        return purged;
+    }
+
+    /**
+     * @return the number of jobs purged so far, by job scope
+     */
+    public static Map<String, Long> getSweptCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        sweepers.forEach((scope, sweeper) -> counts.put(scope, sweeper.getSweptCount()));
+        return counts;
+    }
+
+    /**
+     * @return the number of passes which failed so far, by job scope
+     */
+    public static Map<String, Long> getFailureCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        sweepers.forEach((scope, sweeper) -> counts.put(scope, sweeper.getFailureCount()));
+        return counts;
+    }
+
+    public long getSweptCount() {
+        return swept.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    private void pause(int requests) throws InterruptedException {
+        if (requests > 0 && spacingMillis > 0) {
+            Thread.sleep(spacingMillis);
+        }
+    }
+
+    /**
+     * @return the prefixes to list in this pass, which then go to the
+     *         back of the line
+     */
+    private synchronized List<String> nextPrefixes() {
+        List<String> next = new ArrayList<>();
+        Iterator<String> it = prefixes.iterator();
+        while (it.hasNext() && next.size() < Math.max(batchSize, 1)) {
+            next.add(it.next());
+            it.remove();
+        }
+        prefixes.addAll(next);
+        return next;
+    }
+
+    /**
+     * @return when the job was first seen dead at its current modify
+     *         index
+     */
+    private synchronized long seenDead(JobListStub stub, long now) {
+        String key = stub.getId() + "@" + stub.getModifyIndex();
+        Long since = deadSince.get(key);
+        if (since == null) {
+            since = now;
+            deadSince.put(key, since);
+            if (deadSince.size() > MAX_REMEMBERED_DEAD_JOBS) {
+                Iterator<String> oldest = deadSince.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return since;
+    }
+
+    private synchronized void forgetDead(JobListStub stub) {
+        deadSince.remove(stub.getId() + "@" + stub.getModifyIndex());
+    }
+
+    private synchronized boolean isForeign(JobListStub stub) {
+        return foreign.contains(foreignKey(stub));
+    }
+
+    private synchronized void rememberForeign(JobListStub stub) {
+        foreign.add(foreignKey(stub));
+        if (foreign.size() > MAX_REMEMBERED_FOREIGN_JOBS) {
+            Iterator<String> oldest = foreign.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private static String foreignKey(JobListStub stub) {
+        return stub.getId() + "@" + stub.getCreateIndex();
+    }
+
+    private static Cluster cluster(final JobsApi jobsApi) {
+        return new Cluster() {
+            @Override
+            public List<JobListStub> list(String prefix) throws IOException, NomadException {
+                return jobsApi.list(prefix).getValue();
+            }
+
+            @Override
+            public Job info(String jobId) throws IOException, NomadException {
+                return jobsApi.info(jobId).getValue();
+            }
+
+            @Override
+            public void purge(String jobId) throws IOException, NomadException {
+                jobsApi.deregister(jobId, true);
+            }
+        };
+    }
+}
@@ -0,0 +1,305 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.dtolabs.rundeck.plugins.PluginLogger;
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.javasdk.ClientApi;
+import com.hashicorp.nomad.javasdk.FramedStream;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+
+/**
+ * Streams the stdout and stderr of allocation tasks into the step log.
+ *
+ * Every stream is read on a thread of its own. The number of streams
+ * read at once is capped per cluster, across all steps, by the latest
+ * configured maximum; further streams wait for a step of theirs to
+ * finish a stream, or for a slot to free up. Lines are logged as they
+ * are read, so a reader falls behind a chatty task rather than
+ * buffering its output. Reader threads are only created when a stream
+ * gets a slot, and are started from the step thread, so that their log
+ * lines keep the context of the step. A reader goes on with the next
+ * waiting stream of its step before giving its slot back.
+ * Calls to {@link #follow(List)} must not overlap.
+ */
+public class NomadLogStreamer implements Closeable {
+
+    public static final int DEFAULT_MAX_STREAMS = 8;
+    public static final long DEFAULT_DRAIN_TIMEOUT = 30;
+
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_BACKOFF = 1000;
+    private static final String[] LOG_TYPES = {"stdout", "stderr"};
+
+    private static final ConcurrentMap<String, Slots> clusters = new ConcurrentHashMap<>();
+
+    @FunctionalInterface
+    public interface Source {
+        FramedStream open(String allocId, String nodeId, String task, String type)
+                throws IOException, NomadException;
+    }
+
+    private final Source source;
+    private final PluginLogger logger;
+    private final Slots slots;
+    private final Set<String> followed = new HashSet<>();
+    private final List<CompletableFuture<Void>> streams = new ArrayList<>();
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final Set<Thread> readers = ConcurrentHashMap.newKeySet();
+    private final Set<FramedStream> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    public NomadLogStreamer(String cluster, Source source, PluginLogger logger, int maxStreams) {
+        this.source = source;
+        this.logger = logger;
+        this.slots = clusters.computeIfAbsent(cluster, k -> new Slots());
+        slots.setMax(maxStreams);
+    }
+
+    public static NomadLogStreamer create(String cluster,
+                                          NomadApiClient apiClient,
+                                          PluginLogger logger,
+                                          int maxStreams) {
+        ConcurrentMap<String, ClientApi> clients = new ConcurrentHashMap<>();
+        return new NomadLogStreamer(cluster, (allocId, nodeId, task, type) -> {
+            ClientApi clientApi = clients.get(nodeId);
+            if (clientApi == null) {
+                clientApi = apiClient.lookupClientApiByNodeId(nodeId);
+                clients.put(nodeId, clientApi);
+            }
+            return clientApi.logsAsFrames(allocId, task, true, type);
+        }, logger, maxStreams);
+    }
+
+    /**
+     * @return the number of slots of the cluster held by readers
+     */
+    public static int getActiveCount(String cluster) {
+        Slots slots = clusters.get(cluster);
+        return slots == null ? 0 : slots.getActive();
+    }
+
+    /**
+     * Starts streaming the logs of the tasks of every allocation which
+     * has been placed and is not streamed yet, as far as the cluster has
+     * slots to spare.
+     */
+    public void follow(List<AllocationListStub> allocs) {
+        for (AllocationListStub alloc : allocs) {
+            Map<String, ?> taskStates = alloc.getTaskStates();
+            if (taskStates == null || "pending".equals(alloc.getClientStatus())) {
+                continue;
+            }
+            for (String task : taskStates.keySet()) {
+                for (String type : LOG_TYPES) {
+                    if (followed.add(String.format("%s/%s/%s", alloc.getId(), task, type))) {
+                        CompletableFuture<Void> done = new CompletableFuture<>();
+                        streams.add(done);
+                        waiting.add(() -> {
+                            try {
+                                stream(alloc.getId(), alloc.getNodeId(), task, type);
+                                done.complete(null);
+                            } catch (RuntimeException e) {
+                                done.completeExceptionally(e);
+                            }
+                        });
+                    }
+                }
+            }
+        }
+        while (!closed && !waiting.isEmpty() && slots.tryAcquire()) {
+            startReader();
+        }
+    }
+
+    /**
+     * Waits for the streams to reach the end of the logs, starting the
+     * waiting ones as slots free up. The streams still open when the
+     * timeout runs out are closed.
+     */
+    public void await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (!waiting.isEmpty()) {
+                if (!slots.acquire(deadline - System.currentTimeMillis())) {
+                    logger.log(1, "Timed out waiting for task logs");
+                    return;
+                }
+                if (waiting.isEmpty()) {
+                    // the readers of this step took the rest meanwhile
+                    slots.release();
+                    break;
+                }
+                startReader();
+            }
+            for (CompletableFuture<Void> stream : streams) {
+                try {
+                    stream.get(Math.max(deadline - System.currentTimeMillis(), 0),
+                            TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    logger.log(3, String.format("Log stream failed: %s", e.getCause()));
+                } catch (TimeoutException e) {
+                    logger.log(1, "Timed out waiting for task logs");
+                    return;
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        waiting.clear();
+        for (Thread reader : readers) {
+            reader.interrupt();
+        }
+        // socket reads are not interruptible, closing the stream ends them
+        for (FramedStream stream : open) {
+            closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Starts a reader on a slot already taken, which reads the waiting
+     * streams of this step one after the other.
+     */
+    private void startReader() {
+        Thread reader = new Thread(() -> {
+            try {
+                do {
+                    Runnable next;
+                    while (!closed && (next = waiting.poll()) != null) {
+                        next.run();
+                    }
+                    slots.release();
+                    // a stream may have been queued just before the slot
+                    // was given back, when no slot was left to start it
+                } while (!closed && !waiting.isEmpty() && slots.tryAcquire());
+            } finally {
+                readers.remove(Thread.currentThread());
+            }
+        }, "nomad-log-stream");
+        reader.setDaemon(true);
+        readers.add(reader);
+        reader.start();
+    }
+
+    private void stream(String allocId, String nodeId, String task, String type) {
+        String prefix = String.format("[%s/%s/%s] ", shortId(allocId), task, type);
+        int level = "stderr".equals(type) ? 1 : 2;
+        LogFollower follower = new LogFollower(
+                line -> logger.log(level, prefix + line), MAX_LINE_LENGTH);
+
+        int attempt = 0;
+        while (!closed) {
+            FramedStream frames = null;
+            try {
+                frames = source.open(allocId, nodeId, task, type);
+                open.add(frames);
+                if (closed) {
+                    break;
+                }
+                while (frames.hasNextFrame()) {
+                    follower.accept(frames.nextFrame());
+                    attempt = 0;
+                }
+                break;
+            } catch (IOException | NomadException e) {
+                if (closed || attempt >= MAX_RETRIES) {
+                    if (!closed) {
+                        logger.log(1, String.format("Could not stream %s of allocation %s: %s",
+                                type, allocId, e.getMessage()));
+                    }
+                    break;
+                }
+                try {
+                    // reopen the stream, the follower skips what it has seen
+                    Thread.sleep(RETRY_BACKOFF << attempt++);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            } finally {
+                if (frames != null) {
+                    open.remove(frames);
+                    closeQuietly(frames);
+                }
+            }
+        }
+        follower.flush();
+    }
+
+    private static String shortId(String id) {
+        return id != null && id.length() > 8 ? id.substring(0, 8) : String.valueOf(id);
+    }
+
+    private static void closeQuietly(FramedStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
+    }
+
+    /**
+     * The stream slots of a cluster.
+     */
+    private static class Slots {
+
+        // guarded by this
+        private int max = DEFAULT_MAX_STREAMS;
+        private int active = 0;
+
+        synchronized void setMax(int max) {
+            this.max = Math.max(max, 1);
+            notifyAll();
+        }
+
+        synchronized int getActive() {
+            return active;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (active >= max) {
+                return false;
+            }
+            active++;
+            return true;
+        }
+
+        synchronized boolean acquire(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (active >= max) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            active++;
+            return true;
+        }
+
+        synchronized void release() {
+            active--;
+            notifyAll();
+        }
+    }
+}
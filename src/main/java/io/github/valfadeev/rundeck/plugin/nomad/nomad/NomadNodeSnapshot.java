@@ -0,0 +1,318 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.hashicorp.nomad.apimodel.Allocation;
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Node;
+import com.hashicorp.nomad.apimodel.NodeListStub;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import com.hashicorp.nomad.javasdk.NomadException;
+
+/**
+ * Per-cluster view of the free CPU and memory of the client nodes, used
+ * to leave out datacenters which cannot fit a job before it is
+ * registered.
+ *
+ * A refresh lists the nodes and the allocations, which Nomad answers
+ * cheaply, and only reads the details of nodes which changed since the
+ * last refresh and of allocations not seen before. The resources of an
+ * allocation never change, a change of resources replaces it.
+ *
+ * Steps do not wait for a refresh: a snapshot older than the TTL is
+ * refreshed on a single background thread, while steps go on placing
+ * jobs with the last one. A refresh builds the new view aside and swaps
+ * it in, so placing never waits for Nomad either.
+ */
+public class NomadNodeSnapshot {
+
+    public static final long DEFAULT_TTL = 30;
+
+    private static final ConcurrentMap<String, NomadNodeSnapshot> snapshots =
+            new ConcurrentHashMap<>();
+
+    private static final ExecutorService refresher =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "nomad-node-snapshot-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Where a snapshot reads the cluster state from.
+     */
+    public interface Source {
+
+        List<NodeListStub> nodes() throws IOException, NomadException;
+
+        Node node(String id) throws IOException, NomadException;
+
+        List<AllocationListStub> allocations() throws IOException, NomadException;
+
+        Allocation allocation(String id) throws IOException, NomadException;
+    }
+
+    /**
+     * A refresh run on the refresher thread.
+     */
+    @FunctionalInterface
+    interface Refresh {
+        void run() throws IOException, NomadException;
+    }
+
+    // replaced as a whole by a refresh, never changed once published
+    // guarded by this
+    private Map<String, NodeCapacity> nodes = new HashMap<>();
+    private Map<String, Usage> allocations = new HashMap<>();
+
+    // held for a whole refresh, so that refreshes do not overlap
+    private final Object refreshLock = new Object();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private volatile long refreshedAt = 0;
+    private volatile String lastError;
+
+    public static NomadNodeSnapshot forCluster(String cluster) {
+        return snapshots.computeIfAbsent(cluster, k -> new NomadNodeSnapshot());
+    }
+
+    public static void invalidateAll() {
+        snapshots.clear();
+    }
+
+    public static Source source(NomadApiClient client) {
+        return new Source() {
+            @Override
+            public List<NodeListStub> nodes() throws IOException, NomadException {
+                return client.getNodesApi().list().getValue();
+            }
+
+            @Override
+            public Node node(String id) throws IOException, NomadException {
+                return client.getNodesApi().info(id).getValue();
+            }
+
+            @Override
+            public List<AllocationListStub> allocations() throws IOException, NomadException {
+                return client.getAllocationsApi().list().getValue();
+            }
+
+            @Override
+            public Allocation allocation(String id) throws IOException, NomadException {
+                return client.getAllocationsApi().info(id).getValue();
+            }
+        };
+    }
+
+    /**
+     * Starts a refresh in the background, with a client leased for the
+     * given configuration, unless the snapshot is younger than the given
+     * age or a refresh is running already. Returns at once.
+     */
+    public void refreshInBackground(Map<String, Object> configuration, long maxAgeMillis) {
+        refreshInBackground(maxAgeMillis, () -> {
+            try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(configuration)) {
+                refresh(source(lease.getClient()), maxAgeMillis);
+            }
+        });
+    }
+
+    void refreshInBackground(long maxAgeMillis, Refresh refresh) {
+        if (System.currentTimeMillis() - refreshedAt < maxAgeMillis
+                || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.submit(() -> {
+            try {
+                refresh.run();
+                lastError = null;
+            } catch (IOException | NomadException | RuntimeException e) {
+                // keep the last snapshot, the next step tries again
+                lastError = String.valueOf(e.getMessage());
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    /**
+     * @return whether the snapshot has been refreshed at least once
+     */
+    public boolean isLoaded() {
+        return refreshedAt > 0;
+    }
+
+    /**
+     * @return why the latest background refresh failed, or null if it
+     *         did not
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Refreshes the snapshot on the calling thread unless it is younger
+     * than the given age. Concurrent callers wait for a single refresh;
+     * callers placing jobs meanwhile use the previous snapshot.
+     */
+    public void refresh(Source source, long maxAgeMillis)
+            throws IOException, NomadException {
+        synchronized (refreshLock) {
+            if (System.currentTimeMillis() - refreshedAt < maxAgeMillis) {
+                return;
+            }
+            Map<String, NodeCapacity> knownNodes;
+            Map<String, Usage> knownAllocations;
+            synchronized (this) {
+                knownNodes = nodes;
+                knownAllocations = allocations;
+            }
+
+            Map<String, NodeCapacity> freshNodes = new HashMap<>();
+            for (NodeListStub stub : source.nodes()) {
+                NodeCapacity known = knownNodes.get(stub.getId());
+                if (known == null || !Objects.equals(known.modifyIndex, stub.getModifyIndex())) {
+                    known = new NodeCapacity(stub, source.node(stub.getId()));
+                }
+                freshNodes.put(stub.getId(), known);
+            }
+
+            Map<String, Usage> freshAllocations = new HashMap<>();
+            for (AllocationListStub stub : source.allocations()) {
+                if (!isLive(stub)) {
+                    continue;
+                }
+                Usage known = knownAllocations.get(stub.getId());
+                if (known == null) {
+                    Resources resources = source.allocation(stub.getId()).getResources();
+                    known = new Usage(stub.getNodeId(),
+                            valueOf(resources == null ? null : resources.getCpu()),
+                            valueOf(resources == null ? null : resources.getMemoryMb()));
+                }
+                freshAllocations.put(stub.getId(), known);
+            }
+
+            synchronized (this) {
+                nodes = freshNodes;
+                allocations = freshAllocations;
+            }
+            refreshedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Picks the datacenters to register a job with from the candidates.
+     *
+     * Datacenters without room for a single instance are left out, and the
+     * others are ordered by how many instances they have room for. When
+     * the remaining datacenters cannot fit the whole group together, the
+     * candidates are returned as they are, so that Nomad queues the job
+     * as it would have without the snapshot.
+     */
+    public synchronized List<String> place(List<String> candidates,
+                                           int cpu,
+                                           int memory,
+                                           int count) {
+        Map<String, Long> room = new LinkedHashMap<>();
+        long total = 0;
+        for (String datacenter : candidates) {
+            long instances = getRoom(datacenter, cpu, memory);
+            if (instances > 0) {
+                room.put(datacenter, instances);
+                total += instances;
+            }
+        }
+        if (room.isEmpty() || total < count) {
+            return candidates;
+        }
+        List<String> placed = new ArrayList<>(room.keySet());
+        placed.sort(Comparator.comparing((String dc) -> room.get(dc)).reversed());
+        return Collections.unmodifiableList(placed);
+    }
+
+    /**
+     * @return how many instances of a task with the given resources the
+     *         ready nodes of the datacenter have room for
+     */
+    public synchronized long getRoom(String datacenter, int cpu, int memory) {
+        Map<String, long[]> used = new HashMap<>();
+        for (Usage usage : allocations.values()) {
+            long[] sum = used.computeIfAbsent(usage.nodeId, k -> new long[2]);
+            sum[0] += usage.cpu;
+            sum[1] += usage.memory;
+        }
+
+        long instances = 0;
+        for (Map.Entry<String, NodeCapacity> entry : nodes.entrySet()) {
+            NodeCapacity node = entry.getValue();
+            if (!node.eligible || !node.datacenter.equals(datacenter)) {
+                continue;
+            }
+            long[] sum = used.getOrDefault(entry.getKey(), new long[2]);
+            long freeCpu = node.cpu - sum[0];
+            long freeMemory = node.memory - sum[1];
+            if (freeCpu > 0 && freeMemory > 0) {
+                instances += Math.min(freeCpu / Math.max(cpu, 1), freeMemory / Math.max(memory, 1));
+            }
+        }
+        return instances;
+    }
+
+    private static boolean isLive(AllocationListStub stub) {
+        return "run".equals(stub.getDesiredStatus())
+                && ("pending".equals(stub.getClientStatus())
+                || "running".equals(stub.getClientStatus()));
+    }
+
+    private static long valueOf(Integer value) {
+        return value == null ? 0 : value;
+    }
+
+    private static class NodeCapacity {
+
+        private final BigInteger modifyIndex;
+        private final String datacenter;
+        private final boolean eligible;
+        private final long cpu;
+        private final long memory;
+
+        NodeCapacity(NodeListStub stub, Node node) {
+            this.modifyIndex = stub.getModifyIndex();
+            this.datacenter = node.getDatacenter();
+            this.eligible = "ready".equals(node.getStatus()) && !node.getDrain();
+            Resources total = node.getResources();
+            Resources reserved = node.getReserved();
+            this.cpu = (total == null ? 0 : valueOf(total.getCpu()))
+                    - (reserved == null ? 0 : valueOf(reserved.getCpu()));
+            this.memory = (total == null ? 0 : valueOf(total.getMemoryMb()))
+                    - (reserved == null ? 0 : valueOf(reserved.getMemoryMb()));
+        }
+    }
+
+    private static class Usage {
+
+        private final String nodeId;
+        private final long cpu;
+        private final long memory;
+
+        Usage(String nodeId, long cpu, long memory) {
+            this.nodeId = nodeId;
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+    }
+}
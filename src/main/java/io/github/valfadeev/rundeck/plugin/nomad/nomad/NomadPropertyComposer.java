@@ -1,5 +1,6 @@
 package io.github.valfadeev.rundeck.plugin.nomad.nomad;
 
+import com.dtolabs.rundeck.core.plugins.configuration.PropertyScope;
 import com.dtolabs.rundeck.core.plugins.configuration.StringRenderingConstants;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
 import com.dtolabs.rundeck.plugins.util.PropertyBuilder;
@@ -15,7 +16,9 @@ public class NomadPropertyComposer extends PropertyComposer {
                 .property(PropertyBuilder.builder()
                         .string(NOMAD_URL)
                         .title("Nomad agent URL")
-                        .description("URL of the Nomad agent to submit job (including url scheme and port)")
+                        .description("URL of the Nomad agent to submit job (including url scheme and port). "
+                                + "A comma-separated list of servers or agents of the same "
+                                + "cluster fails over between them and sends reads to the fastest.")
                         .required(true)
                         .build()
                 )
@@ -37,6 +40,25 @@ public class NomadPropertyComposer extends PropertyComposer {
                         .defaultValue("")
                         .build()
                 )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_NAMESPACE)
+                        .title("Nomad namespace")
+                        .description("The namespace in which to register the job. "
+                                + "Defaults to the default namespace.")
+                        .required(false)
+                        .defaultValue("")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_CAPACITY_PLACEMENT)
+                        .title("Capacity-aware placement")
+                        .description("Leave out the datacenters whose ready "
+                                + "nodes have no CPU or memory left for the "
+                                + "task before registering the job.")
+                        .required(false)
+                        .defaultValue("false")
+                        .build()
+                )
                 .property(PropertyBuilder.builder()
                         .integer(NOMAD_GROUP_COUNT)
                         .title("Count")
@@ -65,6 +87,130 @@ public class NomadPropertyComposer extends PropertyComposer {
                         .defaultValue("0")
                         .build()
                 )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_STOP_ON_FAILURE)
+                        .title("Stop job on failure")
+                        .description("Stop the Nomad job as soon as too many "
+                                + "allocations have failed, its evaluation is blocked "
+                                + "or the step is aborted, instead of letting the "
+                                + "remaining allocations run.")
+                        .required(false)
+                        .defaultValue("false")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_PURGE_ON_STOP)
+                        .title("Purge stopped job")
+                        .description("Purge the job from Nomad when it is "
+                                + "stopped on failure.")
+                        .required(false)
+                        .defaultValue("false")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_WAIT_FOR_CAPACITY)
+                        .title("Wait for capacity")
+                        .description("When the cluster cannot place the job "
+                                + "right away, wait for its blocked evaluation "
+                                + "to be placed instead of failing the step.")
+                        .required(false)
+                        .defaultValue("false")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_CAPACITY_TIMEOUT)
+                        .title("Capacity timeout, s")
+                        .description("How long to wait for a blocked "
+                                + "evaluation to be placed, also the longest "
+                                + "time a submission is held back while too "
+                                + "many evaluations are blocked.")
+                        .required(false)
+                        .defaultValue("600")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_STREAM_LOGS)
+                        .title("Stream task logs")
+                        .description("Copy stdout and stderr of the tasks "
+                                + "of a batch job into the step log.")
+                        .required(false)
+                        .defaultValue("false")
+                        .renderingOption("groupName", "Logs")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_LOG_STREAMS_MAX)
+                        .title("Max concurrent log streams")
+                        .description("Number of task logs read at the same "
+                                + "time from the cluster, by all steps together; "
+                                + "further logs wait for a free stream.")
+                        .required(false)
+                        .defaultValue("8")
+                        .renderingOption("groupName", "Logs")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_LOG_DRAIN_TIMEOUT)
+                        .title("Log drain timeout, s")
+                        .description("How long to keep reading task logs "
+                                + "once all allocations have finished.")
+                        .required(false)
+                        .defaultValue("30")
+                        .renderingOption("groupName", "Logs")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_STABLE_ID)
+                        .title("Stable job identity")
+                        .description("Run a service job under the Rundeck job ID "
+                                + "and only register it when its definition has "
+                                + "changed, instead of starting a new copy on every run.")
+                        .required(false)
+                        .defaultValue("false")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_DISPATCH)
+                        .title("Dispatch mode")
+                        .description("Register one parameterized batch job for "
+                                + "this Rundeck job, and dispatch it on every run "
+                                + "instead of registering a new job.")
+                        .required(false)
+                        .defaultValue("false")
+                        .renderingOption("groupName", "Dispatch")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_DISPATCH_META)
+                        .title("Dispatch metadata")
+                        .description("A list of newline separated metadata "
+                                + "assignments passed with every dispatch. "
+                                + "Example: FOO=foo\\nBAR=bar")
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("displayType",
+                                StringRenderingConstants.DisplayType.MULTI_LINE)
+                        .renderingOption("groupName", "Dispatch")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_DISPATCH_PAYLOAD)
+                        .title("Dispatch payload")
+                        .description("Payload passed with every dispatch, "
+                                + "written to local/rundeck-payload in the task.")
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("displayType",
+                                StringRenderingConstants.DisplayType.MULTI_LINE)
+                        .renderingOption("groupName", "Dispatch")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
                 .property(PropertyBuilder.builder()
                         .string(NOMAD_ENV_VARS)
                         .title("Environment variables")
@@ -164,6 +310,29 @@ public class NomadPropertyComposer extends PropertyComposer {
                         .renderingOption("grouping", "secondary")
                         .build()
                 )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_WATCH_DEPLOYMENT)
+                        .title("Wait for deployment")
+                        .description("For service jobs, follow the deployment "
+                                + "of the job until it is successful, and fail "
+                                + "the step if it fails or is rolled back.")
+                        .required(false)
+                        .defaultValue("false")
+                        .renderingOption("groupName", "Update Strategy")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_AUTO_PROMOTE)
+                        .title("Auto-promote canaries")
+                        .description("While waiting for the deployment, promote "
+                                + "the canaries once they are all healthy.")
+                        .required(false)
+                        .defaultValue("false")
+                        .renderingOption("groupName", "Update Strategy")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
                 .property(PropertyBuilder.builder()
                         .string(NOMAD_DYNAMIC_PORTS)
                         .title("Dynamic port labels")
@@ -228,6 +397,370 @@ public class NomadPropertyComposer extends PropertyComposer {
                         .renderingOption("groupName", "Resource constraints")
                         .renderingOption("grouping", "secondary")
                         .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_ACL_TOKEN)
+                        .title("ACL token")
+                        .description("Secret ID of the ACL token used "
+                                + "to authenticate with Nomad.")
+                        .renderingOption("selectionAccessor",
+                                StringRenderingConstants.SelectionAccessor.STORAGE_PATH)
+                        .renderingOption("valueConversion",
+                                StringRenderingConstants.ValueConversion.STORAGE_PATH_AUTOMATIC_READ)
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("groupName", "Security")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_TLS_CA_FILE)
+                        .title("TLS CA certificate")
+                        .description("Path to the PEM-encoded CA certificate "
+                                + "used to verify the Nomad agent certificate.")
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("groupName", "Security")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_TLS_CERT_FILE)
+                        .title("TLS client certificate")
+                        .description("Path to the PEM-encoded client certificate "
+                                + "presented to the Nomad agent.")
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("groupName", "Security")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_TLS_KEY_FILE)
+                        .title("TLS client key")
+                        .description("Path to the PEM-encoded private key "
+                                + "of the client certificate.")
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("groupName", "Security")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_TLS_SERVER_NAME)
+                        .title("TLS server name")
+                        .description("Name the certificates of the Nomad agents "
+                                + "are also accepted for when they do not match "
+                                + "their address, e.g. server.global.nomad.")
+                        .required(false)
+                        .defaultValue("")
+                        .renderingOption("groupName", "Security")
+                        .renderingOption("grouping", "secondary")
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_CLIENT_MAX_CONNECTIONS)
+                        .title("Max connections")
+                        .description("Maximum number of pooled HTTP connections "
+                                + "kept open to a Nomad cluster.")
+                        .required(false)
+                        .defaultValue("100")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_CLIENT_MAX_CONNECTIONS_PER_ROUTE)
+                        .title("Max connections per route")
+                        .description("Maximum number of pooled HTTP connections "
+                                + "kept open to a single Nomad agent.")
+                        .required(false)
+                        .defaultValue("20")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_CLIENT_CONNECTION_IDLE_TIMEOUT)
+                        .title("Connection idle timeout, s")
+                        .description("Pooled connections idle for longer "
+                                + "than this are closed.")
+                        .required(false)
+                        .defaultValue("30")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_CLIENT_IDLE_TIMEOUT)
+                        .title("Client idle timeout, s")
+                        .description("Shared Nomad clients not used by any step "
+                                + "for longer than this are closed.")
+                        .required(false)
+                        .defaultValue("600")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_CLIENT_CONNECT_TIMEOUT)
+                        .title("Connect timeout, s")
+                        .description("Time allowed for opening a connection "
+                                + "to a Nomad agent, 0 for no limit.")
+                        .required(false)
+                        .defaultValue("10")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_CLIENT_READ_TIMEOUT)
+                        .title("Read timeout, s")
+                        .description("Time allowed between two reads from a "
+                                + "Nomad agent, 0 for no limit. Never shorter "
+                                + "than the blocking query wait.")
+                        .required(false)
+                        .defaultValue("0")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_CLIENT_TCP_KEEPALIVE)
+                        .title("TCP keep-alive")
+                        .description("Enable TCP keep-alive on connections "
+                                + "to Nomad agents, so that dead peers of "
+                                + "long blocking queries are noticed.")
+                        .required(false)
+                        .defaultValue("true")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_CLIENT_COMPRESSION)
+                        .title("Compression")
+                        .description("Ask Nomad agents for gzip-compressed "
+                                + "responses.")
+                        .required(false)
+                        .defaultValue("true")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_TLS_SESSION_TIMEOUT)
+                        .title("TLS session timeout, s")
+                        .description("How long TLS sessions with Nomad agents "
+                                + "are kept for resumption.")
+                        .required(false)
+                        .defaultValue("86400")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_ENDPOINT_PROBE_INTERVAL)
+                        .title("Endpoint probe interval, s")
+                        .description("How often each of several Nomad URLs is "
+                                + "checked, and how long a failed one is skipped "
+                                + "for. 0 disables the checks.")
+                        .required(false)
+                        .defaultValue("10")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_AGENT_CONFIG_TTL)
+                        .title("Agent configuration TTL, s")
+                        .description("How long the agent configuration used for "
+                                + "default datacenter and region is cached.")
+                        .required(false)
+                        .defaultValue("60")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_AGENT_CONFIG_STALE_TTL)
+                        .title("Agent configuration stale window, s")
+                        .description("How long an expired agent configuration "
+                                + "may still be served while it is refreshed "
+                                + "in the background.")
+                        .required(false)
+                        .defaultValue("300")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_BLOCKING_QUERY_WAIT)
+                        .title("Blocking query wait, s")
+                        .description("Maximum time the Nomad server may hold a "
+                                + "blocking query for evaluation or allocation "
+                                + "status before answering (at most 600).")
+                        .required(false)
+                        .defaultValue("300")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_RETRY_BACKOFF)
+                        .title("Retry backoff, ms")
+                        .description("Base delay before retrying a failed "
+                                + "status query, doubled on every attempt "
+                                + "and randomized.")
+                        .required(false)
+                        .defaultValue("500")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_RETRY_MAX_BACKOFF)
+                        .title("Max retry backoff, ms")
+                        .description("Upper bound of the delay between retries.")
+                        .required(false)
+                        .defaultValue("30000")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_MAX_RETRIES)
+                        .title("Max retries")
+                        .description("Number of times a failed status query "
+                                + "is retried before the step fails.")
+                        .required(false)
+                        .defaultValue("5")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_ASYNC_ENGINE)
+                        .title("Asynchronous engine")
+                        .description("Wait for evaluations and allocations with "
+                                + "non-blocking requests driven by a shared "
+                                + "scheduler, instead of on the step thread.")
+                        .required(false)
+                        .defaultValue("false")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_CLUSTER_WATCHER)
+                        .title("Cluster watcher")
+                        .description("Watch the evaluation and allocation lists "
+                                + "of the cluster once for all running steps, "
+                                + "instead of once per step. Implies the "
+                                + "asynchronous engine.")
+                        .required(false)
+                        .defaultValue("false")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_JOB_CACHE_SIZE)
+                        .title("Job cache size")
+                        .description("Number of prebuilt job definitions kept "
+                                + "for reuse across executions, 0 to disable.")
+                        .required(false)
+                        .defaultValue("256")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_MAX_BLOCKED_EVALS)
+                        .title("Max blocked evaluations")
+                        .description("Hold back new submissions to a cluster "
+                                + "while this many steps wait for capacity "
+                                + "on it, 0 for no limit.")
+                        .required(false)
+                        .defaultValue("0")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_ADMISSION_RATE)
+                        .title("Admission rate, jobs/s")
+                        .description("Registrations per second let through "
+                                + "to a cluster, steps over the rate queue "
+                                + "with the other projects taking turns; "
+                                + "0 for no limit.")
+                        .required(false)
+                        .defaultValue("0")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_ADMISSION_BURST)
+                        .title("Admission burst")
+                        .description("Registrations let through at once "
+                                + "after a quiet period when a rate is set.")
+                        .required(false)
+                        .defaultValue("10")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_MAX_INFLIGHT_JOBS)
+                        .title("Max in-flight jobs")
+                        .description("Jobs submitted to a cluster and not yet "
+                                + "finished, further steps queue until one "
+                                + "finishes; 0 for no limit.")
+                        .required(false)
+                        .defaultValue("0")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .longType(NOMAD_NODE_SNAPSHOT_TTL)
+                        .title("Node snapshot TTL, s")
+                        .description("How long the node capacity read for "
+                                + "capacity-aware placement is reused before "
+                                + "it is refreshed.")
+                        .required(false)
+                        .defaultValue("30")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .booleanType(NOMAD_SWEEP_JOBS)
+                        .title("Sweep finished jobs")
+                        .description("Periodically deregister and purge dead "
+                                + "jobs which this plugin registered for a "
+                                + "single execution.")
+                        .required(false)
+                        .defaultValue("false")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_SWEEP_RETENTION)
+                        .title("Sweep retention")
+                        .description("Seconds a finished job is kept "
+                                + "before it is swept.")
+                        .required(false)
+                        .defaultValue("86400")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_SWEEP_INTERVAL)
+                        .title("Sweep interval")
+                        .description("Seconds between two sweeps.")
+                        .required(false)
+                        .defaultValue("300")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .integer(NOMAD_SWEEP_BATCH_SIZE)
+                        .title("Sweep batch size")
+                        .description("Maximum number of Nomad requests "
+                                + "issued by one sweep.")
+                        .required(false)
+                        .defaultValue("20")
+                        .scope(PropertyScope.Framework)
+                        .build()
+                )
+                .property(PropertyBuilder.builder()
+                        .string(NOMAD_METRICS_FILE)
+                        .title("Metrics file")
+                        .description("File the step latency and outcome metrics "
+                                + "are written to in the Prometheus text format, "
+                                + "empty to disable.")
+                        .required(false)
+                        .defaultValue("")
+                        .scope(PropertyScope.Framework)
+                        .build()
                 );
     }
 
@@ -0,0 +1,162 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HTTP client handed to the Nomad SDK when a cluster has several
+ * addresses. Each request is sent to the endpoint the
+ * {@link NomadEndpointRouter} picks, whatever address the SDK built it
+ * for.
+ *
+ * A read which fails, or which a server answers with a 5xx status, is
+ * retried on the next endpoint. A write is only retried when no
+ * connection could be made, because a write which reached a server may
+ * have been applied even though its response was lost. Requests about
+ * the agent itself, such as /v1/agent/self, go to the endpoints in
+ * configured order, so that every step sees the same agent.
+ */
+class NomadRoutingHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient delegate;
+    private final NomadEndpointRouter router;
+
+    NomadRoutingHttpClient(CloseableHttpClient delegate, NomadEndpointRouter router) {
+        this.delegate = delegate;
+        this.router = router;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target,
+                                              HttpRequest request,
+                                              HttpContext context)
+            throws IOException {
+
+        boolean read = isRead(request);
+        URI uri = getUri(request);
+        List<NomadEndpointRouter.Endpoint> order = read && !isAgentLocal(uri)
+                ? router.readOrder()
+                : router.writeOrder();
+        IOException failure = null;
+        for (Iterator<NomadEndpointRouter.Endpoint> it = order.iterator(); it.hasNext(); ) {
+            NomadEndpointRouter.Endpoint endpoint = it.next();
+            HttpHost host;
+            HttpRequestWrapper routed;
+            try {
+                host = URIUtils.extractHost(new URI(endpoint.getAddress()));
+                routed = HttpRequestWrapper.wrap(request, host);
+                routed.setURI(URIUtils.rewriteURI(uri, host));
+            } catch (URISyntaxException e) {
+                throw new ClientProtocolException(
+                        String.format("invalid Nomad address %s", endpoint.getAddress()), e);
+            }
+
+            long started = System.nanoTime();
+            CloseableHttpResponse response;
+            try {
+                response = delegate.execute(host, routed, context);
+            } catch (IOException e) {
+                router.markFailed(endpoint);
+                failure = e;
+                if (!read && !isConnectFailure(e)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (response.getStatusLine().getStatusCode() >= 500) {
+                // the server is in trouble, a read goes on to the next
+                // endpoint; the last one's answer is handed back as is
+                router.markFailed(endpoint);
+                if (read && it.hasNext()) {
+                    response.close();
+                    continue;
+                }
+                return response;
+            }
+            if (read && isPrompt(uri)) {
+                endpoint.recordSuccess(System.nanoTime() - started);
+            }
+            endpoint.markUp();
+            return response;
+        }
+        throw failure;
+    }
+
+    /**
+     * @return whether the request asks about the agent which serves it
+     *         rather than the cluster; those go to the endpoints in
+     *         configured order like writes, so that the answer does not
+     *         change with latencies
+     */
+    static boolean isAgentLocal(URI uri) {
+        String path = uri.getRawPath();
+        return path != null && path.startsWith("/v1/agent/");
+    }
+
+    private static boolean isRead(HttpRequest request) {
+        String method = request.getRequestLine().getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    /**
+     * @return whether the server answers the request right away, so that
+     *         its latency says something about the server; blocking
+     *         queries and log streams are held open on purpose
+     */
+    static boolean isPrompt(URI uri) {
+        String query = uri.getRawQuery();
+        if (query != null && (query.startsWith("index=") || query.contains("&index="))) {
+            return false;
+        }
+        String path = uri.getRawPath();
+        return path == null || !path.startsWith("/v1/client/fs/");
+    }
+
+    private static boolean isConnectFailure(IOException e) {
+        return e instanceof ConnectException
+                || e instanceof ConnectTimeoutException
+                || e instanceof UnknownHostException;
+    }
+
+    private static URI getUri(HttpRequest request) throws ClientProtocolException {
+        try {
+            return new URI(request.getRequestLine().getUri());
+        } catch (URISyntaxException e) {
+            throw new ClientProtocolException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return delegate.getConnectionManager();
+    }
+}
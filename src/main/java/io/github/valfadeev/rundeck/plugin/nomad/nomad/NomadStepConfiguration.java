@@ -0,0 +1,441 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.valfadeev.rundeck.plugin.nomad.util.ConfigurationReader;
+import io.github.valfadeev.rundeck.plugin.nomad.util.ParseInput;
+
+import static io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadConfigOptions.*;
+
+/**
+ * The Nomad properties of a step, parsed and validated once before the
+ * step talks to Nomad.
+ *
+ * Absent or empty values are taken as unset and get their default, or no
+ * value where Nomad has a default of its own. A value which is present
+ * but malformed fails {@link #parse(Map)} with an
+ * {@link IllegalArgumentException} naming the property. Instances are
+ * immutable and shared by the providers which build the job.
+ */
+public final class NomadStepConfiguration {
+
+    public static final String JOB_TYPE_BATCH = "batch";
+    public static final String JOB_TYPE_SERVICE = "service";
+
+    public static final long DEFAULT_CAPACITY_TIMEOUT = 600;
+
+    // framework properties only read where the shared clients, queries
+    // and sweepers are set up, checked here so that they fail early too
+    private static final List<String> CLIENT_NUMBERS = Arrays.asList(
+            NOMAD_CLIENT_MAX_CONNECTIONS,
+            NOMAD_CLIENT_MAX_CONNECTIONS_PER_ROUTE,
+            NOMAD_CLIENT_CONNECTION_IDLE_TIMEOUT,
+            NOMAD_CLIENT_IDLE_TIMEOUT,
+            NOMAD_CLIENT_CONNECT_TIMEOUT,
+            NOMAD_CLIENT_READ_TIMEOUT,
+            NOMAD_TLS_SESSION_TIMEOUT,
+            NOMAD_ENDPOINT_PROBE_INTERVAL,
+            NOMAD_BLOCKING_QUERY_WAIT,
+            NOMAD_RETRY_BACKOFF,
+            NOMAD_RETRY_MAX_BACKOFF,
+            NOMAD_MAX_RETRIES,
+            NOMAD_SWEEP_RETENTION,
+            NOMAD_SWEEP_INTERVAL,
+            NOMAD_SWEEP_BATCH_SIZE);
+
+    private final Map<String, Object> configuration;
+
+    private final String url;
+    private final List<String> urls;
+    private final List<String> datacenters;
+    private final String region;
+    private final String namespace;
+    private final int groupCount;
+    private final String jobType;
+    private final long maxFailPct;
+
+    private final Map<String, String> env;
+    private final int cpu;
+    private final int memory;
+    private final int iops;
+    private final int networkBandwidth;
+    private final List<String> dynamicPorts;
+    private final Map<String, Integer> reservedPorts;
+
+    private final Integer maxParallel;
+    private final String healthCheck;
+    private final Long minHealthyTime;
+    private final Long healthyDeadline;
+    private final Boolean autoRevert;
+    private final Integer canary;
+    private final Long stagger;
+    private final boolean watchDeployment;
+    private final boolean autoPromote;
+
+    private final boolean dispatch;
+    private final boolean stableId;
+    private final boolean stopOnFailure;
+    private final boolean purgeOnStop;
+    private final boolean waitForCapacity;
+    private final long capacityTimeout;
+    private final int maxBlockedEvals;
+    private final int admissionRate;
+    private final int admissionBurst;
+    private final int maxInFlightJobs;
+    private final boolean streamLogs;
+    private final int logStreamsMax;
+    private final long logDrainTimeout;
+
+    private final boolean asyncEngine;
+    private final boolean clusterWatcher;
+    private final int jobCacheSize;
+    private final boolean capacityPlacement;
+    private final long nodeSnapshotTtl;
+    private final long agentConfigTtl;
+    private final long agentConfigStaleTtl;
+    private final String metricsFile;
+
+    private NomadStepConfiguration(Map<String, Object> configuration) {
+        this.configuration = Collections.unmodifiableMap(new LinkedHashMap<>(configuration));
+        ConfigurationReader values = new ConfigurationReader(this.configuration);
+
+        url = values.getString(NOMAD_URL);
+        List<String> addresses = new ArrayList<>();
+        for (String address : ParseInput.splitList(url, ',')) {
+            if (!isHttpAddress(address.trim())) {
+                throw values.invalid(NOMAD_URL, "http or https URLs separated by commas");
+            }
+            addresses.add(address.trim());
+        }
+        urls = Collections.unmodifiableList(addresses);
+        datacenters = Collections.unmodifiableList(
+                Arrays.asList(ParseInput.splitList(values.getString(NOMAD_DATACENTER), ',')));
+        region = values.getString(NOMAD_REGION);
+        namespace = values.getString(NOMAD_NAMESPACE).trim();
+        groupCount = values.getInt(NOMAD_GROUP_COUNT, 1, 0);
+        jobType = values.getString(NOMAD_JOB_TYPE).isEmpty()
+                ? JOB_TYPE_BATCH
+                : values.getString(NOMAD_JOB_TYPE);
+        maxFailPct = values.getLong(NOMAD_MAX_FAIL_PCT, 0L, 0);
+        if (maxFailPct > 100) {
+            throw values.invalid(NOMAD_MAX_FAIL_PCT, "a percentage from 0 to 100");
+        }
+
+        env = values.getMap(NOMAD_ENV_VARS);
+        cpu = values.getRequiredInt(NOMAD_TASK_CPU, 0);
+        memory = values.getRequiredInt(NOMAD_TASK_MEMORY, 0);
+        iops = values.getRequiredInt(NOMAD_TASK_IOPS, 0);
+        networkBandwidth = values.getInt(NOMAD_NETWORK_BANDWIDTH, 0, 0);
+        dynamicPorts = Collections.unmodifiableList(
+                Arrays.asList(ParseInput.splitList(values.getString(NOMAD_DYNAMIC_PORTS), ',')));
+        Map<String, Integer> ports = new LinkedHashMap<>();
+        values.getMap(NOMAD_RESERVED_PORTS).forEach((label, port) -> {
+            int value = values.parseLong(NOMAD_RESERVED_PORTS, port.trim(), 1).intValue();
+            if (value > 65535) {
+                throw values.invalid(NOMAD_RESERVED_PORTS, "ports from 1 to 65535");
+            }
+            ports.put(label, value);
+        });
+        reservedPorts = Collections.unmodifiableMap(ports);
+
+        maxParallel = values.getInt(NOMAD_MAX_PARALLEL, null, 0);
+        healthCheck = values.getString(NOMAD_HEALTH_CHECK).isEmpty()
+                ? null
+                : values.getString(NOMAD_HEALTH_CHECK);
+        minHealthyTime = values.getLong(NOMAD_MIN_HEALTHY_TIME, null, 0);
+        healthyDeadline = values.getLong(NOMAD_HEALTHY_DEADLINE, null, 0);
+        autoRevert = values.getBoolean(NOMAD_AUTO_REVERT, null);
+        canary = values.getInt(NOMAD_CANARY, null, 0);
+        stagger = values.getLong(NOMAD_STAGGER, null, 0);
+        watchDeployment = values.getBoolean(NOMAD_WATCH_DEPLOYMENT, false);
+        autoPromote = values.getBoolean(NOMAD_AUTO_PROMOTE, false);
+
+        dispatch = values.getBoolean(NOMAD_DISPATCH, false);
+        stableId = values.getBoolean(NOMAD_STABLE_ID, false);
+        stopOnFailure = values.getBoolean(NOMAD_STOP_ON_FAILURE, false);
+        purgeOnStop = values.getBoolean(NOMAD_PURGE_ON_STOP, false);
+        waitForCapacity = values.getBoolean(NOMAD_WAIT_FOR_CAPACITY, false);
+        capacityTimeout = values.getLong(NOMAD_CAPACITY_TIMEOUT, DEFAULT_CAPACITY_TIMEOUT, 0);
+        maxBlockedEvals = values.getInt(NOMAD_MAX_BLOCKED_EVALS, 0, 0);
+        admissionRate = values.getInt(NOMAD_ADMISSION_RATE, 0, 0);
+        admissionBurst = values.getInt(NOMAD_ADMISSION_BURST,
+                NomadAdmissionControl.DEFAULT_BURST, 1);
+        maxInFlightJobs = values.getInt(NOMAD_MAX_INFLIGHT_JOBS, 0, 0);
+        streamLogs = values.getBoolean(NOMAD_STREAM_LOGS, false);
+        logStreamsMax = values.getInt(NOMAD_LOG_STREAMS_MAX,
+                NomadLogStreamer.DEFAULT_MAX_STREAMS, 1);
+        logDrainTimeout = values.getLong(NOMAD_LOG_DRAIN_TIMEOUT,
+                NomadLogStreamer.DEFAULT_DRAIN_TIMEOUT, 0);
+        // the metadata is sent as it is, parsing it only checks its form
+        values.getMap(NOMAD_DISPATCH_META);
+
+        asyncEngine = values.getBoolean(NOMAD_ASYNC_ENGINE, false);
+        clusterWatcher = values.getBoolean(NOMAD_CLUSTER_WATCHER, false);
+        jobCacheSize = values.getInt(NOMAD_JOB_CACHE_SIZE, NomadJobSkeletonCache.DEFAULT_SIZE, 0);
+        capacityPlacement = values.getBoolean(NOMAD_CAPACITY_PLACEMENT, false);
+        nodeSnapshotTtl = values.getLong(NOMAD_NODE_SNAPSHOT_TTL, NomadNodeSnapshot.DEFAULT_TTL, 0);
+        agentConfigTtl = values.getLong(NOMAD_AGENT_CONFIG_TTL,
+                NomadAgentConfigCache.DEFAULT_TTL, 0);
+        agentConfigStaleTtl = values.getLong(NOMAD_AGENT_CONFIG_STALE_TTL,
+                NomadAgentConfigCache.DEFAULT_STALE_TTL, 0);
+        metricsFile = values.getString(NOMAD_METRICS_FILE);
+        values.getBoolean(NOMAD_SWEEP_JOBS, false);
+        values.getBoolean(NOMAD_CLIENT_TCP_KEEPALIVE, true);
+        values.getBoolean(NOMAD_CLIENT_COMPRESSION, true);
+
+        for (String key : CLIENT_NUMBERS) {
+            values.getLong(key, null, 0);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a property has a malformed value
+     */
+    public static NomadStepConfiguration parse(Map<String, Object> configuration) {
+        return new NomadStepConfiguration(configuration);
+    }
+
+    /**
+     * @return the configuration this was parsed from, for the parts of
+     *         the plugin which are keyed by it or read framework settings
+     */
+    public Map<String, Object> getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return the Nomad URL as it was given, which identifies the cluster
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the addresses of the Nomad servers or agents of the cluster
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * @return the datacenters, or an empty list for the agent's own
+     */
+    public List<String> getDatacenters() {
+        return datacenters;
+    }
+
+    /**
+     * @return the region, or an empty string for the agent's own
+     */
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * @return the namespace, or an empty string for the default one
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the cluster and namespace the step registers its job in,
+     *         within which job ids are unique
+     */
+    public String getJobScope() {
+        return namespace.isEmpty() ? url : url + "?namespace=" + namespace;
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    public String getJobType() {
+        return jobType;
+    }
+
+    public long getMaxFailPct() {
+        return maxFailPct;
+    }
+
+    public Map<String, String> getEnv() {
+        return env;
+    }
+
+    public int getCpu() {
+        return cpu;
+    }
+
+    public int getMemory() {
+        return memory;
+    }
+
+    public int getIops() {
+        return iops;
+    }
+
+    public int getNetworkBandwidth() {
+        return networkBandwidth;
+    }
+
+    public List<String> getDynamicPorts() {
+        return dynamicPorts;
+    }
+
+    public Map<String, Integer> getReservedPorts() {
+        return reservedPorts;
+    }
+
+    public Integer getMaxParallel() {
+        return maxParallel;
+    }
+
+    public String getHealthCheck() {
+        return healthCheck;
+    }
+
+    public Long getMinHealthyTime() {
+        return minHealthyTime;
+    }
+
+    public Long getHealthyDeadline() {
+        return healthyDeadline;
+    }
+
+    public Boolean getAutoRevert() {
+        return autoRevert;
+    }
+
+    public Integer getCanary() {
+        return canary;
+    }
+
+    public Long getStagger() {
+        return stagger;
+    }
+
+    public boolean isWatchDeployment() {
+        return watchDeployment;
+    }
+
+    public boolean isAutoPromote() {
+        return autoPromote;
+    }
+
+    public boolean isDispatch() {
+        return dispatch;
+    }
+
+    public boolean isStableId() {
+        return stableId;
+    }
+
+    public boolean isStopOnFailure() {
+        return stopOnFailure;
+    }
+
+    public boolean isPurgeOnStop() {
+        return purgeOnStop;
+    }
+
+    public boolean isWaitForCapacity() {
+        return waitForCapacity;
+    }
+
+    /**
+     * @return seconds to wait for a blocked evaluation, and at most to
+     *         hold back a submission
+     */
+    public long getCapacityTimeout() {
+        return capacityTimeout;
+    }
+
+    /**
+     * @return the number of blocked evaluations of this plugin on a
+     *         cluster which holds back new submissions, 0 for no limit
+     */
+    public int getMaxBlockedEvals() {
+        return maxBlockedEvals;
+    }
+
+    /**
+     * @return registrations per second let through to the cluster, 0 for
+     *         no limit
+     */
+    public int getAdmissionRate() {
+        return admissionRate;
+    }
+
+    public int getAdmissionBurst() {
+        return admissionBurst;
+    }
+
+    /**
+     * @return jobs admitted to the cluster and not yet finished, 0 for
+     *         no limit
+     */
+    public int getMaxInFlightJobs() {
+        return maxInFlightJobs;
+    }
+
+    public boolean isStreamLogs() {
+        return streamLogs;
+    }
+
+    public int getLogStreamsMax() {
+        return logStreamsMax;
+    }
+
+    public long getLogDrainTimeout() {
+        return logDrainTimeout;
+    }
+
+    public boolean isAsyncEngine() {
+        return asyncEngine;
+    }
+
+    public boolean isClusterWatcher() {
+        return clusterWatcher;
+    }
+
+    public int getJobCacheSize() {
+        return jobCacheSize;
+    }
+
+    public boolean isCapacityPlacement() {
+        return capacityPlacement;
+    }
+
+    public long getNodeSnapshotTtl() {
+        return nodeSnapshotTtl;
+    }
+
+    public long getAgentConfigTtl() {
+        return agentConfigTtl;
+    }
+
+    public long getAgentConfigStaleTtl() {
+        return agentConfigStaleTtl;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    private static boolean isHttpAddress(String address) {
+        try {
+            URI uri = new URI(address);
+            return uri.getHost() != null
+                    && ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme()));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+}
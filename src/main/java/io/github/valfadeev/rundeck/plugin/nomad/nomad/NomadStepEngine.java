@@ -0,0 +1,59 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.hashicorp.nomad.javasdk.NomadException;
+
+/**
+ * Shared scheduler driving the asynchronous waits of all running steps.
+ *
+ * Responses are handed on and retries are scheduled on a single thread,
+ * whatever the number of steps in flight; the HTTP requests themselves
+ * run on the I/O threads of {@link NomadAsyncClient}. A step only blocks
+ * its own thread, in {@link #await(CompletableFuture)}, and checks its
+ * conditions there once a response arrives, so that a slow condition
+ * holds up its own step only.
+ */
+public class NomadStepEngine {
+
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "nomad-step-engine");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Blocks the calling step until the future completes. If the step
+     * is interrupted, the future is cancelled.
+     */
+    public static <T> T await(CompletableFuture<T> future)
+            throws IOException, NomadException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof NomadException) {
+                throw (NomadException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Process-wide latency histograms for the phases of a step, counters of
+ * step outcomes and the state of the admission queues.
+ *
+ * Steps record into HdrHistogram recorders, which never block the
+ * recording thread. The recorded values are only gathered when the
+ * metrics are rendered, in the Prometheus text format, either on demand
+ * or periodically into a file a node exporter can pick up.
+ */
+public class NomadStepMetrics {
+
+    public static final long EXPORT_INTERVAL_SECONDS = 15;
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    public enum Phase {
+        AgentConfig("agent_config"),
+        Admission("admission"),
+        Registration("registration"),
+        Evaluation("evaluation"),
+        Deployment("deployment"),
+        Placement("placement"),
+        Run("run"),
+        Total("total");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private static final Map<Phase, Recorder> recorders = new EnumMap<>(Phase.class);
+    private static final Map<Phase, LongAdder> sums = new EnumMap<>(Phase.class);
+    // guarded by the class, only touched while rendering
+    private static final Map<Phase, Histogram> totals = new EnumMap<>(Phase.class);
+
+    private static final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private static final LongAdder successes = new LongAdder();
+
+    private static final ConcurrentMap<Path, Boolean> exports = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService exporter =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "nomad-step-metrics-exporter");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        for (Phase phase : Phase.values()) {
+            recorders.put(phase, new Recorder(SIGNIFICANT_DIGITS));
+            sums.put(phase, new LongAdder());
+            totals.put(phase, new Histogram(SIGNIFICANT_DIGITS));
+        }
+    }
+
+    public static void record(Phase phase, long nanos) {
+        long value = Math.max(0, nanos);
+        recorders.get(phase).recordValue(value);
+        sums.get(phase).add(value);
+    }
+
+    public static void recordSuccess() {
+        successes.increment();
+    }
+
+    public static void recordFailure(String reason) {
+        failures.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+
+    public static long getFailureCount(String reason) {
+        LongAdder count = failures.get(reason);
+        return count == null ? 0 : count.sum();
+    }
+
+    public static long getSuccessCount() {
+        return successes.sum();
+    }
+
+    /**
+     * Starts writing the metrics to the given file every
+     * {@value #EXPORT_INTERVAL_SECONDS} seconds, unless that is being
+     * done already.
+     */
+    public static void startExport(String file) {
+        Path path = Paths.get(file);
+        if (exports.putIfAbsent(path, Boolean.TRUE) != null) {
+            return;
+        }
+        exporter.scheduleWithFixedDelay(() -> {
+            try {
+                export(path);
+            } catch (IOException e) {
+                // the file is rewritten on the next run
+            }
+        }, 0, EXPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes the metrics next to the given file and moves them in place,
+     * so that readers never see a partial file.
+     */
+    static void export(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path tmp = Files.createTempFile(absolute.getParent(),
+                absolute.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, render().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, absolute,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     * Quantiles cover everything recorded since the plugin was loaded.
+     */
+    public static synchronized String render() {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP nomad_step_phase_seconds Duration of the phases of Nomad steps.\n");
+        out.append("# TYPE nomad_step_phase_seconds summary\n");
+        for (Phase phase : Phase.values()) {
+            Histogram total = totals.get(phase);
+            total.add(recorders.get(phase).getIntervalHistogram());
+            String name = phase.getMetricName();
+            for (double quantile : QUANTILES) {
+                out.append(String.format("nomad_step_phase_seconds{phase=\"%s\",quantile=\"%s\"} %s\n",
+                        name, quantile,
+                        seconds(total.getTotalCount() == 0
+                                ? 0
+                                : total.getValueAtPercentile(quantile * 100))));
+            }
+            out.append(String.format("nomad_step_phase_seconds_sum{phase=\"%s\"} %s\n",
+                    name, seconds(sums.get(phase).sum())));
+            out.append(String.format("nomad_step_phase_seconds_count{phase=\"%s\"} %d\n",
+                    name, total.getTotalCount()));
+        }
+
+        out.append("# HELP nomad_step_executions_total Nomad steps by outcome.\n");
+        out.append("# TYPE nomad_step_executions_total counter\n");
+        out.append(String.format("nomad_step_executions_total{outcome=\"success\"} %d\n",
+                successes.sum()));
+        new TreeMap<>(failures).forEach((reason, count) ->
+                out.append(String.format(
+                        "nomad_step_executions_total{outcome=\"failure\",reason=\"%s\"} %d\n",
+                        reason, count.sum())));
+
+        out.append("# HELP nomad_admission_queue_depth Steps waiting to be admitted to a Nomad cluster.\n");
+        out.append("# TYPE nomad_admission_queue_depth gauge\n");
+        NomadAdmissionControl.getQueueDepths().forEach((cluster, depth) ->
+                out.append(String.format("nomad_admission_queue_depth{cluster=\"%s\"} %d\n",
+                        cluster, depth)));
+        out.append("# HELP nomad_admission_in_flight Admitted Nomad jobs which have not finished.\n");
+        out.append("# TYPE nomad_admission_in_flight gauge\n");
+        NomadAdmissionControl.getInFlightCounts().forEach((cluster, count) ->
+                out.append(String.format("nomad_admission_in_flight{cluster=\"%s\"} %d\n",
+                        cluster, count)));
+
+        out.append("# HELP nomad_job_sweeper_purged_total Finished Nomad jobs purged by the sweeper.\n");
+        out.append("# TYPE nomad_job_sweeper_purged_total counter\n");
+        NomadJobSweeper.getSweptCounts().forEach((cluster, count) ->
+                out.append(String.format("nomad_job_sweeper_purged_total{cluster=\"%s\"} %d\n",
+                        cluster, count)));
+        out.append("# HELP nomad_job_sweeper_failures_total Sweeper passes which failed.\n");
+        out.append("# TYPE nomad_job_sweeper_failures_total counter\n");
+        NomadJobSweeper.getFailureCounts().forEach((cluster, count) ->
+                out.append(String.format("nomad_job_sweeper_failures_total{cluster=\"%s\"} %d\n",
+                        cluster, count)));
+        return out.toString();
+    }
+
+    private static String seconds(double nanos) {
+        return Double.toString(nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepMetrics.Phase;
+
+/**
+ * Phase timings of a single step execution.
+ *
+ * Every phase is recorded into {@link NomadStepMetrics} as well, and the
+ * timings are handed back to the step as a summary afterwards.
+ */
+public class NomadStepTimer {
+
+    private final long[] nanos = new long[Phase.values().length];
+    private final long started = System.nanoTime();
+
+    public NomadStepTimer() {
+        Arrays.fill(nanos, -1);
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since the given {@link #now()} reading as
+     * the duration of the phase.
+     */
+    public synchronized void record(Phase phase, long since) {
+        long elapsed = System.nanoTime() - since;
+        nanos[phase.ordinal()] = elapsed;
+        NomadStepMetrics.record(phase, elapsed);
+    }
+
+    /**
+     * Records the time elapsed since the timer was created as the total.
+     */
+    public void recordTotal() {
+        record(Phase.Total, started);
+    }
+
+    public synchronized boolean isRecorded(Phase phase) {
+        return nanos[phase.ordinal()] >= 0;
+    }
+
+    /**
+     * Returns the duration of every recorded phase in milliseconds, keyed
+     * by metric name, in the order the phases run.
+     */
+    public synchronized Map<String, Long> getSummary() {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            if (nanos[phase.ordinal()] >= 0) {
+                summary.put(phase.getMetricName(),
+                        TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()]));
+            }
+        }
+        return summary;
+    }
+}
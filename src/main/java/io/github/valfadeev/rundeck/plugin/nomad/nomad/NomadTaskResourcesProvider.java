@@ -9,23 +9,18 @@ import com.hashicorp.nomad.apimodel.Resources;
 public class NomadTaskResourcesProvider {
 
     public static Resources getResources(Map<String, Object> configuration) {
+        return getResources(NomadStepConfiguration.parse(configuration));
+    }
+
+    public static Resources getResources(NomadStepConfiguration configuration) {
 
         Resources resourceConfig = new Resources();
 
-        int cpu = Integer.parseInt(configuration
-                .get(NomadConfigOptions.NOMAD_TASK_CPU)
-                .toString());
-        resourceConfig.setCpu(cpu);
+        resourceConfig.setCpu(configuration.getCpu());
 
-        int memory = Integer.parseInt(configuration
-                .get(NomadConfigOptions.NOMAD_TASK_MEMORY)
-                .toString());
-        resourceConfig.setMemoryMb(memory);
+        resourceConfig.setMemoryMb(configuration.getMemory());
 
-        int iops = Integer.parseInt(configuration
-                .get(NomadConfigOptions.NOMAD_TASK_IOPS)
-                .toString());
-        resourceConfig.setIops(iops);
+        resourceConfig.setIops(configuration.getIops());
 
         List<NetworkResource> networks = NomadTaskNetworkResourcesProvider
                 .getNetworkResources(configuration);
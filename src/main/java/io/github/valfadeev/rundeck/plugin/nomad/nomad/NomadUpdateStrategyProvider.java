@@ -7,60 +7,42 @@ import com.hashicorp.nomad.apimodel.UpdateStrategy;
 public class NomadUpdateStrategyProvider {
 
         public static UpdateStrategy getUpdate(Map<String, Object> configuration) {
+            return getUpdate(NomadStepConfiguration.parse(configuration));
+        }
+
+        public static UpdateStrategy getUpdate(NomadStepConfiguration configuration) {
 
             UpdateStrategy update = new UpdateStrategy();
 
-            String maxParallel = configuration
-                    .get(NomadConfigOptions.NOMAD_MAX_PARALLEL)
-                    .toString();
-            if (!maxParallel.isEmpty()) {
-                update.setMaxParallel(Integer.parseInt(maxParallel));
+            if (configuration.getMaxParallel() != null) {
+                update.setMaxParallel(configuration.getMaxParallel());
             }
 
-            String healthCheck = configuration
-                    .get(NomadConfigOptions.NOMAD_HEALTH_CHECK)
-                    .toString();
-            if (!maxParallel.isEmpty()) {
-                update.setHealthCheck(healthCheck);
+            if (configuration.getHealthCheck() != null) {
+                update.setHealthCheck(configuration.getHealthCheck());
             }
 
-            String minHealthyTime = configuration
-                    .get(NomadConfigOptions.NOMAD_MIN_HEALTHY_TIME)
-                    .toString();
-            if (!minHealthyTime.isEmpty()) {
-                update.setMinHealthyTime(Long.parseLong(minHealthyTime));
+            if (configuration.getMinHealthyTime() != null) {
+                update.setMinHealthyTime(configuration.getMinHealthyTime());
             }
 
-            String healthyDeadline = configuration
-                    .get(NomadConfigOptions.NOMAD_HEALTHY_DEADLINE)
-                    .toString();
-            if (!healthyDeadline.isEmpty()) {
-                update.setHealthyDeadline(Long.parseLong(healthyDeadline));
+            if (configuration.getHealthyDeadline() != null) {
+                update.setHealthyDeadline(configuration.getHealthyDeadline());
             }
 
-            String autoRevert = configuration
-                    .get(NomadConfigOptions.NOMAD_AUTO_REVERT)
-                    .toString();
-            if (!autoRevert.isEmpty()) {
-                update.setAutoRevert(Boolean.parseBoolean(autoRevert));
+            if (configuration.getAutoRevert() != null) {
+                update.setAutoRevert(configuration.getAutoRevert());
             }
 
-            String canary = configuration
-                    .get(NomadConfigOptions.NOMAD_CANARY)
-                    .toString();
-            if (!canary.isEmpty()) {
-                update.setCanary(Integer.parseInt(canary));
+            if (configuration.getCanary() != null) {
+                update.setCanary(configuration.getCanary());
             }
 
-            String stagger = configuration
-                    .get(NomadConfigOptions.NOMAD_STAGGER)
-                    .toString();
-            if (!stagger.isEmpty()) {
-                update.setStagger(Long.parseLong(canary));
+            if (configuration.getStagger() != null) {
+                update.setStagger(configuration.getStagger());
             }
 
             return update;
         }
     }
 
-
@@ -0,0 +1,18 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+
+import com.hashicorp.nomad.javasdk.NomadException;
+import com.hashicorp.nomad.javasdk.Predicate;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+
+/**
+ * Watches a Nomad object until it satisfies a condition.
+ */
+public interface NomadWatch<T> {
+
+    ServerQueryResponse<T> waitUntil(Predicate<? super T> condition)
+            throws IOException, NomadException, InterruptedException;
+
+    long getRequestCount();
+}
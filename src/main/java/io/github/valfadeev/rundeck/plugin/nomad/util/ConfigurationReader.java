@@ -0,0 +1,123 @@
+package io.github.valfadeev.rundeck.plugin.nomad.util;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Typed reads of step properties, for the parts of the plugin which parse
+ * and check them before the step talks to Nomad.
+ *
+ * Absent or empty values are taken as unset and get the given default. A
+ * value which is present but malformed fails with an
+ * {@link IllegalArgumentException} naming the property.
+ */
+public class ConfigurationReader {
+
+    private final Map<String, Object> configuration;
+
+    public ConfigurationReader(Map<String, Object> configuration) {
+        this.configuration = configuration == null
+                ? Collections.emptyMap()
+                : configuration;
+    }
+
+    /**
+     * @return the value as it was given, or an empty string if unset
+     */
+    public String getString(String key) {
+        Object value = configuration.get(key);
+        return value == null ? "" : value.toString();
+    }
+
+    public Integer getInt(String key, Integer defaultValue, long min) {
+        return getInt(key, defaultValue, min, Integer.MAX_VALUE);
+    }
+
+    public Integer getInt(String key, Integer defaultValue, long min, int max) {
+        Long value = getLong(key, null, min);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value > max) {
+            throw invalid(key, "a number up to " + max);
+        }
+        return value.intValue();
+    }
+
+    /**
+     * Reads a number which has no default; an absent or empty value fails
+     * like a malformed one.
+     */
+    public int getRequiredInt(String key, long min) {
+        Integer value = getInt(key, null, min);
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    String.format("Missing value for %s: expected a number", key));
+        }
+        return value;
+    }
+
+    public Long getLong(String key, Long defaultValue, long min) {
+        String value = getString(key).trim();
+        return value.isEmpty() ? defaultValue : parseLong(key, value, min);
+    }
+
+    /**
+     * Parses a number which is part of the value of a property, e.g. one
+     * entry of a key=value block.
+     */
+    public Long parseLong(String key, String value, long min) {
+        long parsed;
+        try {
+            parsed = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw invalid(key, "a number");
+        }
+        if (parsed < min) {
+            throw invalid(key, "a number of at least " + min);
+        }
+        return parsed;
+    }
+
+    /**
+     * Reads {@code true} or {@code false}, in any case; anything else is
+     * malformed rather than false.
+     */
+    public Boolean getBoolean(String key, Boolean defaultValue) {
+        String value = getString(key).trim();
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return Boolean.TRUE;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return Boolean.FALSE;
+        }
+        throw invalid(key, "true or false");
+    }
+
+    /**
+     * Reads a newline-separated key=value block.
+     *
+     * @return the entries in the order given, or an empty map if unset
+     */
+    public Map<String, String> getMap(String key) {
+        String value = getString(key);
+        if (value.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        try {
+            return Collections.unmodifiableMap(ParseInput.kvToMap(value));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid value for %s: %s", key, e.getMessage()), e);
+        }
+    }
+
+    public IllegalArgumentException invalid(String key, String expected) {
+        return new IllegalArgumentException(String.format(
+                "Invalid value for %s: expected %s, got \"%s\"",
+                key, expected, getString(key)));
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.valfadeev.rundeck.plugin.nomad.util;
+
+import java.util.Map;
+
+/**
+ * Lookups for optional configuration values which may be absent from the
+ * configuration map, e.g. framework-scoped properties nobody has set.
+ */
+public class ConfigurationValues {
+
+    public static String getString(Map<String, Object> configuration,
+                                   String key,
+                                   String defaultValue) {
+        Object value = configuration.get(key);
+        if (value == null || value.toString().isEmpty()) {
+            return defaultValue;
+        }
+        return value.toString();
+    }
+
+    public static int getInt(Map<String, Object> configuration,
+                             String key,
+                             int defaultValue) {
+        String value = getString(configuration, key, null);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public static long getLong(Map<String, Object> configuration,
+                               String key,
+                               long defaultValue) {
+        String value = getString(configuration, key, null);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public static boolean getBoolean(Map<String, Object> configuration,
+                                     String key,
+                                     boolean defaultValue) {
+        String value = getString(configuration, key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -1,14 +1,43 @@
 package io.github.valfadeev.rundeck.plugin.nomad.util;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
+/**
+ * Tokenizes the free-form text properties of a step: newline-separated
+ * key=value blocks and delimited lists.
+ *
+ * Input is read in a single pass without regular expressions. An entry
+ * splits on its first unescaped {@code =} only, a trailing {@code \r} is
+ * dropped from every line, and a token starting with {@code "} is read up
+ * to the closing quote, so it may contain delimiters. A backslash escapes
+ * a quote, a backslash, {@code =} or the delimiter; any other backslash is
+ * kept as it is.
+ */
 public class ParseInput {
+
+    private static final char QUOTE = '"';
+    private static final char ESCAPE = '\\';
+    private static final char SEPARATOR = '=';
+
     public static String[] checkedSplit(String input, String delimiter) {
-        String[] result = input.split(delimiter);
-        if (result.length > 1) {
-            return result;
+        List<String> parts = new ArrayList<>();
+        int from = 0;
+        int at;
+        while (!delimiter.isEmpty() && (at = input.indexOf(delimiter, from)) >= 0) {
+            parts.add(input.substring(from, at));
+            from = at + delimiter.length();
+        }
+        parts.add(input.substring(from));
+        // drop trailing empty parts, as String.split does
+        int size = parts.size();
+        while (size > 0 && parts.get(size - 1).isEmpty()) {
+            size--;
+        }
+        if (size > 1) {
+            return parts.subList(0, size).toArray(new String[size]);
         } else {
             throw new IllegalArgumentException(
                     String.format("valid input must be a string "
@@ -17,9 +46,138 @@ public class ParseInput {
         }
 
     }
+
+    /**
+     * Parses newline-separated key=value entries. Blank lines are skipped,
+     * and a key given more than once keeps its last value.
+     *
+     * @throws IllegalArgumentException if a line has no {@code =} or an
+     *         empty key
+     */
     public static Map<String, String> kvToMap(String input) {
-        return Arrays.stream(input.split("\n"))
-                .map(s -> checkedSplit(s, "="))
-                .collect(Collectors.toMap(s -> s[0], s -> s[1]));
+        Map<String, String> result = new LinkedHashMap<>();
+        StringBuilder token = new StringBuilder();
+        int length = input.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = input.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            int end = stripCarriageReturn(input, lineStart, lineEnd);
+            if (!isBlank(input, lineStart, end)) {
+                token.setLength(0);
+                int separator = readToken(input, lineStart, end, SEPARATOR, token);
+                if (separator == end) {
+                    throw new IllegalArgumentException(
+                            String.format("valid input must be a string "
+                                        + "delimited by \"%s\", got: \"%s\"",
+                                    SEPARATOR, input.substring(lineStart, end)));
+                }
+                String key = trim(token);
+                if (key.isEmpty()) {
+                    throw new IllegalArgumentException(
+                            String.format("missing key in \"%s\"",
+                                    input.substring(lineStart, end)));
+                }
+                token.setLength(0);
+                // no stop character: any further '=' belongs to the value
+                readToken(input, separator + 1, end, '\n', token);
+                result.put(key, token.toString());
+            }
+            lineStart = lineEnd + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Splits the input on the delimiter. Empty tokens are skipped unless
+     * they are quoted.
+     */
+    public static String[] splitList(String input, char delimiter) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        int length = input.length();
+        int start = 0;
+        while (start <= length) {
+            token.setLength(0);
+            int end = readToken(input, start, length, delimiter, token);
+            int last = token.length() - 1;
+            if (last >= 0 && token.charAt(last) == '\r' && input.charAt(end - 1) == '\r') {
+                token.setLength(last);
+            }
+            if (token.length() > 0 || (start < end && input.charAt(start) == QUOTE)) {
+                tokens.add(token.toString());
+            }
+            start = end + 1;
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Appends the token starting at {@code from} to {@code out}, and
+     * returns the index of the unquoted, unescaped stop character which
+     * ends it, or {@code to}.
+     */
+    private static int readToken(String input, int from, int to, char stop, StringBuilder out) {
+        int i = from;
+        if (i < to && input.charAt(i) == QUOTE) {
+            int mark = out.length();
+            int close = i + 1;
+            while (close < to && input.charAt(close) != QUOTE) {
+                char c = input.charAt(close);
+                if (c == ESCAPE && close + 1 < to && isEscapable(input.charAt(close + 1), stop)) {
+                    c = input.charAt(++close);
+                }
+                out.append(c);
+                close++;
+            }
+            if (close < to) {
+                i = close + 1;
+            } else {
+                // an unterminated quote is read as a plain character
+                out.setLength(mark);
+            }
+        }
+        for (; i < to; i++) {
+            char c = input.charAt(i);
+            if (c == stop) {
+                return i;
+            }
+            if (c == ESCAPE && i + 1 < to && isEscapable(input.charAt(i + 1), stop)) {
+                c = input.charAt(++i);
+            }
+            out.append(c);
+        }
+        return to;
+    }
+
+    private static boolean isEscapable(char c, char stop) {
+        return c == ESCAPE || c == QUOTE || c == SEPARATOR || c == stop;
+    }
+
+    private static int stripCarriageReturn(String input, int from, int to) {
+        return to > from && input.charAt(to - 1) == '\r' ? to - 1 : to;
+    }
+
+    private static boolean isBlank(String input, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(input.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String trim(StringBuilder token) {
+        int from = 0;
+        int to = token.length();
+        while (from < to && Character.isWhitespace(token.charAt(from))) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(token.charAt(to - 1))) {
+            to--;
+        }
+        return token.substring(from, to);
     }
 }
@@ -0,0 +1,112 @@
+package io.github.valfadeev.rundeck.plugin.nomad;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+import com.dtolabs.rundeck.core.plugins.configuration.Description;
+import com.dtolabs.rundeck.core.plugins.configuration.Property;
+import io.github.valfadeev.rundeck.plugin.nomad.driver.docker.DockerConfigOptions;
+import io.github.valfadeev.rundeck.plugin.nomad.load.FakeNomadServer;
+import io.github.valfadeev.rundeck.plugin.nomad.load.NomadStepLoadHarness;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadClientRegistry;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadConfigOptions;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadStepPluginTest {
+
+    // every test runs the steps of a Rundeck job of its own
+    private final String rundeckJobId = UUID.randomUUID().toString();
+
+    @After
+    public void closeClients() {
+        NomadClientRegistry.closeAll();
+    }
+
+    private static FakeNomadServer.Settings fast() {
+        return new FakeNomadServer.Settings()
+                .schedulingLatency(5)
+                .placementLatency(5)
+                .runTime(10);
+    }
+
+    private static Map<String, Object> configuration(FakeNomadServer server, String image) {
+        Map<String, Object> configuration = NomadStepLoadHarness.configuration(server.getAddress());
+        configuration.put(DockerConfigOptions.DOCKER_IMAGE, image);
+        return configuration;
+    }
+
+    @Test
+    public void shouldReuseDescriptionPerPluginClass() throws Exception {
+        Description docker = new NomadDockerStepPlugin().getDescription();
+        Description java = new NomadJavaStepPlugin().getDescription();
+
+        assertThat(new NomadDockerStepPlugin().getDescription(), is(sameInstance(docker)));
+        assertThat(java, is(not(sameInstance(docker))));
+        assertThat(docker.getName(), is(NomadDockerStepPlugin.SERVICE_PROVIDER_NAME));
+    }
+
+    @Test
+    public void shouldDescribeNomadAndDriverProperties() throws Exception {
+        Description docker = new NomadDockerStepPlugin().getDescription();
+
+        assertTrue(docker.getProperties().stream()
+                .map(Property::getName)
+                .anyMatch(NomadConfigOptions.NOMAD_URL::equals));
+        assertTrue(docker.getProperties().stream()
+                .map(Property::getName)
+                .anyMatch(DockerConfigOptions.DOCKER_IMAGE::equals));
+    }
+
+    @Test
+    public void shouldKeepAParameterizedJobPerStep() throws Exception {
+        try (FakeNomadServer server = new FakeNomadServer(fast())) {
+            Map<String, Object> first = configuration(server, "busybox:1");
+            Map<String, Object> second = configuration(server, "busybox:2");
+            for (Map<String, Object> configuration : Arrays.asList(first, second)) {
+                configuration.put(NomadConfigOptions.NOMAD_DISPATCH, "true");
+                configuration.put(NomadConfigOptions.NOMAD_DISPATCH_META, "");
+                configuration.put(NomadConfigOptions.NOMAD_DISPATCH_PAYLOAD, "");
+            }
+
+            NomadStepPlugin plugin = new NomadDockerStepPlugin();
+            for (int execution = 1; execution <= 2; execution++) {
+                plugin.executeStep(
+                        NomadStepLoadHarness.context(rundeckJobId, execution, 1), first);
+                plugin.executeStep(
+                        NomadStepLoadHarness.context(rundeckJobId, execution, 2), second);
+            }
+
+            // one parameterized job per step, each registered once
+            assertThat(server.getRequestCounts().get("jobs register"), is(2L));
+            assertThat(server.getRequestCounts().get("job dispatch"), is(4L));
+        }
+    }
+
+    @Test
+    public void shouldKeepAServiceJobPerStep() throws Exception {
+        try (FakeNomadServer server = new FakeNomadServer(fast())) {
+            Map<String, Object> first = configuration(server, "busybox:1");
+            Map<String, Object> second = configuration(server, "busybox:2");
+            for (Map<String, Object> configuration : Arrays.asList(first, second)) {
+                configuration.put(NomadConfigOptions.NOMAD_JOB_TYPE, "service");
+                configuration.put(NomadConfigOptions.NOMAD_STABLE_ID, "true");
+            }
+
+            NomadStepPlugin plugin = new NomadDockerStepPlugin();
+            for (int execution = 1; execution <= 2; execution++) {
+                plugin.executeStep(
+                        NomadStepLoadHarness.context(rundeckJobId, execution, 1), first);
+                plugin.executeStep(
+                        NomadStepLoadHarness.context(rundeckJobId, execution, 2), second);
+            }
+
+            // one service job per step, not updated when it did not change
+            assertThat(server.getRequestCounts().get("jobs register"), is(2L));
+        }
+    }
+}
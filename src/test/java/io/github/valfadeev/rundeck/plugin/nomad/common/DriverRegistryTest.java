@@ -0,0 +1,24 @@
+package io.github.valfadeev.rundeck.plugin.nomad.common;
+
+import io.github.valfadeev.rundeck.plugin.nomad.driver.docker.DockerPropertyComposer;
+import io.github.valfadeev.rundeck.plugin.nomad.driver.java.JavaTaskConfigProvider;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class DriverRegistryTest {
+
+    @Test
+    public void shouldRegisterSupportedDrivers() throws Exception {
+        assertThat(DriverRegistry.get(SupportedDrivers.DOCKER).getPropertyComposer(),
+                is(instanceOf(DockerPropertyComposer.class)));
+        assertThat(DriverRegistry.get(SupportedDrivers.JAVA).getTaskConfigProvider(null),
+                is(instanceOf(JavaTaskConfigProvider.class)));
+    }
+
+    @Test
+    public void shouldReturnNullForUnknownDriver() throws Exception {
+        assertThat(DriverRegistry.get("Qemu"), is(nullValue()));
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.valfadeev.rundeck.plugin.nomad.driver.docker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class DockerTaskConfigProviderTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static Map<String, Object> getConfig(Map<String, Object> configuration) {
+        return new DockerTaskConfigProvider(configuration).getConfig(configuration);
+    }
+
+    @Test
+    public void shouldParseTypedValues() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(DockerConfigOptions.DOCKER_IMAGE, "redis:4")
+                .addItem(DockerConfigOptions.DOCKER_FORCE_PULL, "TRUE")
+                .addItem(DockerConfigOptions.DOCKER_TTY, "")
+                .addItem(DockerConfigOptions.DOCKER_SHM_SIZE, " 4294967296 ")
+                .addItem(DockerConfigOptions.DOCKER_PORT_MAP, "db=6379")
+                .getConfig();
+
+        Map<String, Object> taskConfig = getConfig(config);
+
+        assertThat(taskConfig.get("image"), is("redis:4"));
+        assertThat(taskConfig.get("force_pull"), is(true));
+        assertThat(taskConfig.get("tty"), is(false));
+        assertThat(taskConfig.get("shm_size"), is(4294967296L));
+        assertThat((List<?>) taskConfig.get("port_map"),
+                is(Collections.singletonList(Collections.singletonMap("db", 6379))));
+    }
+
+    @Test
+    public void shouldRejectMalformedBooleans() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(DockerConfigOptions.DOCKER_PRIVILEGED_MODE);
+        getConfig(TestConfigurationMapBuilder.builder()
+                .addItem(DockerConfigOptions.DOCKER_PRIVILEGED_MODE, "ture")
+                .getConfig());
+    }
+
+    @Test
+    public void shouldRejectPortsOutOfRange() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(DockerConfigOptions.DOCKER_PORT_MAP);
+        getConfig(TestConfigurationMapBuilder.builder()
+                .addItem(DockerConfigOptions.DOCKER_PORT_MAP, "db=6379\nweb=80800")
+                .getConfig());
+    }
+
+    @Test
+    public void shouldNameMalformedKeyValueBlocks() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(DockerConfigOptions.DOCKER_LABELS);
+        getConfig(TestConfigurationMapBuilder.builder()
+                .addItem(DockerConfigOptions.DOCKER_LABELS, "team")
+                .getConfig());
+    }
+}
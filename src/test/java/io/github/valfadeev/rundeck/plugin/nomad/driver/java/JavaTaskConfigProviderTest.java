@@ -0,0 +1,40 @@
+package io.github.valfadeev.rundeck.plugin.nomad.driver.java;
+
+import java.util.Map;
+
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class JavaTaskConfigProviderTest {
+
+    @Test
+    public void shouldKeepArgsAndJvmOptionsApart() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(JavaConfigOptions.JAVA_JAR_PATH, "local/app.jar")
+                .addItem(JavaConfigOptions.JAVA_ARGS, "--port,8080")
+                .addItem(JavaConfigOptions.JAVA_JVM_OPTIONS, "-Xmx512m,\"-Dname=a,b\"")
+                .getConfig();
+
+        Map<String, Object> taskConfig = new JavaTaskConfigProvider(config).getConfig(config);
+
+        assertThat(taskConfig.get("jar_path"), is("local/app.jar"));
+        assertArrayEquals(new String[]{"--port", "8080"}, (String[]) taskConfig.get("args"));
+        assertArrayEquals(new String[]{"-Xmx512m", "-Dname=a,b"},
+                (String[]) taskConfig.get("jvm_options"));
+    }
+
+    @Test
+    public void shouldLeaveOutUnsetValues() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(JavaConfigOptions.JAVA_CLASS, "com.example.Main")
+                .addItem(JavaConfigOptions.JAVA_ARGS, "")
+                .getConfig();
+
+        Map<String, Object> taskConfig = new JavaTaskConfigProvider(config).getConfig(config);
+
+        assertThat(taskConfig.keySet().toString(), is("[class]"));
+    }
+}
@@ -0,0 +1,601 @@
+package io.github.valfadeev.rundeck.plugin.nomad.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.hashicorp.nomad.apimodel.AgentSelf;
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.AllocationMetric;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.javasdk.NomadJson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a Nomad server, good enough to run steps
+ * against without a cluster.
+ *
+ * It serves the agent, job registration and dispatch, evaluation and
+ * allocation endpoints the plugin uses, including blocking queries. A
+ * registered or dispatched job gets a pending evaluation which completes after the scheduling
+ * latency, possibly blocked, and places the allocations, which run for
+ * the configured time and then complete or fail at the configured rate.
+ * All state lives in memory under one lock, with one index for the whole
+ * state store.
+ */
+public class FakeNomadServer implements Closeable {
+
+    private static final Pattern WAIT = Pattern.compile("(\\d+)(ms|s|m)?");
+    private static final long DEFAULT_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    public static class Settings {
+        long schedulingLatencyMillis = 50;
+        long placementLatencyMillis = 10;
+        long runMillis = 100;
+        int allocationCount = -1;
+        double failureRate = 0;
+        double blockedRate = 0;
+        long unblockLatencyMillis = -1;
+
+        /**
+         * Time between registration and the evaluation completing.
+         */
+        public Settings schedulingLatency(long millis) {
+            this.schedulingLatencyMillis = millis;
+            return this;
+        }
+
+        /**
+         * Time an allocation stays pending once placed.
+         */
+        public Settings placementLatency(long millis) {
+            this.placementLatencyMillis = millis;
+            return this;
+        }
+
+        public Settings runTime(long millis) {
+            this.runMillis = millis;
+            return this;
+        }
+
+        /**
+         * Allocations placed per evaluation, or -1 for the task group count.
+         */
+        public Settings allocationCount(int count) {
+            this.allocationCount = count;
+            return this;
+        }
+
+        /**
+         * Share of allocations which end up failed.
+         */
+        public Settings failureRate(double rate) {
+            this.failureRate = rate;
+            return this;
+        }
+
+        /**
+         * Share of evaluations which cannot place their allocations.
+         */
+        public Settings blockedRate(double rate) {
+            this.blockedRate = rate;
+            return this;
+        }
+
+        /**
+         * Time after which a blocked evaluation finds room and places the
+         * allocations, or -1 to leave it blocked.
+         */
+        public Settings unblockLatency(long millis) {
+            this.unblockLatencyMillis = millis;
+            return this;
+        }
+    }
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService scheduler;
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private long index = 1;
+    private final Map<String, Evaluation> evaluations = new LinkedHashMap<>();
+    private final Map<String, AllocationListStub> allocations = new LinkedHashMap<>();
+    private final Map<String, Map<String, Object>> jobs = new HashMap<>();
+
+    private final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    public FakeNomadServer(Settings settings) throws IOException {
+        this.settings = settings;
+        this.handlers = Executors.newCachedThreadPool(daemon("fake-nomad-http"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemon("fake-nomad-scheduler"));
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.setExecutor(handlers);
+        this.server.createContext("/v1/", this::handle);
+        this.server.start();
+    }
+
+    public String getAddress() {
+        return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    /**
+     * Returns the number of requests served, by endpoint.
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((endpoint, count) -> counts.put(endpoint, count.sum()));
+        return counts;
+    }
+
+    public long getRequestCount() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring("/v1/".length()).split("/");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (path.length == 2 && path[0].equals("agent") && path[1].equals("self")) {
+                count("agent/self");
+                respond(exchange, 200, NomadJson.serialize(agentSelf()));
+            } else if (path.length == 1 && path[0].equals("jobs") && !method.equals("GET")) {
+                count("jobs register");
+                respond(exchange, 200, register(readBody(exchange)));
+            } else if (path.length == 3 && path[0].equals("job") && path[2].equals("dispatch")) {
+                count("job dispatch");
+                String dispatched = dispatch(path[1]);
+                if (dispatched == null) {
+                    respond(exchange, 404, "job not found");
+                } else {
+                    respond(exchange, 200, dispatched);
+                }
+            } else if (path.length == 2 && path[0].equals("job") && method.equals("DELETE")) {
+                count("job deregister");
+                respond(exchange, 200, deregister(path[1]));
+            } else if (path.length == 2 && path[0].equals("job")) {
+                count("job info");
+                String job;
+                synchronized (lock) {
+                    job = jobs.containsKey(path[1]) ? NomadJson.serialize(jobs.get(path[1])) : null;
+                }
+                if (job == null) {
+                    respond(exchange, 404, "job not found");
+                } else {
+                    respond(exchange, 200, job);
+                }
+            } else if (path.length == 2 && path[0].equals("evaluation")) {
+                count("evaluation");
+                long at = awaitIndex(query);
+                String eval;
+                synchronized (lock) {
+                    eval = evaluations.containsKey(path[1])
+                            ? NomadJson.serialize(evaluations.get(path[1]))
+                            : null;
+                }
+                if (eval == null) {
+                    respond(exchange, 404, "eval not found");
+                } else {
+                    respond(exchange, 200, at, eval);
+                }
+            } else if (path.length == 3 && path[0].equals("evaluation") && path[2].equals("allocations")) {
+                count("evaluation allocations");
+                long at = awaitIndex(query);
+                String allocs;
+                synchronized (lock) {
+                    allocs = NomadJson.serialize(allocations.values().stream()
+                            .filter(a -> path[1].equals(a.getEvalId()))
+                            .collect(Collectors.toList()));
+                }
+                respond(exchange, 200, at, allocs);
+            } else if (path.length == 3 && path[0].equals("job") && path[2].equals("allocations")) {
+                count("job allocations");
+                long at = awaitIndex(query);
+                String allocs;
+                synchronized (lock) {
+                    allocs = NomadJson.serialize(allocations.values().stream()
+                            .filter(a -> path[1].equals(a.getJobId()))
+                            .collect(Collectors.toList()));
+                }
+                respond(exchange, 200, at, allocs);
+            } else if (path.length == 1 && path[0].equals("evaluations")) {
+                count("evaluations");
+                long at = awaitIndex(query);
+                String evals;
+                synchronized (lock) {
+                    evals = NomadJson.serialize(new ArrayList<>(evaluations.values()));
+                }
+                respond(exchange, 200, at, evals);
+            } else if (path.length == 1 && path[0].equals("allocations")) {
+                count("allocations");
+                long at = awaitIndex(query);
+                String allocs;
+                synchronized (lock) {
+                    allocs = NomadJson.serialize(new ArrayList<>(allocations.values()));
+                }
+                respond(exchange, 200, at, allocs);
+            } else {
+                count("unsupported");
+                respond(exchange, 404, "unsupported endpoint");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, String.valueOf(e));
+        }
+    }
+
+    /**
+     * Holds a blocking query until the state store moves past the
+     * requested index or the wait runs out, returning the current index.
+     */
+    private long awaitIndex(Map<String, String> query) throws InterruptedException {
+        String minIndex = query.get("index");
+        if (minIndex == null) {
+            synchronized (lock) {
+                return index;
+            }
+        }
+        long min = Long.parseLong(minIndex);
+        long deadline = System.currentTimeMillis() + parseWait(query.get("wait"));
+        synchronized (lock) {
+            long remaining;
+            while (index <= min && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                lock.wait(remaining);
+            }
+            return index;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String register(String body) throws IOException {
+        Map<String, Object> request = NomadJson.deserialize(body, Map.class);
+        Map<String, Object> job = (Map<String, Object>) request.get("Job");
+        if (job.get("ParameterizedJob") != null) {
+            // a parameterized job only runs once dispatched
+            synchronized (lock) {
+                long at = advance();
+                job.put("Stop", false);
+                job.put("Status", "running");
+                job.put("ModifyIndex", at);
+                jobs.put(job.get("ID").toString(), job);
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("EvalID", "");
+                response.put("JobModifyIndex", at);
+                response.put("Index", at);
+                return NomadJson.serialize(response);
+            }
+        }
+        Evaluation eval = submit(job);
+        return evaluationResponse(eval.getId(), eval.getCreateIndex().longValue());
+    }
+
+    /**
+     * Runs a child of the parameterized job, or returns null if there is
+     * no such job.
+     */
+    private String dispatch(String parentId) {
+        Map<String, Object> child;
+        synchronized (lock) {
+            Map<String, Object> parent = jobs.get(parentId);
+            if (parent == null || Boolean.TRUE.equals(parent.get("Stop"))) {
+                return null;
+            }
+            child = new HashMap<>(parent);
+        }
+        child.remove("ParameterizedJob");
+        child.put("ID", String.format("%s/dispatch-%s", parentId, UUID.randomUUID()));
+        child.put("ParentID", parentId);
+        Evaluation eval = submit(child);
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("DispatchedJobID", child.get("ID"));
+        response.put("EvalID", eval.getId());
+        response.put("EvalCreateIndex", eval.getCreateIndex().longValue());
+        response.put("JobCreateIndex", eval.getCreateIndex().longValue());
+        response.put("Index", eval.getCreateIndex().longValue());
+        return NomadJson.serialize(response);
+    }
+
+    /**
+     * Stores the job and starts its evaluation.
+     */
+    @SuppressWarnings("unchecked")
+    private Evaluation submit(Map<String, Object> job) {
+        String jobId = job.get("ID").toString();
+        int count = settings.allocationCount;
+        if (count < 0) {
+            List<Map<String, Object>> groups = (List<Map<String, Object>>) job.get("TaskGroups");
+            count = ((Number) groups.get(0).getOrDefault("Count", 1)).intValue();
+        }
+        String taskGroup = ((List<Map<String, Object>>) job.get("TaskGroups")).get(0).get("Name").toString();
+
+        Evaluation eval;
+        long createIndex;
+        synchronized (lock) {
+            createIndex = advance();
+            job.put("Stop", false);
+            job.put("Status", "pending");
+            job.put("ModifyIndex", createIndex);
+            jobs.put(jobId, job);
+            eval = newEvaluation(jobId, createIndex);
+            evaluations.put(eval.getId(), eval);
+        }
+
+        final int allocs = count;
+        scheduler.schedule(() -> schedule(eval.getId(), jobId, taskGroup, allocs),
+                settings.schedulingLatencyMillis, TimeUnit.MILLISECONDS);
+        return eval;
+    }
+
+    private String deregister(String jobId) {
+        synchronized (lock) {
+            long at = advance();
+            Map<String, Object> job = jobs.get(jobId);
+            if (job != null) {
+                job.put("Stop", true);
+                job.put("Status", "dead");
+            }
+            for (AllocationListStub alloc : allocations.values()) {
+                if (jobId.equals(alloc.getJobId()) && !isTerminal(alloc)) {
+                    alloc.setDesiredStatus("stop")
+                            .setClientStatus("complete")
+                            .setModifyIndex(BigInteger.valueOf(at));
+                }
+            }
+            Evaluation eval = newEvaluation(jobId, at).setStatus("complete");
+            evaluations.put(eval.getId(), eval);
+            return evaluationResponse(eval.getId(), at);
+        }
+    }
+
+    /**
+     * Completes the evaluation, placing its allocations unless it is
+     * blocked, and schedules their run.
+     */
+    private void schedule(String evalId, String jobId, String taskGroup, int count) {
+        boolean blocked = ThreadLocalRandom.current().nextDouble() < settings.blockedRate;
+        List<String> placed = Collections.emptyList();
+        String blockedId = null;
+        synchronized (lock) {
+            long at = advance();
+            Evaluation eval = evaluations.get(evalId)
+                    .setStatus("complete")
+                    .setModifyIndex(BigInteger.valueOf(at));
+            if (blocked) {
+                Evaluation blockedEval = newEvaluation(jobId, at).setStatus("blocked");
+                blockedId = blockedEval.getId();
+                evaluations.put(blockedId, blockedEval);
+                eval.setBlockedEval(blockedId)
+                        .setFailedTgAllocs(Collections.singletonMap(taskGroup,
+                                new AllocationMetric()
+                                        .setDimensionExhausted(Collections.singletonMap("memory", 1))));
+            } else {
+                placed = place(evalId, jobId, taskGroup, count, at);
+            }
+        }
+        if (blockedId != null && settings.unblockLatencyMillis >= 0) {
+            final String unblockId = blockedId;
+            scheduler.schedule(() -> unblock(unblockId, jobId, taskGroup, count),
+                    settings.unblockLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+        run(placed);
+    }
+
+    /**
+     * Completes the blocked evaluation, which places the allocations
+     * under its own id, as Nomad does once the cluster has room.
+     */
+    private void unblock(String blockedId, String jobId, String taskGroup, int count) {
+        List<String> placed;
+        synchronized (lock) {
+            long at = advance();
+            evaluations.get(blockedId)
+                    .setStatus("complete")
+                    .setModifyIndex(BigInteger.valueOf(at));
+            Map<String, Object> job = jobs.get(jobId);
+            if (job != null && Boolean.TRUE.equals(job.get("Stop"))) {
+                return;
+            }
+            placed = place(blockedId, jobId, taskGroup, count, at);
+        }
+        run(placed);
+    }
+
+    // requires lock
+    private List<String> place(String evalId, String jobId, String taskGroup, int count, long at) {
+        List<String> placed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AllocationListStub alloc = new AllocationListStub()
+                    .setId(UUID.randomUUID().toString())
+                    .setEvalId(evalId)
+                    .setJobId(jobId)
+                    .setName(String.format("%s.%s[%d]", jobId, taskGroup, i))
+                    .setNodeId("fake-node")
+                    .setTaskGroup(taskGroup)
+                    .setDesiredStatus("run")
+                    .setClientStatus("pending")
+                    .setCreateIndex(BigInteger.valueOf(at))
+                    .setModifyIndex(BigInteger.valueOf(at));
+            allocations.put(alloc.getId(), alloc);
+            placed.add(alloc.getId());
+        }
+        return placed;
+    }
+
+    private void run(List<String> placed) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (String allocId : placed) {
+            scheduler.schedule(() -> transition(allocId, "running"),
+                    settings.placementLatencyMillis, TimeUnit.MILLISECONDS);
+            String outcome = random.nextDouble() < settings.failureRate ? "failed" : "complete";
+            scheduler.schedule(() -> transition(allocId, outcome),
+                    settings.placementLatencyMillis + settings.runMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void transition(String allocId, String clientStatus) {
+        synchronized (lock) {
+            AllocationListStub alloc = allocations.get(allocId);
+            if (alloc == null || isTerminal(alloc)) {
+                return;
+            }
+            alloc.setClientStatus(clientStatus).setModifyIndex(BigInteger.valueOf(advance()));
+        }
+    }
+
+    private long advance() {
+        index++;
+        lock.notifyAll();
+        return index;
+    }
+
+    private static boolean isTerminal(AllocationListStub alloc) {
+        return "complete".equals(alloc.getClientStatus()) || "failed".equals(alloc.getClientStatus());
+    }
+
+    private static Evaluation newEvaluation(String jobId, long at) {
+        // Nomad always sends these fields, if only empty
+        return new Evaluation()
+                .setId(UUID.randomUUID().toString())
+                .setJobId(jobId)
+                .setStatus("pending")
+                .setStatusDescription("")
+                .setBlockedEval("")
+                .setFailedTgAllocs(Collections.emptyMap())
+                .setCreateIndex(BigInteger.valueOf(at))
+                .setModifyIndex(BigInteger.valueOf(at));
+    }
+
+    private static String evaluationResponse(String evalId, long at) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("EvalID", evalId);
+        response.put("EvalCreateIndex", at);
+        response.put("JobModifyIndex", at);
+        response.put("Index", at);
+        return NomadJson.serialize(response);
+    }
+
+    private static AgentSelf agentSelf() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("Datacenter", "dc1");
+        config.put("Region", "global");
+        return new AgentSelf().setConfig(config);
+    }
+
+    private void count(String endpoint) {
+        requests.computeIfAbsent(endpoint, k -> new LongAdder()).increment();
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        long at;
+        synchronized (lock) {
+            at = index;
+        }
+        respond(exchange, status, at, body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, long at, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.getResponseHeaders().add("X-Nomad-Index", Long.toString(at));
+        exchange.getResponseHeaders().add("X-Nomad-KnownLeader", "true");
+        exchange.getResponseHeaders().add("X-Nomad-LastContact", "0");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static long parseWait(String wait) {
+        if (wait == null) {
+            return DEFAULT_WAIT_MILLIS;
+        }
+        Matcher m = WAIT.matcher(wait);
+        if (!m.matches()) {
+            return DEFAULT_WAIT_MILLIS;
+        }
+        long value = Long.parseLong(m.group(1));
+        String unit = m.group(2);
+        if ("m".equals(unit)) {
+            return TimeUnit.MINUTES.toMillis(value);
+        } else if ("s".equals(unit)) {
+            return TimeUnit.SECONDS.toMillis(value);
+        }
+        return value;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,347 @@
+package io.github.valfadeev.rundeck.plugin.nomad.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
+import com.dtolabs.rundeck.plugins.step.PluginStepContext;
+import io.github.valfadeev.rundeck.plugin.nomad.NomadDockerStepPlugin;
+import io.github.valfadeev.rundeck.plugin.nomad.NomadStepPlugin;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadConfigOptions;
+import org.HdrHistogram.Histogram;
+
+import static io.github.valfadeev.rundeck.plugin.nomad.driver.docker.DockerConfigOptions.*;
+
+/**
+ * Drives many concurrent executions of the Docker step against a
+ * {@link FakeNomadServer} and reports throughput, step latency, the
+ * threads the plugin used and the requests the server received.
+ *
+ * Run it with {@code ./gradlew loadTest -PloadArgs="..."}, passing any of
+ * {@code steps=}, {@code concurrency=}, {@code latency=}, {@code placement=},
+ * {@code run=}, {@code allocs=}, {@code failureRate=} and
+ * {@code blockedRate=}; any other {@code key=value} argument is added to
+ * the step configuration, e.g. {@code nomad_async_engine=true}.
+ */
+public class NomadStepLoadHarness {
+
+    private static final String STEP_THREAD_PREFIX = "nomad-load-step-";
+    private static final String SERVER_THREAD_PREFIX = "fake-nomad-";
+
+    public static class Report {
+        int steps;
+        long wallMillis;
+        final Histogram latencies = new Histogram(3);
+        final Map<String, Long> failures = new TreeMap<>();
+        int peakThreads;
+        int peakPluginThreads;
+        long serverRequests;
+        Map<String, Long> serverRequestsByEndpoint;
+
+        public double getStepsPerSecond() {
+            return wallMillis == 0 ? 0 : steps * 1000.0 / wallMillis;
+        }
+
+        public long getFailureCount() {
+            return failures.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        public long getServerRequests() {
+            return serverRequests;
+        }
+
+        public int getPeakPluginThreads() {
+            return peakPluginThreads;
+        }
+
+        public Map<String, Long> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("steps:            %d in %d ms (%.1f steps/s)%n",
+                    steps, wallMillis, getStepsPerSecond()));
+            out.append(String.format("step latency:     p50 %d ms, p99 %d ms, max %d ms%n",
+                    latencies.getValueAtPercentile(50),
+                    latencies.getValueAtPercentile(99),
+                    latencies.getMaxValue()));
+            out.append(String.format("failures:         %d %s%n", getFailureCount(), failures));
+            out.append(String.format("threads:          %d at peak, %d of them started by the plugin%n",
+                    peakThreads, peakPluginThreads));
+            out.append(String.format("server requests:  %d (%.1f per step) %s%n",
+                    serverRequests,
+                    steps == 0 ? 0.0 : (double) serverRequests / steps,
+                    serverRequestsByEndpoint));
+            return out.toString();
+        }
+    }
+
+    /**
+     * Runs the given number of steps, at most {@code concurrency} at a
+     * time, and waits for all of them.
+     */
+    public static Report run(FakeNomadServer server,
+                             Map<String, Object> overrides,
+                             int steps,
+                             int concurrency) throws Exception {
+
+        NomadStepPlugin plugin = new NomadDockerStepPlugin();
+        Map<String, Object> configuration = configuration(server.getAddress());
+        configuration.putAll(overrides);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, STEP_THREAD_PREFIX + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        ThreadSampler sampler = new ThreadSampler();
+        ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+        Report report = new Report();
+        long requestsBefore = server.getRequestCount();
+        Map<String, Long> requestsByEndpointBefore = server.getRequestCounts();
+
+        long started = System.nanoTime();
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < steps; i++) {
+            final int n = i;
+            results.add(executor.submit(() -> {
+                long stepStarted = System.nanoTime();
+                try {
+                    plugin.executeStep(context(n), configuration);
+                } catch (StepException e) {
+                    failures.computeIfAbsent(String.valueOf(e.getFailureReason()),
+                            k -> new LongAdder()).increment();
+                }
+                return System.nanoTime() - stepStarted;
+            }));
+        }
+        for (Future<Long> result : results) {
+            report.latencies.recordValue(TimeUnit.NANOSECONDS.toMillis(result.get()));
+        }
+        report.wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        executor.shutdown();
+
+        report.steps = steps;
+        report.peakPluginThreads = sampler.stop();
+        report.peakThreads = threads.getPeakThreadCount();
+        failures.forEach((reason, count) -> report.failures.put(reason, count.sum()));
+        report.serverRequests = server.getRequestCount() - requestsBefore;
+        Map<String, Long> byEndpoint = new TreeMap<>();
+        server.getRequestCounts().forEach((endpoint, count) ->
+                byEndpoint.put(endpoint, count - requestsByEndpointBefore.getOrDefault(endpoint, 0L)));
+        report.serverRequestsByEndpoint = byEndpoint;
+        return report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        Map<String, Object> overrides = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException(String.format("expected key=value, got: %s", arg));
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if (key.startsWith("nomad_") || key.startsWith("docker_")) {
+                overrides.put(key, value);
+            } else {
+                options.put(key, value);
+            }
+        }
+
+        FakeNomadServer.Settings settings = new FakeNomadServer.Settings()
+                .schedulingLatency(Long.parseLong(options.getOrDefault("latency", "50")))
+                .placementLatency(Long.parseLong(options.getOrDefault("placement", "10")))
+                .runTime(Long.parseLong(options.getOrDefault("run", "100")))
+                .allocationCount(Integer.parseInt(options.getOrDefault("allocs", "-1")))
+                .failureRate(Double.parseDouble(options.getOrDefault("failureRate", "0")))
+                .blockedRate(Double.parseDouble(options.getOrDefault("blockedRate", "0")));
+        int steps = Integer.parseInt(options.getOrDefault("steps", "200"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "50"));
+
+        try (FakeNomadServer server = new FakeNomadServer(settings)) {
+            // a short round first, so class loading and connection set up
+            // do not count against the measured run
+            run(server, overrides, Math.min(steps, concurrency), concurrency);
+            System.out.print(run(server, overrides, steps, concurrency));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * A Docker step configuration against the server at the address, with
+     * every property set the way Rundeck hands it to the plugin.
+     */
+    public static Map<String, Object> configuration(String address) {
+        Map<String, Object> config = new HashMap<>();
+        config.put(NomadConfigOptions.NOMAD_URL, address);
+        config.put(NomadConfigOptions.NOMAD_DATACENTER, "");
+        config.put(NomadConfigOptions.NOMAD_REGION, "");
+        config.put(NomadConfigOptions.NOMAD_GROUP_COUNT, "3");
+        config.put(NomadConfigOptions.NOMAD_JOB_TYPE, "batch");
+        config.put(NomadConfigOptions.NOMAD_MAX_FAIL_PCT, "0");
+        config.put(NomadConfigOptions.NOMAD_ENV_VARS, "FOO=BAR");
+        config.put(NomadConfigOptions.NOMAD_TASK_CPU, "100");
+        config.put(NomadConfigOptions.NOMAD_TASK_MEMORY, "128");
+        config.put(NomadConfigOptions.NOMAD_TASK_IOPS, "0");
+        config.put(NomadConfigOptions.NOMAD_NETWORK_BANDWIDTH, "10");
+        config.put(NomadConfigOptions.NOMAD_DYNAMIC_PORTS, "");
+        config.put(NomadConfigOptions.NOMAD_RESERVED_PORTS, "");
+        config.put(NomadConfigOptions.NOMAD_MAX_PARALLEL, "");
+        config.put(NomadConfigOptions.NOMAD_HEALTH_CHECK, "");
+        config.put(NomadConfigOptions.NOMAD_MIN_HEALTHY_TIME, "");
+        config.put(NomadConfigOptions.NOMAD_HEALTHY_DEADLINE, "");
+        config.put(NomadConfigOptions.NOMAD_AUTO_REVERT, "");
+        config.put(NomadConfigOptions.NOMAD_CANARY, "");
+        config.put(NomadConfigOptions.NOMAD_STAGGER, "");
+        config.put(DOCKER_IMAGE, "busybox:latest");
+        config.put(DOCKER_COMMAND, "true");
+        config.put(DOCKER_FORCE_PULL, "false");
+        config.put(DOCKER_INTERACTIVE_MODE, "false");
+        config.put(DOCKER_TTY, "false");
+        config.put(DOCKER_AUTH_SOFT_FAIL, "false");
+        config.put(DOCKER_PRIVILEGED_MODE, "false");
+        config.put(DOCKER_NETWORK_MODE, "bridge");
+        for (String key : new String[]{DOCKER_LOAD, DOCKER_ARGS, DOCKER_LABELS, DOCKER_WORKDIR,
+                DOCKER_SERVER_ADDRESS, DOCKER_USERNAME, DOCKER_PASSWORD, DOCKER_EMAIL,
+                DOCKER_LOG_DRIVER, DOCKER_LOG_OPT, DOCKER_NETWORK_ALIASES, DOCKER_PORT_MAP,
+                DOCKER_HOSTNAME, DOCKER_IPV4_ADDRESS, DOCKER_IPV6_ADDRESS, DOCKER_MAC_ADDRESS,
+                DOCKER_EXTRA_HOSTS, DOCKER_DNS_SEARCH_DOMAINS, DOCKER_DNS_SERVERS, DOCKER_VOLUMES,
+                DOCKER_VOLUME_DRIVER, DOCKER_SHM_SIZE, DOCKER_SECURITY_OPT, DOCKER_IPC_MODE,
+                DOCKER_PID_MODE, DOCKER_UTS_MODE, DOCKER_USERNS_MODE}) {
+            config.put(key, "");
+        }
+        return config;
+    }
+
+    /**
+     * A step context for execution n of its own Rundeck job, so that the
+     * timestamped Nomad job ids of concurrent steps do not collide.
+     */
+    private static PluginStepContext context(int n) {
+        return context(String.format("load-%d", n), n, 1);
+    }
+
+    /**
+     * A step context for the given step of an execution of the Rundeck job.
+     */
+    public static PluginStepContext context(String jobId, int execution, int step) {
+        Map<String, String> job = new HashMap<>();
+        job.put("id", jobId);
+        job.put("name", jobId);
+        job.put("execid", Integer.toString(execution));
+        job.put("username", "load");
+        Map<String, Map<String, String>> dataContext = new HashMap<>();
+        dataContext.put("job", job);
+
+        ExecutionListener listener = proxy(ExecutionListener.class, (p, method, args) -> null);
+        ExecutionContext executionContext = proxy(ExecutionContext.class, (p, method, args) ->
+                method.getName().equals("getExecutionListener") ? listener : null);
+        return proxy(PluginStepContext.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "getExecutionContext":
+                    return executionContext;
+                case "getDataContextObject":
+                    return dataContext;
+                case "getLogger":
+                    return listener;
+                case "getStepNumber":
+                    return step;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Implements a Rundeck interface with only the methods the plugin
+     * calls, answering the others with null, zero or false.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (p, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return p == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(p);
+                            default:
+                                return type.getSimpleName();
+                        }
+                    }
+                    Object result = handler.invoke(p, method, args);
+                    if (result == null && method.getReturnType().isPrimitive()) {
+                        Class<?> returnType = method.getReturnType();
+                        if (returnType == boolean.class) {
+                            return false;
+                        } else if (returnType != void.class) {
+                            return returnType == long.class ? 0L : 0;
+                        }
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Samples the number of live threads other than the step threads of
+     * the harness and the threads of the fake server.
+     */
+    private static class ThreadSampler {
+
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, SERVER_THREAD_PREFIX + "thread-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        private final int baseline = count();
+        private volatile int peak = 0;
+
+        ThreadSampler() {
+            sampler.scheduleAtFixedRate(() -> peak = Math.max(peak, count() - baseline),
+                    0, 10, TimeUnit.MILLISECONDS);
+        }
+
+        int stop() {
+            sampler.shutdownNow();
+            return Math.max(peak, count() - baseline);
+        }
+
+        private static int count() {
+            int count = 0;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (!t.getName().startsWith(STEP_THREAD_PREFIX)
+                        && !t.getName().startsWith(SERVER_THREAD_PREFIX)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.github.valfadeev.rundeck.plugin.nomad.load;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadAdmissionControl;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadClientRegistry;
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadConfigOptions;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadStepLoadTest {
+
+    private static FakeNomadServer.Settings fast() {
+        return new FakeNomadServer.Settings()
+                .schedulingLatency(5)
+                .placementLatency(5)
+                .runTime(10);
+    }
+
+    @After
+    public void closeClients() {
+        // every fake server listens on a port of its own, so its clients
+        // would otherwise stay in the registry
+        NomadClientRegistry.closeAll();
+    }
+
+    @Test
+    public void shouldRunConcurrentStepsToCompletion() throws Exception {
+        try (FakeNomadServer server = new FakeNomadServer(fast())) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, Collections.emptyMap(), 20, 5);
+
+            assertThat(report.toString(), report.getFailureCount(), is(0L));
+            assertTrue(report.getServerRequests() > 0);
+        }
+    }
+
+    @Test
+    public void shouldRunConcurrentStepsWithAsyncEngine() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(NomadConfigOptions.NOMAD_ASYNC_ENGINE, "true");
+        try (FakeNomadServer server = new FakeNomadServer(fast())) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, overrides, 20, 5);
+
+            assertThat(report.toString(), report.getFailureCount(), is(0L));
+        }
+    }
+
+    @Test
+    public void shouldRunConcurrentStepsUnderAdmissionLimits() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(NomadConfigOptions.NOMAD_ADMISSION_RATE, "200");
+        overrides.put(NomadConfigOptions.NOMAD_ADMISSION_BURST, "2");
+        overrides.put(NomadConfigOptions.NOMAD_MAX_INFLIGHT_JOBS, "3");
+        try (FakeNomadServer server = new FakeNomadServer(fast())) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, overrides, 20, 5);
+
+            assertThat(report.toString(), report.getFailureCount(), is(0L));
+            assertThat(NomadAdmissionControl.forCluster(server.getAddress()).getInFlight(), is(0));
+        }
+    }
+
+    @Test
+    public void shouldFailStepsOnBlockedEvaluations() throws Exception {
+        try (FakeNomadServer server = new FakeNomadServer(fast().blockedRate(1.0))) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, Collections.emptyMap(), 4, 2);
+
+            assertThat(report.getFailures().get("EvalBlockedFailure"), is(4L));
+        }
+    }
+
+    @Test
+    public void shouldWaitForCapacityOnBlockedEvaluations() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(NomadConfigOptions.NOMAD_WAIT_FOR_CAPACITY, "true");
+        try (FakeNomadServer server = new FakeNomadServer(
+                fast().blockedRate(1.0).unblockLatency(50))) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, overrides, 4, 2);
+
+            assertThat(report.toString(), report.getFailureCount(), is(0L));
+            assertTrue(server.getRequestCounts().get("job allocations") > 0);
+        }
+    }
+
+    @Test
+    public void shouldFailStepsStillBlockedAfterCapacityTimeout() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(NomadConfigOptions.NOMAD_WAIT_FOR_CAPACITY, "true");
+        overrides.put(NomadConfigOptions.NOMAD_CAPACITY_TIMEOUT, "1");
+        overrides.put(NomadConfigOptions.NOMAD_ASYNC_ENGINE, "true");
+        try (FakeNomadServer server = new FakeNomadServer(fast().blockedRate(1.0))) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, overrides, 2, 2);
+
+            assertThat(report.getFailures().get("EvalBlockedFailure"), is(2L));
+        }
+    }
+
+    @Test
+    public void shouldFailStepsOnFailedAllocations() throws Exception {
+        try (FakeNomadServer server = new FakeNomadServer(fast().failureRate(1.0))) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, Collections.emptyMap(), 4, 2);
+
+            assertThat(report.getFailures().get("AllocMaxFailExceededFailure"), is(4L));
+        }
+    }
+
+    @Test
+    public void shouldFailInvalidStepsWithoutContactingNomad() throws Exception {
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put(NomadConfigOptions.NOMAD_TASK_MEMORY, "512MB");
+        try (FakeNomadServer server = new FakeNomadServer(fast())) {
+            NomadStepLoadHarness.Report report = NomadStepLoadHarness.run(
+                    server, overrides, 4, 2);
+
+            assertThat(report.getFailures().get("InvalidConfigurationFailure"), is(4L));
+            assertThat(report.getServerRequests(), is(0L));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class AllocationTrackerTest {
+
+    private static AllocationListStub alloc(String id, String status, long modifyIndex) {
+        return new AllocationListStub()
+                .setId(id)
+                .setClientStatus(status)
+                .setModifyIndex(BigInteger.valueOf(modifyIndex));
+    }
+
+    @Test
+    public void shouldCountAllocationsPerStatus() throws Exception {
+        AllocationTracker tracker = new AllocationTracker();
+
+        tracker.update(Arrays.asList(
+                alloc("a", "pending", 1),
+                alloc("b", "pending", 1),
+                alloc("c", "running", 2)));
+
+        assertThat(tracker.getTotal(), is(3));
+        assertThat(tracker.getCount("pending"), is(2));
+        assertThat(tracker.getCount("running"), is(1));
+        assertFalse(tracker.allFinished());
+    }
+
+    @Test
+    public void shouldApplyOnlyChangedAllocations() throws Exception {
+        AllocationTracker tracker = new AllocationTracker();
+        tracker.update(Arrays.asList(
+                alloc("a", "running", 1),
+                alloc("b", "running", 1)));
+
+        int changed = tracker.update(Arrays.asList(
+                alloc("a", "complete", 5),
+                alloc("b", "running", 1)));
+
+        assertThat(changed, is(1));
+        assertThat(tracker.getCount("running"), is(1));
+        assertThat(tracker.getCount("complete"), is(1));
+
+        // an older view of an allocation must not undo a newer one
+        tracker.update(Collections.singletonList(alloc("a", "running", 3)));
+        assertThat(tracker.getCount("complete"), is(1));
+    }
+
+    @Test
+    public void shouldSkipAllocationsUpToTheHighestIndexSeen() throws Exception {
+        AllocationTracker tracker = new AllocationTracker();
+        tracker.update(Arrays.asList(
+                alloc("a", "running", 4),
+                alloc("b", "running", 2)));
+
+        // same index, different status: an earlier response already
+        // carried every change up to index 4
+        assertThat(tracker.update(Arrays.asList(
+                alloc("a", "running", 4),
+                alloc("b", "complete", 2))), is(0));
+        assertThat(tracker.getCount("running"), is(2));
+
+        // an allocation missing from the earlier responses still counts
+        assertThat(tracker.update(Arrays.asList(
+                alloc("a", "running", 4),
+                alloc("b", "running", 2),
+                alloc("c", "pending", 3))), is(1));
+        assertThat(tracker.getTotal(), is(3));
+        assertThat(tracker.getCount("pending"), is(1));
+    }
+
+    @Test
+    public void shouldApplyAllocationReplacingOneMissingFromAStaleRead() throws Exception {
+        AllocationTracker tracker = new AllocationTracker();
+        tracker.update(Arrays.asList(
+                alloc("a", "running", 4),
+                alloc("b", "running", 2)));
+
+        // as many allocations as before, but "c" in place of "b", with an
+        // index no higher than any seen
+        assertThat(tracker.update(Arrays.asList(
+                alloc("a", "running", 4),
+                alloc("c", "failed", 3))), is(1));
+        assertThat(tracker.getTotal(), is(3));
+        assertThat(tracker.getCount("failed"), is(1));
+
+        // and in another order
+        assertThat(tracker.update(Arrays.asList(
+                alloc("d", "complete", 1),
+                alloc("a", "running", 4),
+                alloc("c", "failed", 3))), is(1));
+        assertThat(tracker.getTotal(), is(4));
+        assertThat(tracker.getCount("complete"), is(1));
+    }
+
+    @Test
+    public void shouldDetectCompletionAndFailures() throws Exception {
+        AllocationTracker tracker = new AllocationTracker();
+        tracker.update(Arrays.asList(
+                alloc("a", "complete", 2),
+                alloc("b", "failed", 2),
+                alloc("c", "complete", 2),
+                alloc("d", "complete", 2)));
+
+        assertTrue(tracker.allFinished());
+        assertTrue(tracker.failedOver(20));
+        assertFalse(tracker.failedOver(25));
+    }
+
+    @Test
+    public void shouldNotFailWithoutAllocations() throws Exception {
+        AllocationTracker tracker = new AllocationTracker();
+
+        assertTrue(tracker.allFinished());
+        assertFalse(tracker.failedOver(0));
+    }
+}
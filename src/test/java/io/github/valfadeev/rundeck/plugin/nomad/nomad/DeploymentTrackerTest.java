@@ -0,0 +1,95 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hashicorp.nomad.apimodel.Deployment;
+import com.hashicorp.nomad.apimodel.DeploymentState;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class DeploymentTrackerTest {
+
+    private static DeploymentState group(int placed, int total, int healthy, int unhealthy) {
+        return new DeploymentState()
+                .setPlacedAllocs(placed)
+                .setDesiredTotal(total)
+                .setHealthyAllocs(healthy)
+                .setUnhealthyAllocs(unhealthy)
+                .setPlacedCanaries(Collections.emptyList());
+    }
+
+    private static Deployment deployment(String status, Map<String, DeploymentState> groups) {
+        return new Deployment()
+                .setId("d1")
+                .setStatus(status)
+                .setStatusDescription("")
+                .setTaskGroups(groups);
+    }
+
+    @Test
+    public void shouldReportChangedGroupsOnly() throws Exception {
+        DeploymentTracker tracker = new DeploymentTracker();
+        Map<String, DeploymentState> groups = new LinkedHashMap<>();
+        groups.put("web", group(1, 3, 0, 0));
+        groups.put("api", group(2, 2, 2, 0));
+
+        assertThat(tracker.update(deployment("running", groups)), is(Arrays.asList(
+                "api: 2/2 placed, 2 healthy, 0 unhealthy",
+                "web: 1/3 placed, 0 healthy, 0 unhealthy")));
+
+        groups.put("web", group(3, 3, 1, 1));
+        assertThat(tracker.update(deployment("running", groups)), is(Collections.singletonList(
+                "web: 3/3 placed, 1 healthy, 1 unhealthy")));
+        assertFalse(tracker.isFinished());
+    }
+
+    @Test
+    public void shouldFinishOnSuccessOrFailureButNotWhilePaused() throws Exception {
+        DeploymentTracker tracker = new DeploymentTracker();
+        Map<String, DeploymentState> groups =
+                Collections.singletonMap("web", group(3, 3, 3, 0));
+
+        tracker.update(deployment("paused", groups));
+        assertFalse(tracker.isFinished());
+
+        tracker.update(deployment("successful", groups));
+        assertTrue(tracker.isFinished());
+        assertTrue(tracker.isSuccessful());
+
+        tracker.update(deployment("failed", groups));
+        assertTrue(tracker.isFinished());
+        assertFalse(tracker.isSuccessful());
+    }
+
+    @Test
+    public void shouldPromoteOnlyOnceAllCanariesAreHealthy() throws Exception {
+        DeploymentTracker tracker = new DeploymentTracker();
+        Map<String, DeploymentState> groups = new LinkedHashMap<>();
+        groups.put("web", group(1, 3, 0, 0)
+                .setDesiredCanaries(2)
+                .setPlacedCanaries(Collections.singletonList("a1")));
+        groups.put("api", group(3, 3, 3, 0));
+
+        assertThat(tracker.update(deployment("running", groups)).get(1),
+                is("web: 1/3 placed, 0 healthy, 0 unhealthy, 1/2 canaries"));
+        assertFalse(tracker.canPromote());
+
+        groups.put("web", group(2, 3, 2, 0)
+                .setDesiredCanaries(2)
+                .setPlacedCanaries(Arrays.asList("a1", "a2")));
+        tracker.update(deployment("running", groups));
+        assertTrue(tracker.canPromote());
+
+        groups.put("web", group(2, 3, 2, 0)
+                .setDesiredCanaries(2)
+                .setPlacedCanaries(Arrays.asList("a1", "a2"))
+                .setPromoted(true));
+        tracker.update(deployment("running", groups));
+        assertFalse(tracker.canPromote());
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.hashicorp.nomad.apimodel.StreamFrame;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class LogFollowerTest {
+
+    private static StreamFrame frame(String file, long endOffset, String data) {
+        return new StreamFrame()
+                .setFile(file)
+                .setOffset(endOffset)
+                .setData(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void shouldJoinLinesAcrossFrames() throws Exception {
+        List<String> lines = new ArrayList<>();
+        LogFollower follower = new LogFollower(lines::add, 1024);
+
+        follower.accept(frame("task.stdout.0", 8, "one\ntw"));
+        follower.accept(frame("task.stdout.0", 16, "o\r\nthree"));
+        follower.flush();
+
+        assertThat(lines, is(Arrays.asList("one", "two", "three")));
+    }
+
+    @Test
+    public void shouldSkipDataSeenBeforeReconnect() throws Exception {
+        List<String> lines = new ArrayList<>();
+        LogFollower follower = new LogFollower(lines::add, 1024);
+
+        follower.accept(frame("task.stdout.0", 8, "one\ntwo\n"));
+        // the reopened stream starts again from the beginning of the file
+        follower.accept(frame("task.stdout.0", 4, "one\n"));
+        follower.accept(frame("task.stdout.0", 14, "two\nthree\n"));
+
+        assertThat(lines, is(Arrays.asList("one", "two", "three")));
+    }
+
+    @Test
+    public void shouldBoundLineLength() throws Exception {
+        List<String> lines = new ArrayList<>();
+        LogFollower follower = new LogFollower(lines::add, 4);
+
+        follower.accept(frame("task.stderr.0", 10, "abcdefghi\n"));
+
+        assertThat(lines, is(Arrays.asList("abcd", "efgh", "i")));
+    }
+
+    @Test
+    public void shouldIgnoreHeartbeatsAndRestartTruncatedFiles() throws Exception {
+        List<String> lines = new ArrayList<>();
+        LogFollower follower = new LogFollower(lines::add, 1024);
+
+        follower.accept(frame("task.stdout.0", 4, "one\n"));
+        follower.accept(new StreamFrame());
+        follower.accept(new StreamFrame().setFile("task.stdout.0").setFileEvent("file truncated"));
+        follower.accept(frame("task.stdout.0", 4, "new\n"));
+
+        assertThat(lines, is(Arrays.asList("one", "new")));
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadAdmissionControlTest {
+
+    // every test admits to a cluster of its own
+    private final String cluster = "http://" + UUID.randomUUID() + ":4646";
+
+    private final BlockingQueue<String> admitted = new LinkedBlockingQueue<>();
+    private final BlockingQueue<NomadAdmissionControl.Ticket> tickets = new LinkedBlockingQueue<>();
+
+    @Test
+    public void shouldCapJobsInFlight() throws Exception {
+        NomadAdmissionControl control = NomadAdmissionControl.forCluster(cluster);
+        control.setLimits(0, 1, 1);
+
+        NomadAdmissionControl.Ticket first = control.admit("a");
+        queue(control, "a", "second", 1);
+        assertThat(admitted.poll(50, TimeUnit.MILLISECONDS), is(nullValue()));
+        assertThat(control.getInFlight(), is(1));
+
+        first.close();
+        first.close();
+        assertThat(admitted.poll(5, TimeUnit.SECONDS), is("second"));
+        tickets.take().close();
+        assertThat(control.getInFlight(), is(0));
+        assertThat(control.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void shouldPaceRegistrationsAtTheRate() throws Exception {
+        NomadAdmissionControl control = NomadAdmissionControl.forCluster(cluster);
+        control.setLimits(20, 1, 0);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            control.admit("a").close();
+        }
+        // the burst of one goes through at once, then one every 50ms
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(140));
+    }
+
+    @Test
+    public void shouldLetProjectsTakeTurns() throws Exception {
+        NomadAdmissionControl control = NomadAdmissionControl.forCluster(cluster);
+        control.setLimits(0, 1, 1);
+
+        NomadAdmissionControl.Ticket holder = control.admit("busy");
+        queue(control, "busy", "busy-1", 1);
+        queue(control, "busy", "busy-2", 2);
+        queue(control, "busy", "busy-3", 3);
+        queue(control, "quiet", "quiet-1", 4);
+
+        holder.close();
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            order.add(admitted.poll(5, TimeUnit.SECONDS));
+            tickets.take().close();
+        }
+        assertThat(order.toString(), is("[busy-1, quiet-1, busy-2, busy-3]"));
+    }
+
+    @Test
+    public void shouldLeaveQueueWhenInterrupted() throws Exception {
+        NomadAdmissionControl control = NomadAdmissionControl.forCluster(cluster);
+        control.setLimits(0, 1, 1);
+
+        NomadAdmissionControl.Ticket holder = control.admit("a");
+        try {
+            Thread waiter = queue(control, "a", "never", 1);
+            waiter.interrupt();
+            waiter.join(5000);
+            assertThat(control.getQueueDepth(), is(0));
+        } finally {
+            holder.close();
+        }
+        assertThat(control.getInFlight(), is(0));
+        assertThat(NomadAdmissionControl.getQueueDepths().get(cluster), is(0));
+    }
+
+    /**
+     * Starts a step waiting for admission and returns once it is queued.
+     */
+    private Thread queue(NomadAdmissionControl control,
+                         String project,
+                         String name,
+                         int depth) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                tickets.add(control.admit(project));
+                admitted.add(name);
+            } catch (InterruptedException e) {
+                // left the queue
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (control.getQueueDepth() < depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(control.getQueueDepth(), is(depth));
+        return thread;
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadAgentConfigCacheTest {
+
+    private static final String CLUSTER = "http://localhost:4646";
+
+    @After
+    public void tearDown() throws Exception {
+        NomadAgentConfigCache.invalidateAll();
+    }
+
+    private static Map<String, Object> agentConfig(String datacenter) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("Datacenter", datacenter);
+        config.put("Region", "global");
+        return config;
+    }
+
+    @Test
+    public void shouldServeFreshEntryWithoutLoading() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        NomadAgentConfigCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            return agentConfig("dc1");
+        };
+
+        NomadAgentConfigCache.get(CLUSTER, 60000, 0, loader);
+        Map<String, Object> config = NomadAgentConfigCache.get(CLUSTER, 60000, 0, loader);
+
+        assertThat(config.get("Datacenter"), is((Object) "dc1"));
+        assertThat(loads.get(), is(1));
+    }
+
+    @Test
+    public void shouldServeStaleEntryWhileRefreshing() throws Exception {
+        NomadAgentConfigCache.get(CLUSTER, 0, 0, () -> agentConfig("dc1"));
+
+        CountDownLatch refreshed = new CountDownLatch(1);
+        Map<String, Object> config = NomadAgentConfigCache.get(CLUSTER, 0, 60000, () -> {
+            refreshed.countDown();
+            return agentConfig("dc2");
+        });
+
+        assertThat(config.get("Datacenter"), is((Object) "dc1"));
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldReloadExpiredEntry() throws Exception {
+        NomadAgentConfigCache.get(CLUSTER, 0, 0, () -> agentConfig("dc1"));
+
+        Map<String, Object> config = NomadAgentConfigCache.get(CLUSTER, 0, 0,
+                () -> agentConfig("dc2"));
+
+        assertThat(config.get("Datacenter"), is((Object) "dc2"));
+    }
+}
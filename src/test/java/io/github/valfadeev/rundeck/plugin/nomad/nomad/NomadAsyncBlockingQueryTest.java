@@ -0,0 +1,105 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadAsyncBlockingQueryTest {
+
+    private static CompletableFuture<ServerQueryResponse<String>> response(long index, String value) {
+        BasicHttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        httpResponse.addHeader("X-Nomad-Index", Long.toString(index));
+        return CompletableFuture.completedFuture(
+                new ServerQueryResponse<>(httpResponse, value, value));
+    }
+
+    @Test
+    public void shouldBlockOnLastSeenIndex() throws Exception {
+        final List<BigInteger> sentIndexes = new ArrayList<>();
+        final String[] values = {"pending", "pending", "complete"};
+        final long[] indexes = {10, 12, 15};
+
+        NomadAsyncBlockingQuery<String> query = new NomadAsyncBlockingQuery<>(options -> {
+            int i = sentIndexes.size();
+            sentIndexes.add(options.getIndex());
+            return response(indexes[i], values[i]);
+        }, 60000, 1, 1, 0);
+
+        String result = query.waitUntil("complete"::equals).getValue();
+
+        assertThat(result, is("complete"));
+        assertThat(query.getRequestCount(), is(3L));
+        assertThat(sentIndexes.get(0), is(nullValue()));
+        assertThat(sentIndexes.get(2), is(BigInteger.valueOf(12)));
+    }
+
+    @Test
+    public void shouldCheckConditionOnCallingThread() throws Exception {
+        NomadAsyncBlockingQuery<String> query = new NomadAsyncBlockingQuery<>(
+                options -> response(1, "ok"), 1000, 1, 1, 0);
+        Thread[] checkedOn = new Thread[1];
+
+        query.waitUntil(value -> {
+            checkedOn[0] = Thread.currentThread();
+            return true;
+        });
+
+        assertThat(checkedOn[0], is(Thread.currentThread()));
+    }
+
+    @Test
+    public void shouldRetryFailedRequests() throws Exception {
+        final int[] calls = {0};
+
+        NomadAsyncBlockingQuery<String> query = new NomadAsyncBlockingQuery<>(options -> {
+            if (calls[0]++ < 2) {
+                CompletableFuture<ServerQueryResponse<String>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("connection reset"));
+                return failed;
+            }
+            return response(1, "ok");
+        }, 1000, 1, 2, 3);
+
+        assertThat(query.waitUntil("ok"::equals).getValue(), is("ok"));
+        assertThat(query.getRequestCount(), is(3L));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldGiveUpAfterMaxRetries() throws Exception {
+        NomadAsyncBlockingQuery<String> query = new NomadAsyncBlockingQuery<>(options -> {
+            CompletableFuture<ServerQueryResponse<String>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("connection refused"));
+            return failed;
+        }, 1000, 1, 2, 2);
+
+        query.waitUntil("ok"::equals);
+    }
+
+    @Test
+    public void shouldCancelRequestInFlight() throws Exception {
+        final CompletableFuture<ServerQueryResponse<String>> request = new CompletableFuture<>();
+
+        NomadAsyncBlockingQuery<String> query = new NomadAsyncBlockingQuery<>(
+                options -> request, 1000, 1, 2, 2);
+
+        CompletableFuture<ServerQueryResponse<String>> result = query.waitUntilAsync("ok"::equals);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (query.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        result.cancel(true);
+
+        assertTrue(request.isCancelled());
+    }
+}
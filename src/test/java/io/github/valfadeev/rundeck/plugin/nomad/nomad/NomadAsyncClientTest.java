@@ -0,0 +1,126 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import com.hashicorp.nomad.apimodel.Deployment;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.HttpResponseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadAsyncClientTest {
+
+    private HttpServer server;
+    private NomadEndpointRouter router;
+    private NomadAsyncClient client;
+    private final AtomicReference<String> query = new AtomicReference<>();
+    private final AtomicReference<String> token = new AtomicReference<>();
+    private final AtomicReference<String> encoding = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/evaluation/", exchange -> {
+            query.set(exchange.getRequestURI().getQuery());
+            token.set(exchange.getRequestHeaders().getFirst("X-Nomad-Token"));
+            encoding.set(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            byte[] body = "{\"ID\":\"eval-1\",\"Status\":\"complete\"}"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("X-Nomad-Index", "42");
+            boolean gzip = encoding.get() != null && encoding.get().contains("gzip");
+            if (gzip) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = gzip
+                    ? new GZIPOutputStream(exchange.getResponseBody())
+                    : exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/v1/deployment/", exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+
+        String address = String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+        Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, address)
+                .getConfig();
+        router = new NomadEndpointRouter(Collections.singletonList(address), 60);
+        client = new NomadAsyncClient(
+                NomadHttpClientProvider.getAsyncHttpClient(config), router, "secret");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldQueryWithIndexWaitAndToken() throws Exception {
+        ServerQueryResponse<Evaluation> response = client.evaluation("eval-1",
+                new QueryOptions<Evaluation>()
+                        .setIndex(BigInteger.TEN)
+                        .setWaitStrategy(NomadBlockingQuery.fixedWait(1000)))
+                .get();
+
+        assertThat(response.getValue().getStatus(), is("complete"));
+        assertThat(response.getIndex(), is(BigInteger.valueOf(42)));
+        assertThat(query.get(), is("index=10&wait=1000ms"));
+        assertThat(token.get(), is("secret"));
+    }
+
+    @Test
+    public void shouldScopeQueriesToNamespace() throws Exception {
+        try (NomadAsyncClient namespaced = new NomadAsyncClient(
+                NomadHttpClientProvider.getAsyncHttpClient(TestConfigurationMapBuilder.builder()
+                        .addItem(NomadConfigOptions.NOMAD_URL, router.getEndpoints().get(0).getAddress())
+                        .getConfig()),
+                router, null, "rundeck")) {
+            namespaced.evaluation("eval-1", new QueryOptions<Evaluation>()).get();
+        }
+
+        assertThat(query.get(), is("namespace=rundeck"));
+    }
+
+    @Test
+    public void shouldAskForAndDecodeCompressedResponses() throws Exception {
+        ServerQueryResponse<Evaluation> response = client.evaluation("eval-1",
+                new QueryOptions<Evaluation>())
+                .get();
+
+        assertThat(encoding.get(), containsString("gzip"));
+        assertThat(response.getValue().getId(), is("eval-1"));
+    }
+
+    @Test
+    public void shouldTakeEndpointOutOnServerError() throws Exception {
+        try {
+            client.deployment("d1", new QueryOptions<Deployment>()).get();
+            fail("expected the query to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(HttpResponseException.class)));
+        }
+
+        assertFalse(router.getEndpoints().get(0).isHealthy());
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadBlockedEvalsTest {
+
+    // every test counts on a cluster of its own
+    private final String cluster = "http://" + UUID.randomUUID() + ":4646";
+
+    @Test
+    public void shouldCountOpenHandles() {
+        NomadBlockedEvals.Handle first = NomadBlockedEvals.blocked(cluster);
+        NomadBlockedEvals.Handle second = NomadBlockedEvals.blocked(cluster);
+        assertThat(NomadBlockedEvals.getCount(cluster), is(2));
+
+        first.close();
+        first.close();
+        assertThat(NomadBlockedEvals.getCount(cluster), is(1));
+        second.close();
+        assertThat(NomadBlockedEvals.getCount(cluster), is(0));
+    }
+
+    @Test
+    public void shouldReleaseWaiterWhenEvaluationUnblocks() throws Exception {
+        NomadBlockedEvals.Handle handle = NomadBlockedEvals.blocked(cluster);
+        CompletableFuture<Boolean> room = CompletableFuture.supplyAsync(() -> {
+            try {
+                return NomadBlockedEvals.awaitRoom(cluster, 1, TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(room.isDone());
+
+        handle.close();
+        assertTrue(room.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldGiveUpAfterTimeout() throws Exception {
+        NomadBlockedEvals.Handle handle = NomadBlockedEvals.blocked(cluster);
+        try {
+            assertFalse(NomadBlockedEvals.awaitRoom(cluster, 1, 20));
+            assertTrue(NomadBlockedEvals.awaitRoom(cluster, 2, 20));
+            assertTrue(NomadBlockedEvals.awaitRoom(cluster, 0, 20));
+        } finally {
+            handle.close();
+        }
+    }
+}
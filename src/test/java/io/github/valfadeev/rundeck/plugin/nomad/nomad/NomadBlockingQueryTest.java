@@ -0,0 +1,112 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadBlockingQueryTest {
+
+    private static ServerQueryResponse<String> response(long index, String value) {
+        BasicHttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        httpResponse.addHeader("X-Nomad-Index", Long.toString(index));
+        return new ServerQueryResponse<>(httpResponse, value, value);
+    }
+
+    @Test
+    public void shouldBlockOnLastSeenIndex() throws Exception {
+        final List<BigInteger> sentIndexes = new ArrayList<>();
+        final String[] values = {"pending", "pending", "complete"};
+        final long[] indexes = {10, 12, 15};
+
+        NomadBlockingQuery<String> query = new NomadBlockingQuery<>(options -> {
+            int i = sentIndexes.size();
+            sentIndexes.add(options.getIndex());
+            assertThat(options.getWaitStrategy().getWait(), is("60000ms"));
+            return response(indexes[i], values[i]);
+        }, 60000, 1, 1, 0);
+
+        String result = query.waitUntil("complete"::equals).getValue();
+
+        assertThat(result, is("complete"));
+        assertThat(query.getRequestCount(), is(3L));
+        assertThat(sentIndexes.get(0), is(nullValue()));
+        assertThat(sentIndexes.get(1), is(BigInteger.valueOf(10)));
+        assertThat(sentIndexes.get(2), is(BigInteger.valueOf(12)));
+    }
+
+    @Test
+    public void shouldResetIndexWhenItGoesBackwards() throws Exception {
+        final long[] indexes = {10, 3};
+        final int[] calls = {0};
+
+        NomadBlockingQuery<String> query = new NomadBlockingQuery<>(
+                options -> response(indexes[calls[0]++], "x"), 1000, 1, 1, 0);
+
+        query.next();
+        assertThat(query.getIndex(), is(BigInteger.valueOf(10)));
+        query.next();
+        assertThat(query.getIndex(), is(nullValue()));
+    }
+
+    @Test
+    public void shouldRetryFailedRequests() throws Exception {
+        final int[] calls = {0};
+
+        NomadBlockingQuery<String> query = new NomadBlockingQuery<>(options -> {
+            if (calls[0]++ < 2) {
+                throw new IOException("connection reset");
+            }
+            return response(1, "ok");
+        }, 1000, 1, 2, 3);
+
+        assertThat(query.next().getValue(), is("ok"));
+        assertThat(query.getRequestCount(), is(3L));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldGiveUpAfterMaxRetries() throws Exception {
+        NomadBlockingQuery<String> query = new NomadBlockingQuery<>(options -> {
+            throw new IOException("connection refused");
+        }, 1000, 1, 2, 2);
+
+        query.next();
+    }
+
+    @Test
+    public void shouldCapBackoff() throws Exception {
+        NomadBlockingQuery<String> query = new NomadBlockingQuery<>(
+                options -> response(1, "x"), 1000, 100, 400, 0);
+
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long delay = query.backoff(attempt);
+            assertTrue(delay >= 0 && delay <= 400);
+        }
+    }
+
+    @Test
+    public void shouldNotRetryWhenInterrupted() throws Exception {
+        final int[] calls = {0};
+
+        NomadBlockingQuery<String> query = new NomadBlockingQuery<>(options -> {
+            calls[0]++;
+            Thread.currentThread().interrupt();
+            throw new IOException("request aborted");
+        }, 1000, 1, 2, 5);
+
+        try {
+            query.next();
+            fail("expected InterruptedException");
+        } catch (InterruptedException e) {
+            assertThat(calls[0], is(1));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.hashicorp.nomad.javasdk.NomadApiClient;
+import org.junit.After;
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadClientRegistryTest {
+
+    @After
+    public void tearDown() throws Exception {
+        NomadClientRegistry.closeAll();
+    }
+
+    @Test
+    public void shouldReuseClientForSameCluster() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .getConfig();
+
+        long hits = NomadClientRegistry.getHitCount();
+        long misses = NomadClientRegistry.getMissCount();
+
+        NomadApiClient first;
+        NomadApiClient second;
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config)) {
+            first = lease.getClient();
+        }
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config)) {
+            second = lease.getClient();
+        }
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(NomadClientRegistry.getMissCount() - misses, is(1L));
+        assertThat(NomadClientRegistry.getHitCount() - hits, is(1L));
+    }
+
+    @Test
+    public void shouldSeparateClientsByCredentials() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_ACL_TOKEN, "a")
+                .getConfig();
+        final Map<String, Object> otherConfig = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_ACL_TOKEN, "b")
+                .getConfig();
+
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config);
+             NomadClientRegistry.Lease otherLease = NomadClientRegistry.acquire(otherConfig)) {
+            assertThat(otherLease.getClient(), is(not(sameInstance(lease.getClient()))));
+            assertThat(lease.getClient().getConfig().getAuthToken(), is("a"));
+        }
+    }
+
+    @Test
+    public void shouldRebuildClientWhenTransportSettingsChange() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS, "10")
+                .getConfig();
+        final Map<String, Object> sameConfig = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS, " 10")
+                .getConfig();
+        final Map<String, Object> changedConfig = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_CLIENT_MAX_CONNECTIONS, "50")
+                .getConfig();
+
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config);
+             NomadClientRegistry.Lease sameLease = NomadClientRegistry.acquire(sameConfig);
+             NomadClientRegistry.Lease changedLease = NomadClientRegistry.acquire(changedConfig)) {
+            assertThat(sameLease.getClient(), is(sameInstance(lease.getClient())));
+            assertThat(changedLease.getClient(), is(not(sameInstance(lease.getClient()))));
+        }
+    }
+
+    @Test
+    public void shouldKeepClientsOfNamespacesApart() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .getConfig();
+        final Map<String, Object> namespaced = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_NAMESPACE, "rundeck")
+                .getConfig();
+
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config);
+             NomadClientRegistry.Lease namespacedLease = NomadClientRegistry.acquire(namespaced)) {
+            assertThat(namespacedLease.getClient(), is(not(sameInstance(lease.getClient()))));
+            assertThat(namespacedLease.getClient().getConfig().getNamespace(), is("rundeck"));
+        }
+    }
+
+    @Test
+    public void shouldEvictOnlyIdleClients() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_CLIENT_IDLE_TIMEOUT, "0")
+                .getConfig();
+
+        NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config);
+        NomadClientRegistry.evictIdle();
+        assertThat(NomadClientRegistry.size(), is(1));
+
+        lease.close();
+        NomadClientRegistry.evictIdle();
+        assertThat(NomadClientRegistry.size(), is(0));
+    }
+
+    @Test
+    public void shouldCloseWatcherOfEvictedClient() throws Exception {
+        final Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_CLIENT_IDLE_TIMEOUT, "0")
+                .getConfig();
+
+        NomadClusterWatcher watcher;
+        try (NomadClientRegistry.Lease lease = NomadClientRegistry.acquire(config)) {
+            watcher = lease.getClusterWatcher();
+        }
+        NomadClientRegistry.evictIdle();
+
+        try {
+            watcher.evaluation("e1").waitUntil(e -> true);
+            fail("expected the closed watcher to fail the step");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("closed"));
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Evaluation;
+import com.hashicorp.nomad.javasdk.QueryOptions;
+import com.hashicorp.nomad.javasdk.ServerQueryResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadClusterWatcherTest {
+
+    private final ExecutorService steps = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() throws Exception {
+        steps.shutdownNow();
+    }
+
+    /**
+     * Hands out requests which the test answers one at a time.
+     */
+    private static class ScriptedQuery<T> implements NomadAsyncBlockingQuery.Query<T> {
+
+        private final List<CompletableFuture<ServerQueryResponse<T>>> requests = new ArrayList<>();
+
+        @Override
+        public synchronized CompletableFuture<ServerQueryResponse<T>> execute(
+                QueryOptions<T> options) {
+            CompletableFuture<ServerQueryResponse<T>> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        }
+
+        synchronized int size() {
+            return requests.size();
+        }
+
+        synchronized boolean isCancelled(int request) {
+            return requests.size() > request && requests.get(request).isCancelled();
+        }
+
+        void answer(int request, long index, T value) throws Exception {
+            awaitTrue(() -> size() > request);
+            BasicHttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            httpResponse.addHeader("X-Nomad-Index", Long.toString(index));
+            CompletableFuture<ServerQueryResponse<T>> pending;
+            synchronized (this) {
+                pending = requests.get(request);
+            }
+            pending.complete(new ServerQueryResponse<>(httpResponse, "", value));
+        }
+
+        void fail(int request, Exception error) throws Exception {
+            awaitTrue(() -> size() > request);
+            CompletableFuture<ServerQueryResponse<T>> pending;
+            synchronized (this) {
+                pending = requests.get(request);
+            }
+            pending.completeExceptionally(error);
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static Evaluation eval(String id, String status) {
+        return new Evaluation().setId(id).setStatus(status);
+    }
+
+    private static AllocationListStub alloc(String id, String evalId, String status) {
+        return new AllocationListStub().setId(id).setEvalId(evalId).setClientStatus(status);
+    }
+
+    private static <T> NomadAsyncBlockingQuery<T> query(ScriptedQuery<T> script, int maxRetries) {
+        return new NomadAsyncBlockingQuery<>(script, 1000, 1, 1, maxRetries);
+    }
+
+    @Test
+    public void shouldServeAllStepsFromOneQuery() throws Exception {
+        ScriptedQuery<List<Evaluation>> evals = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(evals, 0), query(new ScriptedQuery<>(), 0));
+
+        Future<Evaluation> first = steps.submit(() -> watcher.evaluation("e1")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue());
+        Future<Evaluation> second = steps.submit(() -> watcher.evaluation("e2")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue());
+        awaitTrue(() -> watcher.getSubscriptionCount() == 2);
+
+        evals.answer(0, 10, Arrays.asList(eval("e1", "complete"), eval("e2", "pending")));
+        assertThat(first.get(5, TimeUnit.SECONDS).getId(), is("e1"));
+
+        evals.answer(1, 11, Arrays.asList(eval("e1", "complete"), eval("e2", "complete")));
+        assertThat(second.get(5, TimeUnit.SECONDS).getId(), is("e2"));
+
+        // nobody is left to serve, so the next request is called off
+        awaitTrue(() -> watcher.getSubscriptionCount() == 0);
+        awaitTrue(() -> evals.size() == 2 || evals.isCancelled(2));
+    }
+
+    @Test
+    public void shouldCheckConditionsOnTheStepThread() throws Exception {
+        ScriptedQuery<List<Evaluation>> evals = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(evals, 0), query(new ScriptedQuery<>(), 0));
+
+        Future<Thread> step = steps.submit(() -> {
+            Thread[] checkedOn = new Thread[1];
+            watcher.evaluation("e1").waitUntil(e -> {
+                checkedOn[0] = Thread.currentThread();
+                return "complete".equals(e.getStatus());
+            });
+            return checkedOn[0] == Thread.currentThread() ? checkedOn[0] : null;
+        });
+        evals.answer(0, 10, Arrays.asList(eval("e1", "complete")));
+
+        assertThat(step.get(5, TimeUnit.SECONDS), is(notNullValue()));
+    }
+
+    @Test
+    public void shouldCheckNewSubscriptionAgainstLastResponse() throws Exception {
+        ScriptedQuery<List<Evaluation>> evals = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(evals, 0), query(new ScriptedQuery<>(), 0));
+
+        Future<Evaluation> first = steps.submit(() -> watcher.evaluation("e1")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue());
+        evals.answer(0, 10, Arrays.asList(eval("e1", "complete"), eval("e2", "complete")));
+        first.get(5, TimeUnit.SECONDS);
+
+        // e2 completed before anyone asked for it
+        Evaluation second = watcher.evaluation("e2")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue();
+        assertThat(second.getStatus(), is("complete"));
+    }
+
+    @Test
+    public void shouldSelectAllocationsOfEvaluation() throws Exception {
+        ScriptedQuery<List<AllocationListStub>> allocs = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(new ScriptedQuery<>(), 0), query(allocs, 0));
+
+        Future<List<AllocationListStub>> result = steps.submit(() -> watcher
+                .evaluationAllocations("e1", BigInteger.valueOf(5))
+                .waitUntil(list -> !list.isEmpty()).getValue());
+        allocs.answer(0, 5, Arrays.asList(
+                alloc("a1", "e1", "running"),
+                alloc("a2", "e2", "running"),
+                alloc("a3", "e1", "pending")));
+
+        List<AllocationListStub> selected = result.get(5, TimeUnit.SECONDS);
+        assertThat(selected.size(), is(2));
+        assertThat(selected.get(0).getId(), is("a1"));
+        assertThat(selected.get(1).getId(), is("a3"));
+    }
+
+    @Test
+    public void shouldNotCheckAllocationsAgainstOlderSnapshot() throws Exception {
+        ScriptedQuery<List<AllocationListStub>> allocs = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(new ScriptedQuery<>(), 0), query(allocs, 0));
+
+        // another step keeps the feed running and leaves a snapshot
+        // from before e1 was evaluated
+        Future<?> other = steps.submit(() -> watcher.jobAllocations("other", null)
+                .waitUntil(list -> false));
+        allocs.answer(0, 5, Collections.singletonList(alloc("a0", "e0", "complete")));
+
+        // the condition of a batch step, which holds for no allocations
+        AllocationTracker tracker = new AllocationTracker();
+        Future<Integer> step = steps.submit(() -> {
+            watcher.evaluationAllocations("e1", BigInteger.valueOf(8)).waitUntil(list -> {
+                tracker.update(list);
+                return tracker.allFinished() || tracker.failedOver(0);
+            });
+            return tracker.getTotal();
+        });
+        awaitTrue(() -> watcher.getSubscriptionCount() == 2);
+        Thread.sleep(50);
+        assertFalse(step.isDone());
+
+        allocs.answer(1, 9, Arrays.asList(
+                alloc("a0", "e0", "complete"),
+                alloc("a1", "e1", "running")));
+        Thread.sleep(50);
+        assertFalse(step.isDone());
+
+        allocs.answer(2, 10, Arrays.asList(
+                alloc("a0", "e0", "complete"),
+                alloc("a1", "e1", "complete")));
+        assertThat(step.get(5, TimeUnit.SECONDS), is(1));
+        other.cancel(true);
+    }
+
+    @Test
+    public void shouldDropSubscriptionOfAbortedStep() throws Exception {
+        ScriptedQuery<List<Evaluation>> evals = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(evals, 0), query(new ScriptedQuery<>(), 0));
+
+        Future<Evaluation> step = steps.submit(() -> watcher.evaluation("e1")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue());
+        awaitTrue(() -> watcher.getSubscriptionCount() == 1);
+
+        step.cancel(true);
+
+        awaitTrue(() -> watcher.getSubscriptionCount() == 0);
+    }
+
+    @Test
+    public void shouldFailSubscriptionsWhenQueryFails() throws Exception {
+        ScriptedQuery<List<Evaluation>> evals = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(evals, 0), query(new ScriptedQuery<>(), 0));
+
+        Future<Evaluation> step = steps.submit(() -> watcher.evaluation("e1")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue());
+        evals.fail(0, new IOException("connection refused"));
+
+        try {
+            step.get(5, TimeUnit.SECONDS);
+            fail("expected the step to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+        }
+        assertThat(watcher.getSubscriptionCount(), is(0));
+    }
+
+    @Test
+    public void shouldStopQueriesAndFailSubscriptionsWhenClosed() throws Exception {
+        ScriptedQuery<List<Evaluation>> evals = new ScriptedQuery<>();
+        NomadClusterWatcher watcher = new NomadClusterWatcher(
+                query(evals, 0), query(new ScriptedQuery<>(), 0));
+
+        Future<Evaluation> step = steps.submit(() -> watcher.evaluation("e1")
+                .waitUntil(e -> "complete".equals(e.getStatus())).getValue());
+        awaitTrue(() -> evals.size() == 1);
+
+        watcher.close();
+
+        try {
+            step.get(5, TimeUnit.SECONDS);
+            fail("expected the step to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+        }
+        assertTrue(evals.isCancelled(0));
+        assertThat(watcher.getSubscriptionCount(), is(0));
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadDispatchProviderTest {
+
+    private static Map<String, Object> config(String meta, String payload) {
+        return TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_DISPATCH, "true")
+                .addItem(NomadConfigOptions.NOMAD_DISPATCH_META, meta)
+                .addItem(NomadConfigOptions.NOMAD_DISPATCH_PAYLOAD, payload)
+                .getConfig();
+    }
+
+    @Test
+    public void shouldAddRundeckMetadata() throws Exception {
+        Map<String, String> rundeckJob = new HashMap<>();
+        rundeckJob.put("id", "job-uuid");
+        rundeckJob.put("execid", "42");
+
+        Map<String, String> meta = NomadDispatchProvider.getMeta(
+                config("FOO=foo", ""), rundeckJob);
+
+        assertThat(meta.get("FOO"), is("foo"));
+        assertThat(meta.get(NomadDispatchProvider.META_EXECUTION_ID), is("42"));
+        assertThat(meta.get(NomadDispatchProvider.META_JOB_ID), is("job-uuid"));
+        assertFalse(meta.containsKey(NomadDispatchProvider.META_USER));
+        assertThat(NomadDispatchProvider.getMetaKeys(config("FOO=foo", "")),
+                is(Arrays.asList("FOO",
+                        NomadDispatchProvider.META_EXECUTION_ID,
+                        NomadDispatchProvider.META_JOB_ID,
+                        NomadDispatchProvider.META_USER)));
+    }
+
+    private static String specFingerprint(Map<String, Object> configuration) {
+        return NomadJobSkeletonCache.fingerprint(
+                NomadDispatchProvider.getSpecConfiguration(configuration),
+                new HashMap<>(), new HashMap<>(), "docker", "rundeck");
+    }
+
+    @Test
+    public void shouldKeepSpecIndependentOfPerRunValues() throws Exception {
+        String first = specFingerprint(config("FOO=foo", "first"));
+
+        assertThat(specFingerprint(config("FOO=bar", "second")), is(first));
+        assertThat(specFingerprint(config("BAR=bar", "first")), is(not(first)));
+    }
+
+    @Test
+    public void shouldOmitEmptyPayload() throws Exception {
+        assertThat(NomadDispatchProvider.getPayload(config("", "")), is(nullValue()));
+        assertThat(new String(NomadDispatchProvider.getPayload(config("", "data")), "UTF-8"),
+                is("data"));
+    }
+}
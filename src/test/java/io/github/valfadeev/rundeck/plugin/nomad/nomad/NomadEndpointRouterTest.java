@@ -0,0 +1,76 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadEndpointRouterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final NomadEndpointRouter router = new NomadEndpointRouter(
+            Arrays.asList("http://nomad-1:4646", "http://nomad-2:4646", "http://nomad-3:4646"),
+            60);
+
+    private NomadEndpointRouter.Endpoint endpoint(int i) {
+        return router.getEndpoints().get(i);
+    }
+
+    @Test
+    public void shouldReadFromFastestEndpoint() {
+        endpoint(0).recordSuccess(40 * MILLIS);
+        endpoint(1).recordSuccess(5 * MILLIS);
+        endpoint(2).recordSuccess(20 * MILLIS);
+
+        assertThat(router.readOrder(), is(Arrays.asList(endpoint(1), endpoint(2), endpoint(0))));
+        // writes stay on the configured order
+        assertThat(router.writeOrder(), is(router.getEndpoints()));
+    }
+
+    @Test
+    public void shouldAverageLatencySamples() {
+        endpoint(0).recordSuccess(10 * MILLIS);
+        endpoint(0).recordSuccess(20 * MILLIS);
+
+        assertThat(endpoint(0).getLatency(),
+                is(10 * MILLIS + NomadEndpointRouter.LATENCY_WEIGHT * 10 * MILLIS));
+    }
+
+    @Test
+    public void shouldSkipFailedEndpointsUntilProbed() {
+        endpoint(0).recordSuccess(MILLIS);
+        router.markFailed(endpoint(0));
+
+        assertThat(router.readOrder().get(0), is(endpoint(1)));
+        assertThat(router.writeOrder().get(0), is(endpoint(1)));
+        // a failed endpoint is still tried last
+        assertThat(router.readOrder().get(2), is(endpoint(0)));
+
+        router.probeAll(address -> {
+            if (address.contains("nomad-3")) {
+                throw new IOException("no cluster leader");
+            }
+        });
+
+        assertTrue(endpoint(0).isHealthy());
+        assertFalse(endpoint(2).isHealthy());
+        assertThat(router.writeOrder(), is(Arrays.asList(endpoint(0), endpoint(1), endpoint(2))));
+    }
+
+    @Test
+    public void shouldBringFailedEndpointsBackAfterCoolDown() throws Exception {
+        NomadEndpointRouter router = new NomadEndpointRouter(
+                Arrays.asList("http://nomad-1:4646", "http://nomad-2:4646"), 0);
+        router.markFailed(router.getEndpoints().get(0));
+
+        assertFalse(router.getEndpoints().get(0).isHealthy());
+        // the cool-down is at least a second
+        Thread.sleep(1100);
+        assertTrue(router.getEndpoints().get(0).isHealthy());
+    }
+}
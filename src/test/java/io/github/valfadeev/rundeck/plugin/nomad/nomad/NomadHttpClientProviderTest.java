@@ -0,0 +1,95 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadHttpClientProviderTest {
+
+    @Test
+    public void shouldNotTimeOutReadsByDefault() {
+        Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .getConfig();
+
+        assertThat(NomadHttpClientProvider.getReadTimeout(config), is(0));
+        assertThat(NomadHttpClientProvider.getConnectTimeout(config), is(10000));
+    }
+
+    @Test
+    public void shouldKeepReadTimeoutAboveBlockingQueryWait() {
+        Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_CLIENT_READ_TIMEOUT, "30")
+                .addItem(NomadConfigOptions.NOMAD_BLOCKING_QUERY_WAIT, "160")
+                .getConfig();
+
+        // 160s wait plus Nomad's jitter of up to a sixteenth, plus a second
+        assertThat(NomadHttpClientProvider.getReadTimeout(config), is(171000));
+    }
+
+    @Test
+    public void shouldShareTlsContextBetweenClients() throws Exception {
+        Map<String, Object> config = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_TLS_SESSION_TIMEOUT, "600")
+                .getConfig();
+        Map<String, Object> other = TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_TLS_SESSION_TIMEOUT, "60")
+                .getConfig();
+
+        assertSame(NomadHttpClientProvider.getSslContext(config),
+                NomadHttpClientProvider.getSslContext(config));
+        assertNotSame(NomadHttpClientProvider.getSslContext(config),
+                NomadHttpClientProvider.getSslContext(other));
+        assertThat(NomadHttpClientProvider.getSslContext(config)
+                .getClientSessionContext().getSessionTimeout(), is(600));
+    }
+
+    @Test
+    public void shouldAcceptNomadCertificatesOnlyForTheConfiguredServerName() throws Exception {
+        X509Certificate certificate = certificate("server.global.nomad");
+
+        assertTrue(new NomadHttpClientProvider.NomadHostnameVerifier("server.global.nomad")
+                .matches(certificate));
+        assertFalse(new NomadHttpClientProvider.NomadHostnameVerifier("server.eu.nomad")
+                .matches(certificate));
+        assertFalse(new NomadHttpClientProvider.NomadHostnameVerifier("client.global.nomad")
+                .matches(certificate));
+    }
+
+    /**
+     * A self-signed certificate for the given DNS name.
+     */
+    private static X509Certificate certificate(String dnsName) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name subject = new X500Name("CN=nomad");
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                subject, BigInteger.ONE, new Date(now), new Date(now + 3600000),
+                subject, keyPair.getPublic())
+                .addExtension(Extension.subjectAlternativeName, false,
+                        new GeneralNames(new GeneralName(GeneralName.dNSName, dnsName)));
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA")
+                .build(keyPair.getPrivate());
+        return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+    }
+}
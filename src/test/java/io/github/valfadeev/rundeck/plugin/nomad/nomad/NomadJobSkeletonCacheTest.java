@@ -0,0 +1,155 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.Resources;
+import com.hashicorp.nomad.apimodel.Task;
+import com.hashicorp.nomad.apimodel.UpdateStrategy;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadJobSkeletonCacheTest {
+
+    @After
+    public void tearDown() throws Exception {
+        NomadJobSkeletonCache.invalidateAll();
+    }
+
+    private static NomadJobSkeleton skeleton() {
+        return new NomadJobSkeleton(
+                new HashMap<>(),
+                new HashMap<>(),
+                new Resources(),
+                "docker",
+                "rundeck",
+                1,
+                Collections.singletonList("dc1"),
+                "global",
+                "batch",
+                null);
+    }
+
+    @Test
+    public void shouldFingerprintIndependentlyOfOrder() throws Exception {
+        Map<String, Object> a = new LinkedHashMap<>();
+        a.put(NomadConfigOptions.NOMAD_DATACENTER, "dc1");
+        a.put(NomadConfigOptions.NOMAD_GROUP_COUNT, "3");
+        Map<String, Object> b = new LinkedHashMap<>();
+        b.put(NomadConfigOptions.NOMAD_GROUP_COUNT, "3");
+        b.put(NomadConfigOptions.NOMAD_DATACENTER, "dc1");
+        Map<String, Object> task = Collections.singletonMap("image", "alpine");
+        Map<String, Object> agent = Collections.emptyMap();
+
+        String fa = NomadJobSkeletonCache.fingerprint(a, task, agent, "docker", "rundeck");
+        String fb = NomadJobSkeletonCache.fingerprint(b, task, agent, "docker", "rundeck");
+        assertThat(fa, is(fb));
+
+        b.put(NomadConfigOptions.NOMAD_GROUP_COUNT, "4");
+        assertThat(NomadJobSkeletonCache.fingerprint(b, task, agent, "docker", "rundeck"),
+                is(not(fa)));
+        assertThat(NomadJobSkeletonCache.fingerprint(a, task, agent, "java", "rundeck"),
+                is(not(fa)));
+    }
+
+    @Test
+    public void shouldFingerprintOnlyWhatGoesIntoTheJob() throws Exception {
+        Map<String, Object> configuration = new HashMap<>();
+        configuration.put(NomadConfigOptions.NOMAD_GROUP_COUNT, "3");
+        Map<String, Object> task = new HashMap<>();
+        task.put("image", "alpine");
+        task.put("args", new String[] {"-c", "true"});
+        Map<String, Object> agent = Collections.emptyMap();
+        String fingerprint = NomadJobSkeletonCache.fingerprint(
+                configuration, task, agent, "docker", "rundeck");
+
+        configuration.put(NomadConfigOptions.NOMAD_URL, "http://localhost:4646");
+        configuration.put(NomadConfigOptions.NOMAD_ACL_TOKEN, "secret");
+        configuration.put(NomadConfigOptions.NOMAD_STREAM_LOGS, "true");
+        configuration.put("docker_image", "raw value, the task config counts");
+        task.put("args", new String[] {"-c", "true"});
+        assertThat(NomadJobSkeletonCache.fingerprint(
+                configuration, task, agent, "docker", "rundeck"), is(fingerprint));
+
+        task.put("args", new String[] {"-c", "false"});
+        assertThat(NomadJobSkeletonCache.fingerprint(
+                configuration, task, agent, "docker", "rundeck"), is(not(fingerprint)));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws Exception {
+        NomadJobSkeleton first = NomadJobSkeletonCache.get("a", 2, NomadJobSkeletonCacheTest::skeleton);
+        NomadJobSkeletonCache.get("b", 2, NomadJobSkeletonCacheTest::skeleton);
+        // touch "a" so that "b" is the eldest
+        assertThat(NomadJobSkeletonCache.get("a", 2, NomadJobSkeletonCacheTest::skeleton),
+                is(sameInstance(first)));
+        NomadJobSkeletonCache.get("c", 2, NomadJobSkeletonCacheTest::skeleton);
+
+        assertThat(NomadJobSkeletonCache.size(), is(2));
+        assertThat(NomadJobSkeletonCache.get("a", 2, NomadJobSkeletonCacheTest::skeleton),
+                is(sameInstance(first)));
+        long misses = NomadJobSkeletonCache.getMissCount();
+        NomadJobSkeletonCache.get("b", 2, NomadJobSkeletonCacheTest::skeleton);
+        assertThat(NomadJobSkeletonCache.getMissCount(), is(misses + 1));
+    }
+
+    @Test
+    public void shouldNotCacheWithZeroSize() throws Exception {
+        NomadJobSkeletonCache.get("a", 0, NomadJobSkeletonCacheTest::skeleton);
+
+        assertThat(NomadJobSkeletonCache.size(), is(0));
+    }
+
+    @Test
+    public void shouldStampSeparateJobs() throws Exception {
+        NomadJobSkeleton skeleton = skeleton();
+
+        Job first = skeleton.stamp("id-1", "name-1");
+        Job second = skeleton.stamp("id-2", "name-2");
+
+        assertThat(first.getId(), is("id-1"));
+        assertThat(second.getId(), is("id-2"));
+        assertThat(first.getTaskGroups().get(0).getTasks().get(0).getName(), is("name-1"));
+        assertThat(second.getTaskGroups().get(0).getTasks().get(0).getName(), is("name-2"));
+        assertThat(first.getDatacenters(), is(not(sameInstance(second.getDatacenters()))));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldNotShareMutablePartsBetweenJobs() throws Exception {
+        Map<String, Object> taskConfig = new HashMap<>();
+        taskConfig.put("args", new String[] {"-c", "true"});
+        taskConfig.put("labels", new HashMap<>(Collections.singletonMap("a", "b")));
+        NomadJobSkeleton skeleton = new NomadJobSkeleton(
+                taskConfig,
+                new HashMap<>(),
+                new Resources().setCpu(100),
+                "docker",
+                "rundeck",
+                1,
+                Collections.singletonList("dc1"),
+                "global",
+                "service",
+                new UpdateStrategy().setMaxParallel(1));
+
+        Job first = skeleton.stamp("id-1", "name-1");
+        Task task = first.getTaskGroups().get(0).getTasks().get(0);
+        task.getResources().setCpu(500);
+        ((String[]) task.getConfig().get("args"))[1] = "false";
+        ((Map<String, Object>) task.getConfig().get("labels")).put("a", "c");
+        first.getUpdate().setMaxParallel(5);
+
+        Job second = skeleton.stamp("id-2", "name-2");
+        Task other = second.getTaskGroups().get(0).getTasks().get(0);
+        assertThat(other.getResources().getCpu(), is(100));
+        assertThat(((String[]) other.getConfig().get("args"))[1], is("true"));
+        assertThat(((Map<?, ?>) other.getConfig().get("labels")).get("a"), is("b"));
+        assertThat(second.getUpdate().getMaxParallel(), is(1));
+    }
+}
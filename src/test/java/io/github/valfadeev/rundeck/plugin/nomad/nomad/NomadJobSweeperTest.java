@@ -0,0 +1,172 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.hashicorp.nomad.apimodel.Job;
+import com.hashicorp.nomad.apimodel.JobListStub;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadJobSweeperTest {
+
+    private static final long NOW = TimeUnit.DAYS.toMillis(100);
+    private static final long RETENTION = TimeUnit.DAYS.toMillis(1);
+
+    private static class FakeCluster implements NomadJobSweeper.Cluster {
+
+        private final Map<String, JobListStub> stubs = new LinkedHashMap<>();
+        private final Map<String, Job> jobs = new HashMap<>();
+        private final List<String> listed = new ArrayList<>();
+        private final List<String> purged = new ArrayList<>();
+        private int infos = 0;
+
+        void add(String id, String status, boolean marked) {
+            stubs.put(id, new JobListStub()
+                    .setId(id)
+                    .setStatus(status)
+                    .setCreateIndex(BigInteger.ONE)
+                    .setModifyIndex(BigInteger.ONE)
+                    // submitted long before any pass
+                    .setSubmitTime(0));
+            Job job = new Job().setId(id);
+            jobs.put(id, marked ? NomadJobSweeper.mark(job) : job);
+        }
+
+        void update(String id, String status) {
+            JobListStub stub = stubs.get(id);
+            stub.setStatus(status).setModifyIndex(stub.getModifyIndex().add(BigInteger.ONE));
+        }
+
+        @Override
+        public List<JobListStub> list(String prefix) {
+            listed.add(prefix);
+            List<JobListStub> matching = new ArrayList<>();
+            for (JobListStub stub : stubs.values()) {
+                if (stub.getId().startsWith(prefix)) {
+                    matching.add(stub);
+                }
+            }
+            return matching;
+        }
+
+        @Override
+        public Job info(String jobId) {
+            infos++;
+            return jobs.get(jobId);
+        }
+
+        @Override
+        public void purge(String jobId) {
+            purged.add(jobId);
+            stubs.remove(jobId);
+        }
+    }
+
+    @Test
+    public void shouldPurgeOnlyMarkedJobsDeadPastRetention() throws Exception {
+        FakeCluster cluster = new FakeCluster();
+        cluster.add("r1-old-marked", "dead", true);
+        cluster.add("r1-old-foreign", "dead", false);
+        cluster.add("r1-running-marked", "running", true);
+        cluster.add("other-marked", "dead", true);
+
+        NomadJobSweeper sweeper = new NomadJobSweeper(RETENTION, 10, 0);
+        sweeper.addPrefix("r1-");
+        assertThat(sweeper.sweep(cluster, NOW), is(0));
+
+        cluster.add("r1-recent-marked", "dead", true);
+        int purged = sweeper.sweep(cluster, NOW + RETENTION);
+
+        assertThat(purged, is(1));
+        assertThat(cluster.purged, is(Collections.singletonList("r1-old-marked")));
+        assertThat(cluster.listed, is(Arrays.asList("r1-", "r1-")));
+        assertThat(sweeper.getSweptCount(), is(1L));
+    }
+
+    @Test
+    public void shouldAgeJobsFromWhenTheyFinished() throws Exception {
+        FakeCluster cluster = new FakeCluster();
+        cluster.add("r1-job", "dead", true);
+
+        NomadJobSweeper sweeper = new NomadJobSweeper(RETENTION, 10, 0);
+        sweeper.addPrefix("r1-");
+        sweeper.sweep(cluster, NOW);
+
+        // it ran again and finished later
+        cluster.update("r1-job", "running");
+        cluster.update("r1-job", "dead");
+        long finished = NOW + RETENTION / 2;
+        assertThat(sweeper.sweep(cluster, finished), is(0));
+
+        assertThat(sweeper.sweep(cluster, NOW + RETENTION), is(0));
+        assertThat(sweeper.sweep(cluster, finished + RETENTION), is(1));
+    }
+
+    @Test
+    public void shouldSweepOldestFirstInBoundedBatches() throws Exception {
+        FakeCluster cluster = new FakeCluster();
+        NomadJobSweeper sweeper = new NomadJobSweeper(RETENTION, 4, 0);
+        sweeper.addPrefix("r1-");
+        for (int i = 1; i <= 5; i++) {
+            cluster.add("r1-job-" + i, "dead", true);
+            sweeper.sweep(cluster, NOW + TimeUnit.HOURS.toMillis(i));
+        }
+
+        // every job costs a lookup and a purge
+        long later = NOW + RETENTION + TimeUnit.HOURS.toMillis(5);
+        assertThat(sweeper.sweep(cluster, later), is(2));
+        assertThat(cluster.purged.get(0), is("r1-job-1"));
+        assertThat(cluster.purged.get(1), is("r1-job-2"));
+
+        assertThat(sweeper.sweep(cluster, later), is(2));
+        assertThat(sweeper.sweep(cluster, later), is(1));
+        assertThat(cluster.stubs.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldListPrefixesInTurns() throws Exception {
+        FakeCluster cluster = new FakeCluster();
+        NomadJobSweeper sweeper = new NomadJobSweeper(RETENTION, 2, 0);
+        sweeper.addPrefix("r1");
+        sweeper.addPrefix("r2");
+        sweeper.addPrefix("r3");
+        sweeper.addPrefix("r1");
+
+        sweeper.sweep(cluster, NOW);
+        sweeper.sweep(cluster, NOW);
+
+        assertThat(cluster.listed, is(Arrays.asList("r1", "r2", "r3", "r1")));
+    }
+
+    @Test
+    public void shouldNotLookUpForeignJobsAgain() throws Exception {
+        FakeCluster cluster = new FakeCluster();
+        cluster.add("r1-foreign", "dead", false);
+
+        NomadJobSweeper sweeper = new NomadJobSweeper(RETENTION, 10, 0);
+        sweeper.addPrefix("r1-");
+        sweeper.sweep(cluster, NOW);
+        sweeper.sweep(cluster, NOW + RETENTION);
+        sweeper.sweep(cluster, NOW + RETENTION);
+
+        assertThat(cluster.infos, is(1));
+        assertThat(cluster.purged.isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldRecognizeMarkedJobs() throws Exception {
+        assertTrue(NomadJobSweeper.isMarked(NomadJobSweeper.mark(new Job())));
+        assertFalse(NomadJobSweeper.isMarked(new Job()));
+        assertFalse(NomadJobSweeper.isMarked(new Job().addMeta("owner", "someone")));
+    }
+}
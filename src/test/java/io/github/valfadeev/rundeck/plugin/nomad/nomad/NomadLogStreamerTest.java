@@ -0,0 +1,93 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BooleanSupplier;
+
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.TaskState;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadLogStreamerTest {
+
+    // every test streams from a cluster of its own
+    private final String cluster = "http://" + UUID.randomUUID() + ":4646";
+
+    private final List<Thread> readers = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<String> ends = new LinkedBlockingQueue<>();
+
+    // blocks until told to end the stream; nothing is read, so nothing
+    // is logged and the tests need no logger
+    private final NomadLogStreamer.Source source = (allocId, nodeId, task, type) -> {
+        readers.add(Thread.currentThread());
+        try {
+            ends.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        throw new IllegalStateException("stream ended");
+    };
+
+    private static List<AllocationListStub> alloc(String id) {
+        return Collections.singletonList(new AllocationListStub()
+                .setId(id)
+                .setNodeId("n1")
+                .setClientStatus("running")
+                .setTaskStates(Collections.singletonMap("task", new TaskState())));
+    }
+
+    @Test
+    public void shouldCapStreamsOfAClusterAcrossSteps() throws Exception {
+        NomadLogStreamer first = new NomadLogStreamer(cluster, source, null, 1);
+        NomadLogStreamer second = new NomadLogStreamer(cluster, source, null, 1);
+        assertThat(NomadLogStreamer.getActiveCount(cluster), is(0));
+
+        first.follow(alloc("a1"));
+        second.follow(alloc("a2"));
+        awaitTrue(() -> readers.size() == 1);
+        Thread.sleep(50);
+        assertThat(readers.size(), is(1));
+        assertThat(NomadLogStreamer.getActiveCount(cluster), is(1));
+
+        first.close();
+        awaitTrue(() -> NomadLogStreamer.getActiveCount(cluster) == 0);
+        second.follow(Collections.emptyList());
+        awaitTrue(() -> readers.size() == 2);
+
+        second.close();
+        awaitTrue(() -> NomadLogStreamer.getActiveCount(cluster) == 0);
+    }
+
+    @Test
+    public void shouldReadWaitingStreamsOfTheStepOnTheSameReader() throws Exception {
+        NomadLogStreamer streamer = new NomadLogStreamer(cluster, source, null, 1);
+
+        // stdout and stderr of one task
+        streamer.follow(alloc("a1"));
+        awaitTrue(() -> readers.size() == 1);
+
+        ends.add("stdout");
+        awaitTrue(() -> readers.size() == 2);
+        assertThat(readers.get(1), is(sameInstance(readers.get(0))));
+
+        ends.add("stderr");
+        awaitTrue(() -> NomadLogStreamer.getActiveCount(cluster) == 0);
+        streamer.close();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hashicorp.nomad.apimodel.Allocation;
+import com.hashicorp.nomad.apimodel.AllocationListStub;
+import com.hashicorp.nomad.apimodel.Node;
+import com.hashicorp.nomad.apimodel.NodeListStub;
+import com.hashicorp.nomad.apimodel.Resources;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadNodeSnapshotTest {
+
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final Map<String, Allocation> allocations = new LinkedHashMap<>();
+    private final AtomicInteger detailReads = new AtomicInteger();
+
+    private final NomadNodeSnapshot.Source source = new NomadNodeSnapshot.Source() {
+        @Override
+        public List<NodeListStub> nodes() {
+            List<NodeListStub> stubs = new ArrayList<>();
+            nodes.values().forEach(node -> stubs.add(new NodeListStub()
+                    .setId(node.getId())
+                    .setModifyIndex(node.getModifyIndex())));
+            return stubs;
+        }
+
+        @Override
+        public Node node(String id) {
+            detailReads.incrementAndGet();
+            return nodes.get(id);
+        }
+
+        @Override
+        public List<AllocationListStub> allocations() {
+            List<AllocationListStub> stubs = new ArrayList<>();
+            allocations.values().forEach(alloc -> stubs.add(new AllocationListStub()
+                    .setId(alloc.getId())
+                    .setNodeId(alloc.getNodeId())
+                    .setDesiredStatus("run")
+                    .setClientStatus("running")));
+            return stubs;
+        }
+
+        @Override
+        public Allocation allocation(String id) {
+            detailReads.incrementAndGet();
+            return allocations.get(id);
+        }
+    };
+
+    private void addNode(String id, String datacenter, int cpu, int memory, long index) {
+        nodes.put(id, new Node()
+                .setId(id)
+                .setDatacenter(datacenter)
+                .setStatus("ready")
+                .setResources(new Resources().setCpu(cpu).setMemoryMb(memory))
+                .setReserved(new Resources().setCpu(100).setMemoryMb(256))
+                .setModifyIndex(BigInteger.valueOf(index)));
+    }
+
+    private void addAllocation(String id, String nodeId, int cpu, int memory) {
+        allocations.put(id, new Allocation()
+                .setId(id)
+                .setNodeId(nodeId)
+                .setResources(new Resources().setCpu(cpu).setMemoryMb(memory)));
+    }
+
+    @Test
+    public void shouldLeaveOutFullDatacenters() throws Exception {
+        addNode("n1", "dc1", 1100, 1280, 1);
+        addNode("n2", "dc2", 2100, 2304, 1);
+        addNode("n3", "dc3", 4100, 4352, 1);
+        addAllocation("a1", "n1", 1000, 512);
+        addAllocation("a2", "n3", 1000, 1024);
+
+        NomadNodeSnapshot snapshot = new NomadNodeSnapshot();
+        snapshot.refresh(source, 0);
+
+        // dc1 has no CPU left, dc3 has room for three and dc2 for two
+        assertThat(snapshot.place(Arrays.asList("dc1", "dc2", "dc3"), 1000, 512, 4),
+                is(Arrays.asList("dc3", "dc2")));
+    }
+
+    @Test
+    public void shouldKeepCandidatesWhenGroupDoesNotFit() throws Exception {
+        addNode("n1", "dc1", 1100, 1280, 1);
+        addNode("n2", "dc2", 2100, 2304, 1);
+
+        NomadNodeSnapshot snapshot = new NomadNodeSnapshot();
+        snapshot.refresh(source, 0);
+
+        List<String> candidates = Arrays.asList("dc1", "dc2");
+        assertThat(snapshot.place(candidates, 1000, 512, 4), is(candidates));
+    }
+
+    @Test
+    public void shouldOnlyReadChangedNodesAndNewAllocations() throws Exception {
+        addNode("n1", "dc1", 2100, 2304, 1);
+        addNode("n2", "dc2", 2100, 2304, 1);
+        addAllocation("a1", "n1", 1000, 512);
+
+        NomadNodeSnapshot snapshot = new NomadNodeSnapshot();
+        snapshot.refresh(source, 0);
+        assertThat(detailReads.get(), is(3));
+
+        addNode("n2", "dc2", 4100, 4352, 2);
+        addAllocation("a2", "n1", 1000, 512);
+        snapshot.refresh(source, 0);
+
+        assertThat(detailReads.get(), is(5));
+        assertThat(snapshot.getRoom("dc1", 1000, 512), is(0L));
+        assertThat(snapshot.getRoom("dc2", 1000, 512), is(4L));
+
+        // a fresh snapshot is not refreshed again
+        snapshot.refresh(source, 60000);
+        assertThat(detailReads.get(), is(5));
+    }
+
+    @Test
+    public void shouldPlaceWithLastSnapshotWhileRefreshing() throws Exception {
+        addNode("n1", "dc1", 2100, 2304, 1);
+        addNode("n2", "dc2", 1100, 1280, 1);
+
+        NomadNodeSnapshot snapshot = new NomadNodeSnapshot();
+        assertFalse(snapshot.isLoaded());
+        snapshot.refresh(source, 0);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger refreshes = new AtomicInteger();
+        NomadNodeSnapshot.Refresh slow = () -> {
+            refreshes.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            snapshot.refresh(source, 0);
+        };
+        addAllocation("a1", "n1", 1000, 512);
+        snapshot.refreshInBackground(0, slow);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // one refresh at a time, and placing does not wait for it
+        snapshot.refreshInBackground(0, slow);
+        assertThat(snapshot.getRoom("dc1", 1000, 512), is(2L));
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (snapshot.getRoom("dc1", 1000, 512) == 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(snapshot.getRoom("dc1", 1000, 512), is(1L));
+        assertThat(refreshes.get(), is(1));
+    }
+
+    @Test
+    public void shouldKeepLastSnapshotWhenRefreshFails() throws Exception {
+        addNode("n1", "dc1", 2100, 2304, 1);
+
+        NomadNodeSnapshot snapshot = new NomadNodeSnapshot();
+        snapshot.refresh(source, 0);
+
+        CountDownLatch done = new CountDownLatch(1);
+        snapshot.refreshInBackground(0, () -> {
+            done.countDown();
+            throw new IOException("connection refused");
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (snapshot.getLastError() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertThat(snapshot.getLastError(), is("connection refused"));
+        assertThat(snapshot.getRoom("dc1", 1000, 512), is(2L));
+    }
+}
@@ -0,0 +1,158 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadRoutingHttpClientTest {
+
+    private HttpServer server;
+    private String down;
+    private String up;
+    private final AtomicInteger requests = new AtomicInteger();
+    private NomadEndpointRouter router;
+    private NomadRoutingHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        // an address nobody listens on any more
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            down = String.format("http://127.0.0.1:%d", closed.getLocalPort());
+        }
+
+        server = start(200, requests);
+        up = String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+
+        router = new NomadEndpointRouter(Arrays.asList(down, up), 60);
+        client = new NomadRoutingHttpClient(
+                NomadHttpClientProvider.getHttpClient(config(down + "," + up)), router);
+    }
+
+    /**
+     * Starts a server answering every request with the given status and
+     * the request path, counting the requests.
+     */
+    private static HttpServer start(int status, AtomicInteger counter) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/", exchange -> {
+            counter.incrementAndGet();
+            byte[] body = exchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static Map<String, Object> config(String url) {
+        return TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, url)
+                .getConfig();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldFailOverReadsToNextEndpoint() throws Exception {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(down + "/v1/jobs"))) {
+            assertThat(EntityUtils.toString(response.getEntity()), is("/v1/jobs"));
+        }
+
+        assertFalse(router.getEndpoints().get(0).isHealthy());
+        assertTrue(router.getEndpoints().get(1).getLatency() > 0);
+        assertThat(router.readOrder().get(0).getAddress(), is(up));
+    }
+
+    @Test
+    public void shouldRetryWritesWhichCouldNotConnect() throws Exception {
+        HttpPut request = new HttpPut(down + "/v1/jobs");
+        request.setEntity(new StringEntity("{}"));
+        try (CloseableHttpResponse response = client.execute(request)) {
+            assertThat(response.getStatusLine().getStatusCode(), is(200));
+        }
+
+        assertThat(requests.get(), is(1));
+    }
+
+    @Test
+    public void shouldFailOverReadsAnsweredWithServerError() throws Exception {
+        HttpServer failing = start(503, new AtomicInteger());
+        try {
+            String address = String.format("http://127.0.0.1:%d", failing.getAddress().getPort());
+            client.close();
+            router = new NomadEndpointRouter(Arrays.asList(address, up), 60);
+            client = new NomadRoutingHttpClient(
+                    NomadHttpClientProvider.getHttpClient(config(address + "," + up)), router);
+
+            try (CloseableHttpResponse response = client.execute(new HttpGet(address + "/v1/jobs"))) {
+                assertThat(response.getStatusLine().getStatusCode(), is(200));
+            }
+            assertFalse(router.getEndpoints().get(0).isHealthy());
+            assertThat(requests.get(), is(1));
+        } finally {
+            failing.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldAskTheFirstAgentAboutItself() throws Exception {
+        AtomicInteger other = new AtomicInteger();
+        HttpServer faster = start(200, other);
+        try {
+            String address = String.format("http://127.0.0.1:%d", faster.getAddress().getPort());
+            client.close();
+            router = new NomadEndpointRouter(Arrays.asList(up, address), 60);
+            client = new NomadRoutingHttpClient(
+                    NomadHttpClientProvider.getHttpClient(config(up + "," + address)), router);
+            router.getEndpoints().get(0).recordSuccess(1000000);
+            router.getEndpoints().get(1).recordSuccess(1000);
+
+            try (CloseableHttpResponse response = client.execute(new HttpGet(up + "/v1/agent/self"))) {
+                EntityUtils.consume(response.getEntity());
+            }
+            assertThat(requests.get(), is(1));
+            assertThat(other.get(), is(0));
+        } finally {
+            faster.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldNotScoreBlockingQueries() throws Exception {
+        router.markFailed(router.getEndpoints().get(0));
+        try (CloseableHttpResponse response = client.execute(
+                new HttpGet(down + "/v1/evaluation/e1?index=42&wait=1000ms"))) {
+            EntityUtils.consume(response.getEntity());
+        }
+
+        assertThat(router.getEndpoints().get(1).getLatency(), is(0.0));
+        assertFalse(NomadRoutingHttpClient.isPrompt(URI.create("/v1/client/fs/logs/a1?follow=true")));
+        assertTrue(NomadRoutingHttpClient.isPrompt(URI.create("/v1/jobs?prefix=index")));
+    }
+}
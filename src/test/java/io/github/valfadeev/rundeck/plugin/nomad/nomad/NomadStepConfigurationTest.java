@@ -0,0 +1,139 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.hashicorp.nomad.apimodel.UpdateStrategy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadStepConfigurationTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void shouldApplyDefaultsForUnsetValues() throws Exception {
+        final Map<String, Object> config = builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://localhost:4646")
+                .addItem(NomadConfigOptions.NOMAD_GROUP_COUNT, "")
+                .getConfig();
+
+        NomadStepConfiguration parsed = NomadStepConfiguration.parse(config);
+
+        assertThat(parsed.getGroupCount(), is(1));
+        assertThat(parsed.getJobType(), is(NomadStepConfiguration.JOB_TYPE_BATCH));
+        assertThat(parsed.getMaxFailPct(), is(0L));
+        assertTrue(parsed.getDatacenters().isEmpty());
+        assertFalse(parsed.isDispatch());
+    }
+
+    @Test
+    public void shouldParseTypedValues() throws Exception {
+        final Map<String, Object> config = builder()
+                .addItem(NomadConfigOptions.NOMAD_DATACENTER, "dc1,dc2")
+                .addItem(NomadConfigOptions.NOMAD_GROUP_COUNT, "3")
+                .addItem(NomadConfigOptions.NOMAD_TASK_CPU, " 500 ")
+                .addItem(NomadConfigOptions.NOMAD_RESERVED_PORTS, "db=6379")
+                .addItem(NomadConfigOptions.NOMAD_STREAM_LOGS, "true")
+                .getConfig();
+
+        NomadStepConfiguration parsed = NomadStepConfiguration.parse(config);
+
+        assertThat(parsed.getDatacenters(), is(Arrays.asList("dc1", "dc2")));
+        assertThat(parsed.getGroupCount(), is(3));
+        assertThat(parsed.getCpu(), is(500));
+        assertThat(parsed.getReservedPorts().get("db"), is(6379));
+        assertTrue(parsed.isStreamLogs());
+    }
+
+    @Test
+    public void shouldBuildUpdateStrategyFromItsOwnValues() throws Exception {
+        final Map<String, Object> config = builder()
+                .addItem(NomadConfigOptions.NOMAD_MAX_PARALLEL, "")
+                .addItem(NomadConfigOptions.NOMAD_HEALTH_CHECK, "task_states")
+                .addItem(NomadConfigOptions.NOMAD_CANARY, "1")
+                .addItem(NomadConfigOptions.NOMAD_STAGGER, "30000000000")
+                .getConfig();
+
+        UpdateStrategy update = NomadUpdateStrategyProvider
+                .getUpdate(NomadStepConfiguration.parse(config));
+
+        assertThat(update.getMaxParallel(), is(nullValue()));
+        assertThat(update.getHealthCheck(), is("task_states"));
+        assertThat(update.getCanary(), is(1));
+        assertThat(update.getStagger(), is(30000000000L));
+    }
+
+    @Test
+    public void shouldRequireResourceLimits() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(NomadConfigOptions.NOMAD_TASK_IOPS);
+        NomadStepConfiguration.parse(builder()
+                .addItem(NomadConfigOptions.NOMAD_TASK_IOPS, "")
+                .getConfig());
+    }
+
+    @Test
+    public void shouldNameTheInvalidProperty() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(NomadConfigOptions.NOMAD_TASK_MEMORY);
+        NomadStepConfiguration.parse(builder()
+                .addItem(NomadConfigOptions.NOMAD_TASK_MEMORY, "512MB")
+                .getConfig());
+    }
+
+    @Test
+    public void shouldRejectOutOfRangeValues() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(NomadConfigOptions.NOMAD_MAX_FAIL_PCT);
+        NomadStepConfiguration.parse(builder()
+                .addItem(NomadConfigOptions.NOMAD_MAX_FAIL_PCT, "150")
+                .getConfig());
+    }
+
+    @Test
+    public void shouldRejectMalformedBooleans() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(NomadConfigOptions.NOMAD_DISPATCH);
+        NomadStepConfiguration.parse(builder()
+                .addItem(NomadConfigOptions.NOMAD_DISPATCH, "yes")
+                .getConfig());
+    }
+
+    @Test
+    public void shouldSplitSeveralNomadUrls() throws Exception {
+        final Map<String, Object> config = builder()
+                .addItem(NomadConfigOptions.NOMAD_URL,
+                        "http://nomad-1:4646, https://nomad-2:4646")
+                .getConfig();
+
+        NomadStepConfiguration parsed = NomadStepConfiguration.parse(config);
+
+        assertThat(parsed.getUrls(),
+                is(Arrays.asList("http://nomad-1:4646", "https://nomad-2:4646")));
+    }
+
+    @Test
+    public void shouldRejectNomadUrlWithoutScheme() throws Exception {
+        final Map<String, Object> config = builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://nomad-1:4646,nomad-2:4646")
+                .getConfig();
+
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(NomadConfigOptions.NOMAD_URL);
+        NomadStepConfiguration.parse(config);
+    }
+
+    private static TestConfigurationMapBuilder builder() {
+        return TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_TASK_CPU, "100")
+                .addItem(NomadConfigOptions.NOMAD_TASK_MEMORY, "256")
+                .addItem(NomadConfigOptions.NOMAD_TASK_IOPS, "0");
+    }
+}
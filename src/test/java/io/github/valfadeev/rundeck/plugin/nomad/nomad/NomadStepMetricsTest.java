@@ -0,0 +1,126 @@
+package io.github.valfadeev.rundeck.plugin.nomad.nomad;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import io.github.valfadeev.rundeck.plugin.nomad.nomad.NomadStepMetrics.Phase;
+import org.junit.Test;
+import utils.TestConfigurationMapBuilder;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+public class NomadStepMetricsTest {
+
+    @Test
+    public void shouldRenderPhasesAndOutcomes() throws Exception {
+        NomadStepMetrics.record(Phase.Evaluation, 2000000000L);
+        NomadStepMetrics.recordFailure("EvalBlockedFailure");
+        NomadStepMetrics.recordFailure("EvalBlockedFailure");
+        NomadStepMetrics.recordSuccess();
+
+        String rendered = NomadStepMetrics.render();
+
+        assertThat(rendered, containsString("# TYPE nomad_step_phase_seconds summary"));
+        assertThat(rendered, containsString(
+                "nomad_step_phase_seconds{phase=\"evaluation\",quantile=\"0.99\"}"));
+        assertThat(rendered, containsString(
+                "nomad_step_phase_seconds_count{phase=\"placement\"}"));
+        assertThat(rendered, containsString(String.format(
+                "nomad_step_executions_total{outcome=\"failure\",reason=\"EvalBlockedFailure\"} %d",
+                NomadStepMetrics.getFailureCount("EvalBlockedFailure"))));
+        assertTrue(NomadStepMetrics.getFailureCount("EvalBlockedFailure") >= 2);
+        assertTrue(NomadStepMetrics.getSuccessCount() >= 1);
+    }
+
+    @Test
+    public void shouldKeepRecordedValuesAcrossRenders() throws Exception {
+        NomadStepMetrics.record(Phase.Run, 1000000L);
+        String first = NomadStepMetrics.render();
+        String second = NomadStepMetrics.render();
+
+        assertThat(count(second, Phase.Run), is(count(first, Phase.Run)));
+        assertTrue(count(second, Phase.Run) >= 1);
+    }
+
+    @Test
+    public void shouldRenderAdmissionQueues() throws Exception {
+        NomadAdmissionControl.Ticket ticket =
+                NomadAdmissionControl.forCluster("http://metrics:4646").admit("project");
+        try {
+            String rendered = NomadStepMetrics.render();
+
+            assertThat(rendered, containsString("# TYPE nomad_admission_queue_depth gauge"));
+            assertThat(rendered, containsString(
+                    "nomad_admission_queue_depth{cluster=\"http://metrics:4646\"} 0"));
+            assertThat(rendered, containsString(
+                    "nomad_admission_in_flight{cluster=\"http://metrics:4646\"} 1"));
+        } finally {
+            ticket.close();
+        }
+    }
+
+    @Test
+    public void shouldRenderJobSweeperCounts() throws Exception {
+        NomadJobSweeper.start(NomadStepConfiguration.parse(TestConfigurationMapBuilder.builder()
+                .addItem(NomadConfigOptions.NOMAD_URL, "http://sweeper-metrics:4646")
+                .addItem(NomadConfigOptions.NOMAD_TASK_CPU, "100")
+                .addItem(NomadConfigOptions.NOMAD_TASK_MEMORY, "256")
+                .addItem(NomadConfigOptions.NOMAD_TASK_IOPS, "0")
+                .addItem(NomadConfigOptions.NOMAD_SWEEP_JOBS, "true")
+                .getConfig()), "rundeck-job");
+
+        String rendered = NomadStepMetrics.render();
+
+        assertThat(rendered, containsString("# TYPE nomad_job_sweeper_failures_total counter"));
+        assertThat(rendered, containsString(
+                "nomad_job_sweeper_purged_total{cluster=\"http://sweeper-metrics:4646\"} 0"));
+        assertThat(rendered, containsString(
+                "nomad_job_sweeper_failures_total{cluster=\"http://sweeper-metrics:4646\"} 0"));
+    }
+
+    @Test
+    public void shouldSummarizeRecordedPhasesInOrder() throws Exception {
+        NomadStepTimer timer = new NomadStepTimer();
+        long start = NomadStepTimer.now();
+        timer.record(Phase.Registration, start);
+        timer.record(Phase.AgentConfig, start);
+        timer.recordTotal();
+
+        Map<String, Long> summary = timer.getSummary();
+
+        assertThat(summary.keySet().toString(), is("[agent_config, registration, total]"));
+        assertTrue(timer.isRecorded(Phase.AgentConfig));
+        assertFalse(timer.isRecorded(Phase.Placement));
+    }
+
+    @Test
+    public void shouldExportToFile() throws Exception {
+        Path dir = Files.createTempDirectory("nomad-metrics");
+        Path file = dir.resolve("nomad.prom");
+        try {
+            NomadStepMetrics.export(file);
+
+            String exported = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            assertThat(exported, containsString("nomad_step_executions_total{outcome=\"success\"}"));
+            // only the exported file is left behind
+            assertThat(dir.toFile().list().length, is(1));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    private static long count(String rendered, Phase phase) {
+        String prefix = String.format("nomad_step_phase_seconds_count{phase=\"%s\"} ",
+                phase.getMetricName());
+        for (String line : rendered.split("\n")) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(prefix.length()));
+            }
+        }
+        throw new AssertionError("missing " + prefix);
+    }
+}
@@ -17,6 +17,9 @@ public class NomadTaskEnvProviderTest {
 
         final Map<String, Object> config = TestConfigurationMapBuilder.builder()
                 .addItem(NOMAD_ENV_VARS, "FOO=bar\nABC=xyz")
+                .addItem(NomadConfigOptions.NOMAD_TASK_CPU, "100")
+                .addItem(NomadConfigOptions.NOMAD_TASK_MEMORY, "256")
+                .addItem(NomadConfigOptions.NOMAD_TASK_IOPS, "0")
                 .getConfig();
 
         Map<String, String> env = NomadTaskEnvProvider.getEnv(config);
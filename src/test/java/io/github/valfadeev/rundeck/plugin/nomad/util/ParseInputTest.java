@@ -46,4 +46,35 @@ public class ParseInputTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldSplitOnFirstSeparatorOnly() throws Exception {
+        final Map<String, String> result = ParseInput
+                .kvToMap("JAVA_OPTS=-Dfoo=bar -Xmx1g\r\nEMPTY=\n\nQUOTED=\"a\\\"b\"");
+
+        assertThat(result.get("JAVA_OPTS"), is("-Dfoo=bar -Xmx1g"));
+        assertThat(result.get("EMPTY"), is(""));
+        assertThat(result.get("QUOTED"), is("a\"b"));
+        assertThat(result.size(), is(3));
+    }
+
+    @Test
+    public void shouldKeepLastValueOfDuplicateKey() throws Exception {
+        assertThat(ParseInput.kvToMap("A=1\nA=2").get("A"), is("2"));
+    }
+
+    @Test
+    public void throwsOnLineWithoutSeparator() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        ParseInput.kvToMap("A=1\nB");
+    }
+
+    @Test
+    public void shouldSplitListHonouringQuotesAndEscapes() throws Exception {
+        assertThat(ParseInput.splitList("--verbose,\"--name=a,b\",c\\,d,,\"\"", ','),
+                is(new String[]{"--verbose", "--name=a,b", "c,d", ""}));
+        assertThat(ParseInput.splitList("/data:/data\r\n/logs:/logs\n", '\n'),
+                is(new String[]{"/data:/data", "/logs:/logs"}));
+        assertThat(ParseInput.splitList("C:\\temp", ','),
+                is(new String[]{"C:\\temp"}));
+    }
+}